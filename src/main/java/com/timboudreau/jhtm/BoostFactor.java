@@ -44,6 +44,10 @@ public final class BoostFactor implements Serializable {
         return new BoostFactor(min(1.0D, multiplier - by));
     }
 
+    public double multiplier() {
+        return multiplier;
+    }
+
     public double boost(double input) {
         if (multiplier > 1.0D) {
             return input * multiplier;
@@ -34,7 +34,7 @@ public abstract class DendriteSegment<T, Q> {
 
             @Override
             public Visitor.Result visit(PotentialSynapse synapse, int[] arg) {
-                if (synapse.getPermanence().get(Permanence.LimitFunction.ZERO_TO_ONE) >= threshold) {
+                if (Permanence.LimitFunction.ZERO_TO_ONE.limit(synapse.getPermanenceValue()) >= threshold) {
                     arg[0]++;
                 }
                 return Visitor.Result.NOT_DONE;
@@ -43,4 +43,34 @@ public abstract class DendriteSegment<T, Q> {
         }, result);
         return result[0];
     }
+
+    /**
+     * Make temporary permanence adjustments of all synapses on this segment
+     * permanent.
+     */
+    public void retainTemporaryValues() {
+        visitSynapses(new Visitor<PotentialSynapse<? extends Q>, Void>() {
+
+            @Override
+            public Visitor.Result visit(PotentialSynapse<? extends Q> synapse) {
+                synapse.retainTemporaryValues();
+                return Visitor.Result.NOT_DONE;
+            }
+        }, null);
+    }
+
+    /**
+     * Discard temporary permanence adjustments of all synapses on this
+     * segment.
+     */
+    public void cullTemporaryValues() {
+        visitSynapses(new Visitor<PotentialSynapse<? extends Q>, Void>() {
+
+            @Override
+            public Visitor.Result visit(PotentialSynapse<? extends Q> synapse) {
+                synapse.cullTemporaryValues();
+                return Visitor.Result.NOT_DONE;
+            }
+        }, null);
+    }
 }
@@ -18,7 +18,6 @@ package com.timboudreau.jhtm;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
-import static java.lang.System.identityHashCode;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -53,7 +52,13 @@ public abstract class Permanence extends Number {
     }
 
     public Permanence add(double value, boolean temporary) {
-        return new CompoundPermanence(new Value(get(), false), new Value(value, temporary));
+        double permanent = permanentValue();
+        double pending = get() - permanent;
+        if (temporary) {
+            return new CompoundPermanence(permanent, pending + value);
+        }
+        return pending == 0D ? new SimplePermanence(permanent + value)
+                : new CompoundPermanence(permanent + value, pending);
     }
 
     public Permanence cullTemporaryValues() {
@@ -84,14 +89,36 @@ public abstract class Permanence extends Number {
         return get();
     }
 
+    /**
+     * The portion of this permanence which is not temporary.
+     *
+     * @return The non-temporary value
+     */
+    double permanentValue() {
+        return get();
+    }
+
+    /**
+     * Permanences are compared by value, since implementations backed by
+     * primitive arrays materialize a new instance on each read.
+     */
     @Override
     public boolean equals(Object o) {
-        return o == this;
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof Permanence)) {
+            return false;
+        }
+        Permanence other = (Permanence) o;
+        return Double.doubleToLongBits(get()) == Double.doubleToLongBits(other.get())
+                && Double.doubleToLongBits(permanentValue()) == Double.doubleToLongBits(other.permanentValue());
     }
 
     @Override
     public int hashCode() {
-        return identityHashCode(this);
+        long bits = Double.doubleToLongBits(get());
+        return (int) (bits ^ (bits >>> 32));
     }
 
     public static interface LimitFunction {
@@ -109,23 +136,17 @@ public abstract class Permanence extends Number {
 
     private static class CompoundPermanence extends Permanence {
 
-        private final Value a;
-        private final Value b;
-        CompoundPermanence(Value a, Value b) {
-            this.a = a;
-            this.b = b;
+        private final double permanent;
+        private final double temporary;
+
+        CompoundPermanence(double permanent, double temporary) {
+            this.permanent = permanent;
+            this.temporary = temporary;
         }
 
         @Override
         public Permanence cullTemporaryValues() {
-            double result = 0D;
-            if (!a.temporary) {
-                result+=a.val;
-            }
-            if (!b.temporary) {
-                result+=b.val;
-            }
-            return new SimplePermanence(result);
+            return new SimplePermanence(permanent);
         }
 
         @Override
@@ -133,13 +154,18 @@ public abstract class Permanence extends Number {
             return new SimplePermanence(get());
         }
 
+        @Override
+        double permanentValue() {
+            return permanent;
+        }
+
         @Override
         public double get() {
-            return a.val + b.val;
+            return permanent + temporary;
         }
         
         public String toString() {
-            return Double.toString(get()) + " (" + a + ", " + b + ")";
+            return Double.toString(get()) + " (" + permanent + ", temporary " + temporary + ")";
         }
 
     }
@@ -161,15 +187,4 @@ public abstract class Permanence extends Number {
             return Double.toString(value);
         }
     }
-
-    private static class Value {
-
-        final double val;
-        final boolean temporary;
-
-        Value(double val, boolean temporary) {
-            this.val = val;
-            this.temporary = temporary;
-        }
-    }
 }
@@ -34,6 +34,31 @@ public abstract class PotentialSynapse<Target> {
     
     public abstract OutputState getTargetState();
 
+    /**
+     * Get the numeric value of this synapse's permanence, including any
+     * temporary values.  Implementations backed by primitive storage override
+     * this to avoid creating a Permanence.
+     *
+     * @return The permanence
+     */
+    public double getPermanenceValue() {
+        return getPermanence().get();
+    }
+
+    /**
+     * Adjust the permanence, returning the resulting numeric value.
+     * Implementations backed by primitive storage override this to avoid
+     * creating a Permanence.
+     *
+     * @param amount The amount to add
+     * @param temporary Whether the amount is temporary, to be later retained
+     * or culled
+     * @return The new permanence value
+     */
+    public double adjustPermanenceValue(double amount, boolean temporary) {
+        return adjustPermanence(amount, temporary).get();
+    }
+
     public Permanence retainTemporaryValues() {
         Permanence old = getPermanence();
         Permanence nue = old.retainTemporaryValues();
@@ -16,6 +16,7 @@
  */
 package com.timboudreau.jhtm;
 
+import com.timboudreau.jhtm.util.IntVisitor;
 import com.timboudreau.jhtm.util.Visitor;
 
 /**
@@ -55,4 +56,25 @@ public abstract class Region<Coordinate> {
         }
         return result;
     }
+
+    /**
+     * Visit the indices of activated columns, in ascending order, without
+     * creating Column objects for the caller.
+     *
+     * @param v A visitor
+     * @return The result of the last visit
+     */
+    public Visitor.Result visitActivatedColumns(IntVisitor v) {
+        int sz = size();
+        Visitor.Result result = Visitor.Result.NO_VISITS;
+        for (int i = 0; i < sz; i++) {
+            if (get(i).isActivated()) {
+                result = v.visit(i);
+                if (result.isDone()) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
 }
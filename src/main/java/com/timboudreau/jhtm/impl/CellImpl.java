@@ -58,7 +58,15 @@ class CellImpl<Coordinate> implements Cell<Coordinate> {
     }
 
     Path<Coordinate2D, ? extends Direction<Coordinate2D>>[] getPaths() {
-        return (Path<Coordinate2D, ? extends Direction<Coordinate2D>>[]) layer.paths[pos];
+        if (layer.paths != null) {
+            return (Path<Coordinate2D, ? extends Direction<Coordinate2D>>[]) layer.paths[pos];
+        }
+        Path<Coordinate2D, ? extends Direction<Coordinate2D>>[] result
+                = (Path<Coordinate2D, ? extends Direction<Coordinate2D>>[]) layer.topology.pathArray(layer.dendritesPerCell);
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (Path<Coordinate2D, ? extends Direction<Coordinate2D>>) (Path<?, ?>) layer.path(pos, i);
+        }
+        return result;
     }
 
     @Override
@@ -94,10 +102,11 @@ class CellImpl<Coordinate> implements Cell<Coordinate> {
 
     @Override
     public <R> Visitor.Result visitDistalConnections(final Visitor<DistalDendriteSegment, R> v, final R outerArg) {
-        Path<Coordinate2D, ? extends Direction<Coordinate2D>>[] pths = this.getPaths();
+        // Generated paths are only generated if a segment needs one
+        Path<Coordinate, ? extends Direction<Coordinate>>[] pths = layer.paths == null ? null : layer.paths[pos];
         Visitor.Result result = Visitor.Result.NO_VISITS;
-        for (int i = 0; i < pths.length; i++) {
-            result = v.visit(new DistalDendriteSegmentImpl(this, i, pths[i]), outerArg);
+        for (int i = 0; i < layer.dendritesPerCell; i++) {
+            result = v.visit(new DistalDendriteSegmentImpl<>(this, i, pths == null ? null : pths[i]), outerArg);
             if (result.isDone()) {
                 break;
             }
@@ -20,6 +20,7 @@ import com.timboudreau.jhtm.Cell;
 import com.timboudreau.jhtm.Column;
 import com.timboudreau.jhtm.ProximalDendriteSegment;
 import com.timboudreau.jhtm.Region;
+import com.timboudreau.jhtm.util.Bits;
 import com.timboudreau.jhtm.util.Visitor;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -91,11 +92,12 @@ class ColumnImpl<Coordinate> implements Column<Coordinate> {
 
     public boolean isPredictivelyActivated() {
         int offset = index * outer.cellsPerColumn;
-        for (int i = 0; i < outer.cellsPerColumn; i++) {
-            if (outer.activatedCells().get(offset + i)) {
-                if (outer.predictiveCells().get(offset + i)) {
-                    return true;
-                }
+        int end = offset + outer.cellsPerColumn;
+        Bits active = outer.activatedCells();
+        Bits predictive = outer.predictiveCells();
+        for (int i = active.nextSetBit(offset); i >= 0 && i < end; i = active.nextSetBit(i + 1)) {
+            if (predictive.get(i)) {
+                return true;
             }
         }
         return false;
@@ -103,13 +105,7 @@ class ColumnImpl<Coordinate> implements Column<Coordinate> {
 
     @Override
     public boolean isActivated() {
-        int offset = index * outer.cellsPerColumn;
-        for (int i = 0; i < outer.cellsPerColumn; i++) {
-            if (outer.activatedCells().get(offset + i)) {
-                return true;
-            }
-        }
-        return false;
+        return outer.activeColumns().get(index);
     }
 
     @Override
@@ -131,14 +127,13 @@ class ColumnImpl<Coordinate> implements Column<Coordinate> {
     public <R> Visitor.Result visitActivatedCells(Visitor<Cell, R> visitor, R arg) {
         Visitor.Result result = Visitor.Result.NO_VISITS;
         int offset = index * outer.cellsPerColumn;
-        for (int i = 0; i < outer.cellsPerColumn; i++) {
-            int pos = offset + i;
-            if (outer.activatedCells().get(pos)) {
-                Cell cell = outer.getCell(pos);
-                result = visitor.visit(cell, arg);
-                if (result.isDone()) {
-                    break;
-                }
+        int end = offset + outer.cellsPerColumn;
+        Bits active = outer.activatedCells();
+        for (int pos = active.nextSetBit(offset); pos >= 0 && pos < end; pos = active.nextSetBit(pos + 1)) {
+            Cell cell = outer.getCell(pos);
+            result = visitor.visit(cell, arg);
+            if (result.isDone()) {
+                break;
             }
         }
         return result;
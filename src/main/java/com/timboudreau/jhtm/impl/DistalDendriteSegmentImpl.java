@@ -17,12 +17,12 @@
 package com.timboudreau.jhtm.impl;
 
 import com.timboudreau.jhtm.Cell;
-import com.timboudreau.jhtm.Column;
 import com.timboudreau.jhtm.DistalDendriteSegment;
+import com.timboudreau.jhtm.Permanence;
 import com.timboudreau.jhtm.PotentialSynapse;
 import com.timboudreau.jhtm.topology.Direction;
 import com.timboudreau.jhtm.topology.Path;
-import com.timboudreau.jhtm.topology.Topology;
+import com.timboudreau.jhtm.util.IntVisitor;
 import com.timboudreau.jhtm.util.Visitor;
 
 /**
@@ -32,8 +32,9 @@ import com.timboudreau.jhtm.util.Visitor;
 class DistalDendriteSegmentImpl<Coordinate> extends DistalDendriteSegment<Coordinate> {
 
     final CellImpl<Coordinate> cell;
-    private final int ix;
-    final Path<Coordinate, ? extends Direction<Coordinate>> path;
+    final int ix;
+    // Null for a procedural layout until needed
+    private Path<Coordinate, ? extends Direction<Coordinate>> path;
 
     DistalDendriteSegmentImpl(final CellImpl<Coordinate> cell, int ix, Path<Coordinate, ? extends Direction<Coordinate>> path) {
         this.cell = cell;
@@ -48,10 +49,13 @@ class DistalDendriteSegmentImpl<Coordinate> extends DistalDendriteSegment<Coordi
 
     @Override
     public String toString() {
-        return "Segment for " + path;
+        return "Segment for " + path();
     }
 
     private Path<Coordinate, ? extends Direction<Coordinate>> path() {
+        if (path == null && cell.layer.isProcedural()) {
+            path = cell.layer.path(cell.index(), ix);
+        }
         return path;
     }
 
@@ -69,7 +73,39 @@ class DistalDendriteSegmentImpl<Coordinate> extends DistalDendriteSegment<Coordi
             }
             result = ((DistalDendriteSegmentImpl<?>) o).getSource().equals(getSource());
             if (result) {
-                result = ((DistalDendriteSegmentImpl<?>) o).path().equals(path);
+                result = ((DistalDendriteSegmentImpl<?>) o).path().equals(path());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void retainTemporaryValues() {
+        DistalPermanenceStore store = cell.layer.snapshot.permanences;
+        long first = store.firstSlot(cell.index(), ix);
+        store.values.commit(first, first + store.slotsPerDendrite());
+    }
+
+    @Override
+    public void cullTemporaryValues() {
+        DistalPermanenceStore store = cell.layer.snapshot.permanences;
+        long first = store.firstSlot(cell.index(), ix);
+        store.values.discard(first, first + store.slotsPerDendrite());
+    }
+
+    @Override
+    public int countSynapsesAboveThreshold(double threshold) {
+        // Each step of the path has one synapse per cell of the column it
+        // reaches, and they occupy consecutive slots
+        DistalPermanenceStore store = cell.layer.snapshot.permanences;
+        long slot = store.firstSlot(cell.index(), ix);
+        int steps = cell.layer.isProcedural() ? cell.layer.segmentColumns(cell.index(), ix).length
+                : path == null ? 0 : path.length();
+        long end = slot + (long) steps * cell.layer.cellsPerColumn;
+        int result = 0;
+        for (; slot < end; slot++) {
+            if (Permanence.LimitFunction.ZERO_TO_ONE.limit(store.values.get(slot)) >= threshold) {
+                result++;
             }
         }
         return result;
@@ -77,11 +113,42 @@ class DistalDendriteSegmentImpl<Coordinate> extends DistalDendriteSegment<Coordi
 
     @Override
     public <J> Visitor.Result visitSynapses(final Visitor<PotentialSynapse<? extends Cell<Coordinate>>, J> visitor, final J midArg) {
-        Coordinate coord = cell.layer.topology.coordinateForIndex(cell.columnIndex());
-        return cell.layer.topology.walk(coord, path, new SynapseOuterVisitor<J, Coordinate>(visitor, midArg, this));
+        DistalPathTable table = cell.layer.distalPaths;
+        if (table != null) {
+            return visitCompiled(table, visitor, midArg);
+        }
+        SynapseOuterVisitor<J, Coordinate> walker = new SynapseOuterVisitor<>(visitor, midArg, this);
+        if (cell.layer.isProcedural()) {
+            Visitor.Result result = Visitor.Result.NO_VISITS;
+            for (int column : cell.layer.segmentColumns(cell.index(), ix)) {
+                result = walker.visit(column);
+                if (result.isDone()) {
+                    break;
+                }
+            }
+            return result;
+        }
+        return cell.layer.topology.walkIndices(cell.columnIndex(), path, walker);
+    }
+
+    private <J> Visitor.Result visitCompiled(DistalPathTable table, Visitor<PotentialSynapse<? extends Cell<Coordinate>>, J> visitor, J midArg) {
+        LayerImpl<Coordinate> layer = cell.layer;
+        int cellsPerColumn = layer.cellsPerColumn;
+        int end = table.end(cell.index(), ix);
+        Visitor.Result result = Visitor.Result.NO_VISITS;
+        for (int entry = table.start(cell.index(), ix), pathIndex = 0; entry < end; entry++, pathIndex++) {
+            int firstCell = table.column(entry) * cellsPerColumn;
+            for (int i = 0; i < cellsPerColumn; i++) {
+                result = visitor.visit(new DistalPotentialSynapse<>(pathIndex, this, layer.getCell(firstCell + i)), midArg);
+                if (result.isDone()) {
+                    return result;
+                }
+            }
+        }
+        return result;
     }
 
-    private static class SynapseOuterVisitor<J, Coordinate> extends Visitor<Coordinate, Topology<Coordinate>> {
+    private static class SynapseOuterVisitor<J, Coordinate> implements IntVisitor {
 
         private final Visitor<PotentialSynapse<? extends Cell<Coordinate>>, J> visitor;
         private final J midArg;
@@ -95,14 +162,12 @@ class DistalDendriteSegmentImpl<Coordinate> extends DistalDendriteSegment<Coordi
         private int pathIndex;
 
         @Override
-        public Visitor.Result visit(Coordinate coordinate, Topology<Coordinate> topology) {
-            int offset = topology.toIndex(coordinate);
-            final Column<Coordinate> column = impl.cell.layer.getColumn(offset);
-//            System.out.println("DistalDendriteSegmentImpl visit " + coordinate + " in " + column);
+        public Visitor.Result visit(int column) {
+            LayerImpl<?> layer = impl.cell.layer;
+            int firstCell = column * layer.cellsPerColumn;
             Visitor.Result result = Visitor.Result.NO_VISITS;
-            for (final Cell<Coordinate> cell : column) {
-//                System.out.println("Visit one cell " + cell.coordinate());
-                result = visitor.visit(new DistalPotentialSynapse(pathIndex, impl, (CellImpl<Coordinate>) cell), midArg);
+            for (int i = 0; i < layer.cellsPerColumn; i++) {
+                result = visitor.visit(new DistalPotentialSynapse(pathIndex, impl, layer.getCell(firstCell + i)), midArg);
                 if (result.isDone()) {
                     break;
                 }
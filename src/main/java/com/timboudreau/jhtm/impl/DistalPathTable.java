@@ -0,0 +1,167 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.topology.Direction;
+import com.timboudreau.jhtm.topology.Path;
+import com.timboudreau.jhtm.topology.Topology;
+import com.timboudreau.jhtm.util.IntVisitor;
+import com.timboudreau.jhtm.util.Visitor;
+import java.util.Arrays;
+
+/**
+ * Compressed-sparse-row table of the presynaptic columns of every distal
+ * dendrite segment in a layer:  the result of walking each segment's path
+ * through the topology, computed once, since it never changes after layout.
+ * The column indices for all segments are stored contiguously in one int
+ * array, in path order, with an offset table recording where each segment's
+ * run starts.  Segment <i>d</i> of cell <i>c</i> is row
+ * <code>c * dendritesPerCell + d</code>.
+ *
+ * @author Tim Boudreau
+ */
+final class DistalPathTable {
+
+    private final int dendritesPerCell;
+    private final int[] offsets;
+    private final int[] columns;
+
+    private DistalPathTable(int dendritesPerCell, int[] offsets, int[] columns) {
+        this.dendritesPerCell = dendritesPerCell;
+        this.offsets = offsets;
+        this.columns = columns;
+    }
+
+    /**
+     * Compile a layer's paths, walking the cells of each shard on its own
+     * thread.  Each shard collects its steps into its own buffer, grown as
+     * needed, and the buffers are concatenated in shard order, so the table
+     * is identical however many threads build it, and nothing is sized for
+     * the longest possible path.  Paths generated by a
+     * ProceduralDistalLayout are generated here, which for a large layer is
+     * the bulk of the cost.
+     */
+    static <Coordinate> DistalPathTable compile(final LayerImpl<Coordinate> layer, Parallelism parallelism) {
+        final int cells = layer.cellCount();
+        final int dendritesPerCell = layer.dendritesPerCell;
+        final int cellsPerColumn = layer.cellsPerColumn;
+        final int[] offsets = new int[cells * dendritesPerCell + 1];
+        final Topology<Coordinate> topology = layer.topology;
+        final int shards = parallelism.shardCount(cells);
+        final int[][] shardColumns = new int[shards][];
+        final int[] shardSizes = new int[shards];
+        parallelism.run(cells, new Parallelism.Shard() {
+
+            @Override
+            public void compute(final int shard, int from, int to) {
+                // Guess a few steps per segment;  the buffer grows from there
+                shardColumns[shard] = new int[(int) Math.min(1 << 24,
+                        Math.max(16L, (to - from) * (long) dendritesPerCell * 4))];
+                IntVisitor collector = new IntVisitor() {
+
+                    @Override
+                    public Visitor.Result visit(int column) {
+                        int[] buf = shardColumns[shard];
+                        if (shardSizes[shard] == buf.length) {
+                            buf = shardColumns[shard] = Arrays.copyOf(buf, buf.length + (buf.length >> 1));
+                        }
+                        buf[shardSizes[shard]++] = column;
+                        return Visitor.Result.NOT_DONE;
+                    }
+                };
+                int row = from * dendritesPerCell;
+                for (int cell = from; cell < to; cell++) {
+                    int start = cell / cellsPerColumn;
+                    for (int d = 0; d < dendritesPerCell; d++) {
+                        // Relative to the shard until its base is known
+                        offsets[row++] = shardSizes[shard];
+                        Path<Coordinate, ? extends Direction<Coordinate>> path = layer.path(cell, d);
+                        if (path != null) {
+                            topology.walkIndices(start, path, collector);
+                        }
+                    }
+                }
+            }
+        });
+        long total = 0;
+        for (int size : shardSizes) {
+            total += size;
+        }
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many distal path steps to "
+                    + "compile: " + total);
+        }
+        int[] columns = shards == 1 && shardSizes[0] == shardColumns[0].length
+                ? shardColumns[0] : new int[(int) total];
+        int base = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            int from = Parallelism.shardStart(cells, shards, shard) * dendritesPerCell;
+            int to = Parallelism.shardStart(cells, shards, shard + 1) * dendritesPerCell;
+            for (int row = from; row < to; row++) {
+                offsets[row] += base;
+            }
+            if (columns != shardColumns[shard]) {
+                System.arraycopy(shardColumns[shard], 0, columns, base, shardSizes[shard]);
+            }
+            // Let each buffer go as soon as it is copied
+            shardColumns[shard] = null;
+            base += shardSizes[shard];
+        }
+        offsets[offsets.length - 1] = base;
+        return new DistalPathTable(dendritesPerCell, offsets, columns);
+    }
+
+    /**
+     * The index of the first entry for a segment.
+     */
+    int start(int cell, int dendrite) {
+        return offsets[cell * dendritesPerCell + dendrite];
+    }
+
+    /**
+     * One past the index of the last entry for a segment.
+     */
+    int end(int cell, int dendrite) {
+        return offsets[cell * dendritesPerCell + dendrite + 1];
+    }
+
+    /**
+     * The presynaptic column at an entry.
+     */
+    int column(int entry) {
+        return columns[entry];
+    }
+
+    /**
+     * The number of segments (rows) in the table.
+     */
+    int segmentCount() {
+        return offsets.length - 1;
+    }
+
+    int dendritesPerCell() {
+        return dendritesPerCell;
+    }
+
+    int size() {
+        return columns.length;
+    }
+
+    int sizeInBytes() {
+        return (offsets.length + columns.length) * 4;
+    }
+}
@@ -0,0 +1,160 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.Permanence;
+import com.timboudreau.jhtm.util.OffHeapMemory;
+import java.io.Serializable;
+
+/**
+ * Stores the permanence of every potential distal synapse in a layer in flat
+ * primitive arrays, rather than in maps of boxed integers to Permanence
+ * objects.  A synapse is addressed by the owning cell, the index of the
+ * dendrite on that cell, the step along the dendrite's path, and the index of
+ * the target cell within the column found at that step;  those four values are
+ * collapsed into a single array offset.  The synapses of one dendrite occupy
+ * a contiguous range of offsets.
+ * <p/>
+ * Each synapse costs four bytes of committed permanence, plus four more for
+ * pending temporary adjustments if any have ever been made, versus (on a 64
+ * bit VM) a HashMap entry, a boxed Integer key and a Permanence object - well
+ * over 60 bytes - in the nested-map layout this replaces.
+ *
+ * @author Tim Boudreau
+ */
+final class DistalPermanenceStore implements Serializable {
+
+    private final int cellsPerColumn;
+    private final int dendritesPerCell;
+    private final int maxPathLength;
+    final PermanenceArray values;
+
+    DistalPermanenceStore(int totalCells, int cellsPerColumn, int dendritesPerCell, int maxPathLength) {
+        this(totalCells, cellsPerColumn, dendritesPerCell, maxPathLength, null);
+    }
+
+    DistalPermanenceStore(int totalCells, int cellsPerColumn, int dendritesPerCell, int maxPathLength, OffHeapMemory memory) {
+        this.cellsPerColumn = cellsPerColumn;
+        this.dendritesPerCell = dendritesPerCell;
+        this.maxPathLength = maxPathLength;
+        values = new PermanenceArray((long) totalCells * dendritesPerCell * maxPathLength * cellsPerColumn, memory);
+    }
+
+    DistalPermanenceStore(int cellsPerColumn, int dendritesPerCell, int maxPathLength, PermanenceArray values) {
+        this.cellsPerColumn = cellsPerColumn;
+        this.dendritesPerCell = dendritesPerCell;
+        this.maxPathLength = maxPathLength;
+        this.values = values;
+    }
+
+    private DistalPermanenceStore(DistalPermanenceStore other) {
+        this.cellsPerColumn = other.cellsPerColumn;
+        this.dendritesPerCell = other.dendritesPerCell;
+        this.maxPathLength = other.maxPathLength;
+        this.values = other.values.copy();
+    }
+
+    DistalPermanenceStore copy() {
+        return new DistalPermanenceStore(this);
+    }
+
+    long slot(int cell, int dendrite, int step, int cellInColumn) {
+        assert dendrite < dendritesPerCell && step < maxPathLength && cellInColumn < cellsPerColumn;
+        return ((((long) cell * dendritesPerCell + dendrite) * maxPathLength) + step) * cellsPerColumn + cellInColumn;
+    }
+
+    /**
+     * The first slot of a dendrite's synapses.
+     */
+    long firstSlot(int cell, int dendrite) {
+        return slot(cell, dendrite, 0, 0);
+    }
+
+    /**
+     * The number of slots occupied by each dendrite.
+     */
+    int slotsPerDendrite() {
+        return maxPathLength * cellsPerColumn;
+    }
+
+    long size() {
+        return values.size();
+    }
+
+    int maxPathLength() {
+        return maxPathLength;
+    }
+
+    int cellsPerColumn() {
+        return cellsPerColumn;
+    }
+
+    int dendritesPerCell() {
+        return dendritesPerCell;
+    }
+
+    long sizeInBytes() {
+        return values.sizeInBytes();
+    }
+
+    double value(long slot) {
+        return values.get(slot);
+    }
+
+    Permanence get(long slot) {
+        return values.permanence(slot);
+    }
+
+    Permanence add(long slot, double amount, boolean temp) {
+        values.add(slot, amount, temp);
+        return values.permanence(slot);
+    }
+
+    Permanence set(long slot, Permanence permanence) {
+        return values.set(slot, permanence);
+    }
+
+    boolean hasPermanence(int cell, int dendrite, int step) {
+        long start = slot(cell, dendrite, step, 0);
+        for (long i = start; i < start + cellsPerColumn; i++) {
+            if (values.get(i) > 0D) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return values.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof DistalPermanenceStore)) {
+            return false;
+        }
+        DistalPermanenceStore other = (DistalPermanenceStore) o;
+        return other.cellsPerColumn == cellsPerColumn
+                && other.dendritesPerCell == dendritesPerCell
+                && other.maxPathLength == maxPathLength
+                && values.equals(other.values);
+    }
+}
@@ -45,7 +45,53 @@ public class DistalPotentialSynapse<Coordinate> extends PotentialSynapse<Cell<Co
 
     @Override
     public Permanence getPermanence() {
-        return segment.cell.layer.snapshot.getPermanences(segment.path).getPermanence(pathIndex, cell.indexInColumn());
+        return permanences().getPermanence(pathIndex, cell.indexInColumn());
+    }
+
+    private long slot() {
+        return store().slot(segment.cell.index(), segment.ix, pathIndex, cell.indexInColumn());
+    }
+
+    private DistalPermanenceStore store() {
+        return segment.cell.layer.snapshot.permanences;
+    }
+
+    @Override
+    public double getPermanenceValue() {
+        return store().value(slot());
+    }
+
+    @Override
+    public double adjustPermanenceValue(double amount, boolean temporary) {
+        return store().values.add(slot(), amount, temporary);
+    }
+
+    @Override
+    public Permanence retainTemporaryValues() {
+        long slot = slot();
+        DistalPermanenceStore store = store();
+        store.values.commit(slot);
+        return store.get(slot);
+    }
+
+    @Override
+    public Permanence cullTemporaryValues() {
+        long slot = slot();
+        DistalPermanenceStore store = store();
+        store.values.discard(slot);
+        return store.get(slot);
+    }
+
+    private LayerSnapshot.PermanenceInfo permanences() {
+        return segment.cell.layer.snapshot.getPermanences(segment.cell.index(), segment.ix);
+    }
+
+    CellImpl<Coordinate> presynapticCell() {
+        return cell;
+    }
+
+    int pathIndex() {
+        return pathIndex;
     }
 
     private DistalDendriteSegmentImpl seg() {
@@ -90,12 +136,12 @@ public class DistalPotentialSynapse<Coordinate> extends PotentialSynapse<Cell<Co
 
     @Override
     public Permanence adjustPermanence(double amount, boolean temporary) {
-        return segment.cell.layer.snapshot.getPermanences(segment.path).updatePermanence(pathIndex, cell.indexInColumn(), amount, temporary);
+        return permanences().updatePermanence(pathIndex, cell.indexInColumn(), amount, temporary);
     }
 
     @Override
     public Permanence setPermanence(Permanence pp) {
-        return segment.cell.layer.snapshot.getPermanences(segment.path).setPermanence(cell.index(), cell.columnIndex(), pp);
+        return permanences().setPermanence(pathIndex, cell.indexInColumn(), pp);
     }
 
     @Override
@@ -0,0 +1,113 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.system.Layer;
+import com.timboudreau.jhtm.topology.Direction;
+import com.timboudreau.jhtm.topology.Path;
+import com.timboudreau.jhtm.topology.Topology;
+import java.util.Random;
+
+/**
+ * A procedural distal layout:  each segment's path is random, drawn from a
+ * Random seeded with a hash of the layout's seed, the cell index and the
+ * dendrite index, so it can be regenerated whenever it is needed instead of
+ * stored.  A LayerImpl created with one stores no Path objects at all, and
+ * constructing it costs nothing for the layout.  The paths are the same
+ * ones a ParallelDistalLayoutFactory with the same seed and length would
+ * store.
+ * <p/>
+ * Regenerating a path costs about as much as generating it in the first
+ * place, so a layer which will visit the same segments repeatedly should
+ * either compile its distal paths (four bytes per step, with no Path
+ * objects), or be given a cache of the most recently used segments' columns
+ * here.
+ * <p/>
+ * A TemporalMemory compiles the paths, and indexes them by presynaptic
+ * column (eight more bytes per step), when it is constructed.  That
+ * regenerates every path once, so the cost of laying out the layer is paid
+ * then rather than at construction;  it is spread across threads by the
+ * Parallelism the TemporalMemory is given.
+ *
+ * @author Tim Boudreau
+ */
+public final class HashedDistalLayoutFactory<Coordinate> implements LayerImpl.ProceduralDistalLayout<Coordinate> {
+
+    private final long seed;
+    private final int dendriteLength;
+    private final int cacheSize;
+
+    public HashedDistalLayoutFactory(long seed, int dendriteLength) {
+        this(seed, dendriteLength, 0);
+    }
+
+    /**
+     * Create a layout.
+     *
+     * @param seed The seed
+     * @param dendriteLength The number of steps in each path
+     * @param cacheSize The number of segments whose presynaptic columns a
+     * layer should cache, or zero
+     */
+    public HashedDistalLayoutFactory(long seed, int dendriteLength, int cacheSize) {
+        if (dendriteLength < 0) {
+            throw new IllegalArgumentException("Negative dendrite length " + dendriteLength);
+        }
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Negative cache size " + cacheSize);
+        }
+        this.seed = seed;
+        this.dendriteLength = dendriteLength;
+        this.cacheSize = cacheSize;
+    }
+
+    @Override
+    public Path<Coordinate, ? extends Direction<Coordinate>> pathFor(Topology<Coordinate> topology, int cellsPerColumn, int cell, int dendrite) {
+        Random random = new Random(ParallelDistalLayoutFactory.seedFor(seed, cell, dendrite));
+        return topology.createRandom(random, topology.coordinateForIndex(cell / cellsPerColumn), dendriteLength);
+    }
+
+    @Override
+    public int maxPathLength() {
+        return dendriteLength;
+    }
+
+    @Override
+    public int cacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Store every path, for a layer which does not support procedural
+     * layouts.
+     */
+    @Override
+    public void createLayout(Topology<Coordinate> topology, Layer<Coordinate> layer, int columnCount, int cellsPerColumn, int distalDendritesPerCell, LayerImpl.DistalDendrites addTo) {
+        int totalCells = columnCount * cellsPerColumn;
+        for (int cell = 0; cell < totalCells; cell++) {
+            for (int d = 0; d < distalDendritesPerCell; d++) {
+                addTo.add(pathFor(topology, cellsPerColumn, cell, d), cell, d);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HashedDistalLayoutFactory(" + seed + ", " + dendriteLength
+                + ", cache " + cacheSize + ")";
+    }
+}
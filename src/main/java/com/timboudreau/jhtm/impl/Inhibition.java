@@ -0,0 +1,209 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.topology.Neighborhood;
+import com.timboudreau.jhtm.util.Bits;
+import java.util.Arrays;
+
+/**
+ * Chooses winning columns from per-column scores, such as boosted overlaps.
+ * Global inhibition picks the highest-scoring columns of the whole layer;
+ * local inhibition lets a column win if it is among the highest-scoring in
+ * its own neighborhood.  Columns with a score of zero or less never win.
+ * Ties are always broken toward the lower column index, so results are
+ * deterministic.
+ * <p/>
+ * Global selection is linear-time:  scores are packed into keys and
+ * partially ordered with quickselect, so only the winners are separated from
+ * the rest rather than the whole layer being sorted.  Instances keep their
+ * scratch space between calls, so are not thread-safe.
+ *
+ * @author Tim Boudreau
+ */
+public abstract class Inhibition {
+
+    Inhibition() {
+    }
+
+    /**
+     * Create global inhibition.
+     *
+     * @param columnCount The number of columns
+     * @param density The fraction of columns which should win
+     * @return An inhibition
+     */
+    public static Inhibition global(int columnCount, double density) {
+        return new Global(columnCount, Math.max(1, (int) Math.round(columnCount * density)));
+    }
+
+    /**
+     * Create local inhibition, in which a column wins if fewer than
+     * <code>density * size</code> of the columns in its neighborhood of that
+     * size outscore it.
+     *
+     * @param neighborhood The neighborhoods, such as from
+     * Topology.neighborhood()
+     * @param density The fraction of each neighborhood which should win
+     * @return An inhibition
+     */
+    public static Inhibition local(Neighborhood neighborhood, double density) {
+        return new Local(neighborhood, density);
+    }
+
+    /**
+     * Choose winners.
+     *
+     * @param scores The score of each column
+     * @param winners Cleared, then set to the winning columns
+     * @return The number of winners
+     */
+    public abstract int inhibit(float[] scores, Bits winners);
+
+    /**
+     * Pack a score and column into a long which orders by score and then
+     * toward the lower column.  Scores must be positive, so that their bits
+     * sort the same as their values.
+     */
+    static long key(float score, int column) {
+        return ((long) Float.floatToIntBits(score) << 32) | (Integer.MAX_VALUE - column);
+    }
+
+    static int column(long key) {
+        return Integer.MAX_VALUE - (int) key;
+    }
+
+    /**
+     * Rearrange keys so that the <code>count</code> largest of the first
+     * <code>size</code> occupy the end of that range, in no particular
+     * order.  Falls back to sorting if partitioning goes badly, so the worst
+     * case is n log n.
+     */
+    static void selectLargest(long[] keys, int size, int count) {
+        int target = size - count;
+        if (count <= 0 || target <= 0) {
+            return;
+        }
+        int lo = 0;
+        int hi = size - 1;
+        int budget = 2 * (32 - Integer.numberOfLeadingZeros(size));
+        while (hi > lo) {
+            if (budget-- == 0) {
+                Arrays.sort(keys, lo, hi + 1);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            long pivot = medianOfThree(keys[lo], keys[mid], keys[hi]);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    long tmp = keys[i];
+                    keys[i++] = keys[j];
+                    keys[j--] = tmp;
+                }
+            }
+            // Now keys[lo..j] <= pivot <= keys[i..hi]
+            if (target <= j) {
+                hi = j;
+            } else if (target >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static long medianOfThree(long a, long b, long c) {
+        if (a < b) {
+            return b < c ? b : a < c ? c : a;
+        }
+        return a < c ? a : b < c ? c : b;
+    }
+
+    private static final class Global extends Inhibition {
+
+        private final long[] keys;
+        private final int winnerCount;
+
+        Global(int columnCount, int winnerCount) {
+            this.keys = new long[columnCount];
+            this.winnerCount = winnerCount;
+        }
+
+        @Override
+        public int inhibit(float[] scores, Bits winners) {
+            winners.clear();
+            int eligible = 0;
+            for (int column = 0; column < scores.length; column++) {
+                if (scores[column] > 0F) {
+                    keys[eligible++] = key(scores[column], column);
+                }
+            }
+            int count = Math.min(winnerCount, eligible);
+            selectLargest(keys, eligible, count);
+            for (int i = eligible - count; i < eligible; i++) {
+                winners.set(column(keys[i]));
+            }
+            return count;
+        }
+    }
+
+    private static final class Local extends Inhibition {
+
+        private final Neighborhood neighborhood;
+        private final double density;
+
+        Local(Neighborhood neighborhood, double density) {
+            this.neighborhood = neighborhood;
+            this.density = density;
+        }
+
+        @Override
+        public int inhibit(float[] scores, Bits winners) {
+            winners.clear();
+            int result = 0;
+            for (int column = 0; column < scores.length; column++) {
+                float score = scores[column];
+                if (score <= 0F) {
+                    continue;
+                }
+                long own = key(score, column);
+                int allowed = Math.max(1, (int) Math.round(neighborhood.size(column) * density));
+                int better = 0;
+                int end = neighborhood.end(column);
+                for (int i = neighborhood.start(column); i < end && better < allowed; i++) {
+                    int other = neighborhood.get(i);
+                    if (scores[other] > 0F && key(scores[other], other) > own) {
+                        better++;
+                    }
+                }
+                if (better < allowed) {
+                    winners.set(column);
+                    result++;
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -24,18 +24,19 @@ import com.timboudreau.jhtm.OutputState;
 import com.timboudreau.jhtm.Permanence;
 import com.timboudreau.jhtm.PotentialSynapse;
 import com.timboudreau.jhtm.ProximalDendriteSegment;
-import com.timboudreau.jhtm.impl.ColumnImpl;
 import com.timboudreau.jhtm.system.Input;
 import com.timboudreau.jhtm.system.InputMapping;
 import com.timboudreau.jhtm.system.InputMapping.ProximalDendriteBuilder;
 import com.timboudreau.jhtm.system.InputMapping.SynapseFactory;
 import com.timboudreau.jhtm.system.Thresholds;
+import com.timboudreau.jhtm.util.Bits;
+import com.timboudreau.jhtm.util.OverlapVisitor;
 import com.timboudreau.jhtm.util.Snapshottable;
+import com.timboudreau.jhtm.util.SynapseVisitor;
 import com.timboudreau.jhtm.util.Visitor;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -45,26 +46,41 @@ import java.util.Map;
 public class InputMappingImpl<T, Coordinate> extends InputMapping<T, Coordinate> implements Snapshottable<InputMappingSnapshot> {
 
     private final Thresholds thresholds;
-    private InputMappingSnapshot snapshot = new InputMappingSnapshot();
+    private InputMappingSnapshot snapshot = new InputMappingSnapshot(null);
+    private ProximalSynapseTable.Builder builder;
 
     public InputMappingImpl(Input<T> input, SynapseFactory<T, Coordinate> connections, LayerImpl layer, Thresholds thresholds) {
         super(input, connections, layer);
         this.thresholds = thresholds;
-        init();
+        checkInit();
     }
 
     @Override
-    protected ProximalDendriteBuilder<T, Coordinate> connector() {
+    protected void init() {
+        super.init();
+        synchronized (this) {
+            if (builder != null) {
+                snapshot = new InputMappingSnapshot(builder.build(thresholds.defaultPermanence()));
+                builder = null;
+            }
+        }
+    }
+
+    @Override
+    protected synchronized ProximalDendriteBuilder<T, Coordinate> connector() {
+        final ProximalSynapseTable.Builder rows = builder = new ProximalSynapseTable.Builder(layer().size());
         return new ProximalDendriteBuilder<T, Coordinate>() {
-            private final List<InputBit<T>> bits = new LinkedList<>();
+            private int[] bits = new int[16];
+            private int count;
             private Column<Coordinate> column;
 
             public synchronized ProximalDendriteImpl save() {
                 ProximalDendriteImpl result = null;
                 if (column != null) {
-                    result = new ProximalDendriteImpl(column, bits, thresholds);
+                    rows.setRow(column.index(), bits, count);
+                    result = new ProximalDendriteImpl(column.index());
                 }
-                bits.clear();
+                count = 0;
                 column = null;
                 return result;
             }
@@ -86,8 +102,11 @@ public class InputMappingImpl<T, Coordinate> extends InputMapping<T, Coordinate>
             }
 
             @Override
-            public void add(InputBit<T> bit) {
-                bits.add(bit);
+            public synchronized void add(InputBit<T> bit) {
+                if (count == bits.length) {
+                    bits = Arrays.copyOf(bits, bits.length * 2);
+                }
+                bits[count++] = bit.index();
             }
         };
     }
@@ -95,8 +114,13 @@ public class InputMappingImpl<T, Coordinate> extends InputMapping<T, Coordinate>
     @Override
     protected <R> Visitor.Result doVisitProximalDendriteSegments(Visitor<ProximalDendriteSegment, R> v, R arg) {
         Visitor.Result result = Visitor.Result.NO_VISITS;
-        for (Map.Entry<Integer, Map<Integer, Permanence>> e : currentSnapshot().permanencesForColumn.entrySet()) {
-            ProximalDendriteImpl impl = new ProximalDendriteImpl(e.getKey(), thresholds);
+        ProximalSynapseTable synapses = currentSnapshot().synapses;
+        int columns = synapses == null ? 0 : synapses.columnCount();
+        for (int i = 0; i < columns; i++) {
+            if (synapses.end(i) == synapses.start(i)) {
+                continue;
+            }
+            ProximalDendriteImpl impl = new ProximalDendriteImpl(i);
             result = v.visit(impl, arg);
             if (result.isDone()) {
                 break;
@@ -105,9 +129,124 @@ public class InputMappingImpl<T, Coordinate> extends InputMapping<T, Coordinate>
         return result;
     }
 
+    @Override
+    protected Visitor.Result doVisitProximalSynapses(SynapseVisitor v) {
+        Visitor.Result result = Visitor.Result.NO_VISITS;
+        ProximalSynapseTable synapses = currentSnapshot().synapses;
+        int columns = synapses == null ? 0 : synapses.columnCount();
+        for (int column = 0; column < columns; column++) {
+            int end = synapses.end(column);
+            for (int i = synapses.start(column); i < end; i++) {
+                result = v.visit(column, synapses.bit(i), (float) synapses.value(i));
+                if (result.isDone()) {
+                    return result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected Visitor.Result doVisitOverlaps(Bits activeInputs, double connectedPermanence, OverlapVisitor v) {
+        Visitor.Result result = Visitor.Result.NO_VISITS;
+        ProximalSynapseTable synapses = currentSnapshot().synapses;
+        int columns = synapses == null ? 0 : synapses.columnCount();
+        if (columns == 0) {
+            return result;
+        }
+        // Testing a plain bitmap costs a shift and a mask per synapse, where
+        // some kinds of Bits box
+        long[] words = ProximalSynapseTable.load(activeInputs, new long[(activeInputs.size() + 63) >>> 6]);
+        for (int column = 0; column < columns; column++) {
+            result = v.visit(column, synapses.overlap(column, words, connectedPermanence));
+            if (result.isDone()) {
+                break;
+            }
+        }
+        return result;
+    }
+
     @Override
     protected ProximalDendriteSegment getSegmentFor(Column<Coordinate> column) {
-        return new ProximalDendriteImpl(column.index(), thresholds);
+        return new ProximalDendriteImpl(column.index());
+    }
+
+    /**
+     * Get the set of input bits which are currently active.
+     *
+     * @return A set of bits
+     */
+    public Bits activeInputs() {
+        Bits result = Bits.create(input.size());
+        for (InputBit<T> bit : input) {
+            if (bit.isActive()) {
+                result.set(bit.index());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compute the overlap of one column with the passed active inputs - the
+     * number of its proximal synapses which are both connected and attached
+     * to an active input bit.
+     *
+     * @param column The column index
+     * @param activeInputs The active input bits
+     * @param connectedPermanence The permanence at or above which a synapse
+     * is considered connected
+     * @return The number of overlapping synapses
+     */
+    public int overlap(int column, Bits activeInputs, double connectedPermanence) {
+        checkInit();
+        ProximalSynapseTable synapses = currentSnapshot().synapses;
+        return synapses == null ? 0 : synapses.overlap(column, activeInputs, connectedPermanence);
+    }
+
+    /**
+     * Compute the overlap of every column with the passed active inputs.
+     *
+     * @param activeInputs The active input bits
+     * @param connectedPermanence The permanence at or above which a synapse
+     * is considered connected
+     * @param into An array at least as large as the number of columns
+     * @return The array passed in
+     */
+    public int[] overlaps(Bits activeInputs, double connectedPermanence, int[] into) {
+        checkInit();
+        ProximalSynapseTable synapses = currentSnapshot().synapses;
+        int columns = synapses == null ? 0 : synapses.columnCount();
+        if (columns > 0) {
+            long[] words = ProximalSynapseTable.load(activeInputs, new long[(activeInputs.size() + 63) >>> 6]);
+            for (int i = 0; i < columns; i++) {
+                into[i] = synapses.overlap(i, words, connectedPermanence);
+            }
+        }
+        return into;
+    }
+
+    /**
+     * Make all temporary permanence adjustments to proximal synapses
+     * permanent, without allocating.
+     */
+    public void retainTemporaryValues() {
+        checkInit();
+        ProximalSynapseTable synapses = currentSnapshot().synapses;
+        if (synapses != null) {
+            synapses.values.commit();
+        }
+    }
+
+    /**
+     * Discard all temporary permanence adjustments to proximal synapses,
+     * without allocating.
+     */
+    public void cullTemporaryValues() {
+        checkInit();
+        ProximalSynapseTable synapses = currentSnapshot().synapses;
+        if (synapses != null) {
+            synapses.values.discard();
+        }
     }
 
     @Override
@@ -122,30 +261,75 @@ public class InputMappingImpl<T, Coordinate> extends InputMapping<T, Coordinate>
         return old;
     }
 
+    /**
+     * Write the current state of this mapping to a file, in a binary format
+     * which restore(Path) can memory-map.
+     *
+     * @param file The file
+     * @throws IOException If something goes wrong
+     */
+    public void save(Path file) throws IOException {
+        checkInit();
+        snapshot().save(file);
+    }
+
+    /**
+     * Replace the state of this mapping with a snapshot previously written by
+     * save().
+     *
+     * @param file The file
+     * @return The previous state
+     * @throws IOException If the file is not a snapshot of an input mapping
+     * like this one, or is corrupt
+     */
+    public InputMappingSnapshot restore(Path file) throws IOException {
+        checkInit();
+        InputMappingSnapshot loaded = InputMappingSnapshot.load(file);
+        ProximalSynapseTable synapses = loaded.synapses;
+        if (synapses != null) {
+            if (synapses.columnCount() != layer().size()) {
+                throw new IOException("Snapshot in " + file + " is for "
+                        + synapses.columnCount() + " columns, not " + layer().size());
+            }
+            int inputBits = input().size();
+            for (int i = 0; i < synapses.size(); i++) {
+                int bit = synapses.bit(i);
+                if (bit < 0 || bit >= inputBits) {
+                    throw new IOException("Snapshot in " + file + " connects to input bit "
+                            + bit + " of an input of " + inputBits + " bits");
+                }
+            }
+        }
+        return restore(loaded);
+    }
+
     private synchronized InputMappingSnapshot currentSnapshot() {
         return snapshot;
     }
 
+    Thresholds thresholds() {
+        return thresholds;
+    }
+
+    ProximalSynapseTable synapses() {
+        checkInit();
+        return currentSnapshot().synapses;
+    }
+
+    synchronized Map<Integer, BoostFactor> boostFactors() {
+        return currentSnapshot().boostFactorForColumn;
+    }
+
     private class ProximalDendriteImpl<Coordinate> extends ProximalDendriteSegment<Coordinate, T> {
 
         private final int column;
 
-        ProximalDendriteImpl(int column, Thresholds tolerances) {
+        ProximalDendriteImpl(int column) {
             this.column = column;
         }
 
-        ProximalDendriteImpl(Column<Coordinate> column, List<InputBit<T>> l, Thresholds tolerances) {
-            this.column = column.index();
-            InputMappingSnapshot snap = currentSnapshot();
-            Map<Integer, Permanence> permanenceForBit = new HashMap<>();
-            snap.permanencesForColumn.put(this.column, permanenceForBit);
-            for (InputBit bit : l) {
-                permanenceForBit.put(bit.index(), Permanence.create(tolerances.defaultPermanence()));
-            }
-        }
-
         public synchronized BoostFactor getBoostFactor() {
-            BoostFactor factor = snapshot.boostFactorForColumn.get(column);
+            BoostFactor factor = currentSnapshot().boostFactorForColumn.get(column);
             return factor == null ? BoostFactor.DEFAULT : factor;
         }
 
@@ -157,20 +341,14 @@ public class InputMappingImpl<T, Coordinate> extends InputMapping<T, Coordinate>
             return column == col.index();
         }
 
-        private Map<Integer, Permanence> permanenceForBit() {
-            Map<Integer, Permanence> map = snapshot.permanencesForColumn.get(column);
-            return map == null ? Collections.<Integer, Permanence>emptyMap() : map;
-        }
-
-        @SuppressWarnings("element-type-mismatch")
         public boolean contains(InputBit<?> bit) {
-            Map<Integer, Permanence> permanenceForBit = permanenceForBit();
-            return permanenceForBit == null ? false : permanenceForBit.containsKey(bit.index());
+            ProximalSynapseTable synapses = currentSnapshot().synapses;
+            return synapses != null && synapses.indexOf(column, bit.index()) >= 0;
         }
 
         public int size() {
-            Map<Integer, Permanence> permanenceForBit = permanenceForBit();
-            return permanenceForBit == null ? 0 : permanenceForBit.size();
+            ProximalSynapseTable synapses = currentSnapshot().synapses;
+            return synapses == null ? 0 : synapses.end(column) - synapses.start(column);
         }
 
         @Override
@@ -179,70 +357,134 @@ public class InputMappingImpl<T, Coordinate> extends InputMapping<T, Coordinate>
         }
 
         @Override
-        public <R> Visitor.Result visitSynapses(Visitor<PotentialSynapse<? extends InputBit<T>>, R> visitor, R arg) {
-            Visitor.Result result = Visitor.Result.NO_VISITS;
-            Map<Integer, Permanence> permanenceForBit = permanenceForBit();
-            for (final Map.Entry<Integer, Permanence> e : permanenceForBit.entrySet()) {
-                class PC extends PotentialSynapse<InputBit<T>> {
-
-                    @Override
-                    public Permanence setPermanence(Permanence p) {
-                        e.setValue(p);
-                        return p;
-                    }
-
-                    @Override
-                    public Permanence getPermanence() {
-                        return e.getValue();
-                    }
-
-                    @Override
-                    public Permanence adjustPermanence(double amount, boolean temporary) {
-                        Permanence p = getPermanence().add(amount, temporary);
-                        e.setValue(p);
-                        return p;
-                    }
-
-                    @Override
-                    public DendriteSegment getDendriteSegment() {
-                        return ProximalDendriteImpl.this;
-                    }
-
-                    InputBit<T> bit() {
-                        return input.get(e.getKey());
-                    }
-
-                    @Override
-                    public boolean equals(Object o) {
-                        return o != null && o.getClass() == getClass() && ((PC) o).bit().equals(bit());
-                    }
-
-                    @Override
-                    public int hashCode() {
-                        return bit().index() * 7639;
-                    }
-
-                    public String toString() {
-                        return "Synapse " + column + " bit " + bit();
-                    }
-
-                    @Override
-                    public InputBit<T> getTarget() {
-                        return bit();
-                    }
-
-                    @Override
-                    public OutputState getTargetState() {
-                        return bit().isActive() ? OutputState.ACTIVE : OutputState.INACTIVE;
-                    }
+        public void retainTemporaryValues() {
+            ProximalSynapseTable synapses = currentSnapshot().synapses;
+            if (synapses != null) {
+                synapses.values.commit(synapses.start(column), synapses.end(column));
+            }
+        }
+
+        @Override
+        public void cullTemporaryValues() {
+            ProximalSynapseTable synapses = currentSnapshot().synapses;
+            if (synapses != null) {
+                synapses.values.discard(synapses.start(column), synapses.end(column));
+            }
+        }
 
+        @Override
+        public int countSynapsesAboveThreshold(double threshold) {
+            ProximalSynapseTable synapses = currentSnapshot().synapses;
+            if (synapses == null) {
+                return 0;
+            }
+            int result = 0;
+            int end = synapses.end(column);
+            for (int i = synapses.start(column); i < end; i++) {
+                if (Permanence.LimitFunction.ZERO_TO_ONE.limit(synapses.value(i)) >= threshold) {
+                    result++;
                 }
-                result = visitor.visit(new PC(), arg);
+            }
+            return result;
+        }
+
+        @Override
+        public <R> Visitor.Result visitSynapses(Visitor<PotentialSynapse<? extends InputBit<T>>, R> visitor, R arg) {
+            Visitor.Result result = Visitor.Result.NO_VISITS;
+            ProximalSynapseTable synapses = currentSnapshot().synapses;
+            if (synapses == null) {
+                return result;
+            }
+            int end = synapses.end(column);
+            for (int i = synapses.start(column); i < end; i++) {
+                result = visitor.visit(new ProximalSynapse(synapses, i), arg);
                 if (result.isDone()) {
                     break;
                 }
             }
             return result;
         }
+
+        private final class ProximalSynapse extends PotentialSynapse<InputBit<T>> {
+
+            private final ProximalSynapseTable synapses;
+            private final int index;
+
+            ProximalSynapse(ProximalSynapseTable synapses, int index) {
+                this.synapses = synapses;
+                this.index = index;
+            }
+
+            @Override
+            public Permanence setPermanence(Permanence p) {
+                synapses.set(index, p);
+                return p;
+            }
+
+            @Override
+            public Permanence getPermanence() {
+                return synapses.get(index);
+            }
+
+            @Override
+            public Permanence adjustPermanence(double amount, boolean temporary) {
+                return synapses.add(index, amount, temporary);
+            }
+
+            @Override
+            public double getPermanenceValue() {
+                return synapses.value(index);
+            }
+
+            @Override
+            public double adjustPermanenceValue(double amount, boolean temporary) {
+                return synapses.values.add(index, amount, temporary);
+            }
+
+            @Override
+            public Permanence retainTemporaryValues() {
+                synapses.values.commit(index);
+                return synapses.get(index);
+            }
+
+            @Override
+            public Permanence cullTemporaryValues() {
+                synapses.values.discard(index);
+                return synapses.get(index);
+            }
+
+            @Override
+            public DendriteSegment getDendriteSegment() {
+                return ProximalDendriteImpl.this;
+            }
+
+            InputBit<T> bit() {
+                return input.get(synapses.bit(index));
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                return o != null && o.getClass() == getClass() && ((ProximalSynapse) o).bit().equals(bit());
+            }
+
+            @Override
+            public int hashCode() {
+                return synapses.bit(index) * 7639;
+            }
+
+            public String toString() {
+                return "Synapse " + column + " bit " + bit();
+            }
+
+            @Override
+            public InputBit<T> getTarget() {
+                return bit();
+            }
+
+            @Override
+            public OutputState getTargetState() {
+                return bit().isActive() ? OutputState.ACTIVE : OutputState.INACTIVE;
+            }
+        }
     }
 }
@@ -17,8 +17,9 @@
 package com.timboudreau.jhtm.impl;
 
 import com.timboudreau.jhtm.BoostFactor;
-import com.timboudreau.jhtm.Permanence;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -29,15 +30,38 @@ import java.util.Map;
  */
 class InputMappingSnapshot implements Serializable {
 
-    final Map<Integer, Map<Integer, Permanence>> permanencesForColumn = new HashMap<>();
+    final ProximalSynapseTable synapses;
     final Map<Integer, BoostFactor> boostFactorForColumn = new HashMap<>();
 
+    InputMappingSnapshot(ProximalSynapseTable synapses) {
+        this.synapses = synapses;
+    }
+
     public InputMappingSnapshot snapshot() {
-        InputMappingSnapshot nue = new InputMappingSnapshot();
+        InputMappingSnapshot nue = new InputMappingSnapshot(synapses == null ? null : synapses.copy());
         nue.boostFactorForColumn.putAll(boostFactorForColumn);
-        for (Map.Entry<Integer, Map<Integer, Permanence>> e : permanencesForColumn.entrySet()) {
-            nue.permanencesForColumn.put(e.getKey(), new HashMap<>(e.getValue()));
-        }
         return nue;
     }
+
+    /**
+     * Write this snapshot to a file in the binary format of SnapshotFiles.
+     *
+     * @param file The file
+     * @throws IOException If something goes wrong
+     */
+    public void save(Path file) throws IOException {
+        SnapshotFiles.write(this, file);
+    }
+
+    /**
+     * Open a snapshot written by save(), memory-mapping the permanences.
+     *
+     * @param file The file
+     * @return A snapshot
+     * @throws IOException If the file is not an input mapping snapshot or is
+     * corrupt
+     */
+    public static InputMappingSnapshot load(Path file) throws IOException {
+        return SnapshotFiles.readInputMapping(file);
+    }
 }
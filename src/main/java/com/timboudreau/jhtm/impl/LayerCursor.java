@@ -0,0 +1,371 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.util.Bits;
+
+/**
+ * A mutable, reusable position in a layer - a column, a cell, one of the
+ * cell's distal segments and one of the segment's synapses - which can be
+ * moved by index, as an allocation-free alternative to traversing the
+ * layer through Column, Cell, DistalDendriteSegment and PotentialSynapse
+ * objects, each of which is created on demand.
+ * <p/>
+ * Positions nest:  moving to a column leaves the cursor before its first
+ * cell, moving to a cell before its first segment, and moving to a segment
+ * before its first synapse, so the next*() methods can drive loops:
+ * <pre>
+ * LayerCursor&lt;C&gt; cursor = layer.cursor();
+ * for (int cell = 0; cell &lt; layer.cellCount(); cell++) {
+ *     cursor.moveToCell(cell);
+ *     while (cursor.nextSegment()) {
+ *         while (cursor.nextSynapse()) {
+ *             if (cursor.isPresynapticActive()) {
+ *                 cursor.adjustPermanence(0.05, false);
+ *             }
+ *         }
+ *     }
+ * }
+ * </pre>
+ * Synapse N of a segment is the synapse onto cell N % cellsPerColumn of the
+ * column at step N / cellsPerColumn of its path, and is also slot N of the
+ * segment's permanences, so a cursor reads everything from the compiled
+ * DistalPathTable and the permanence store with no lookups.  Creating a
+ * cursor compiles the layer's distal paths if need be.
+ * <p/>
+ * A cursor is cheap, and not thread-safe - use one per thread.
+ *
+ * @author Tim Boudreau
+ */
+public final class LayerCursor<Coordinate> {
+
+    private final LayerImpl<Coordinate> layer;
+    private final DistalPathTable table;
+    private final int cellsPerColumn;
+    private final int dendritesPerCell;
+    private int column = -1;
+    private int cell = -1;
+    private int segment = -1;
+    private int synapse = -1;
+    private int segmentStart;
+    private int synapseCount;
+    private long firstSlot;
+    private DistalPermanenceStore store;
+
+    LayerCursor(LayerImpl<Coordinate> layer) {
+        layer.compileDistalPaths();
+        this.layer = layer;
+        this.table = layer.distalPaths;
+        this.cellsPerColumn = layer.cellsPerColumn;
+        this.dendritesPerCell = table.dendritesPerCell();
+    }
+
+    /**
+     * Move to a column, before its first cell.
+     *
+     * @param column The column index
+     * @return this
+     */
+    public LayerCursor<Coordinate> moveToColumn(int column) {
+        if (column < 0 || column >= layer.size()) {
+            throw new IndexOutOfBoundsException("Column " + column + " of " + layer.size());
+        }
+        this.column = column;
+        this.cell = column * cellsPerColumn - 1;
+        this.segment = -1;
+        this.synapse = -1;
+        this.synapseCount = 0;
+        return this;
+    }
+
+    /**
+     * Move to a cell, and its column, before its first segment.
+     *
+     * @param cell The cell index
+     * @return this
+     */
+    public LayerCursor<Coordinate> moveToCell(int cell) {
+        if (cell < 0 || cell >= layer.cellCount()) {
+            throw new IndexOutOfBoundsException("Cell " + cell + " of " + layer.cellCount());
+        }
+        this.column = cell / cellsPerColumn;
+        this.cell = cell;
+        this.segment = -1;
+        this.synapse = -1;
+        this.synapseCount = 0;
+        return this;
+    }
+
+    /**
+     * Move to one of the current cell's distal segments, before its first
+     * synapse.
+     *
+     * @param dendrite The segment's index within the cell
+     * @return this
+     */
+    public LayerCursor<Coordinate> moveToSegment(int dendrite) {
+        checkCell();
+        if (dendrite < 0 || dendrite >= dendritesPerCell) {
+            throw new IndexOutOfBoundsException("Segment " + dendrite + " of " + dendritesPerCell);
+        }
+        segment = dendrite;
+        synapse = -1;
+        segmentStart = table.start(cell, dendrite);
+        synapseCount = (table.end(cell, dendrite) - segmentStart) * cellsPerColumn;
+        store = layer.snapshot.permanences;
+        firstSlot = store.firstSlot(cell, dendrite);
+        return this;
+    }
+
+    /**
+     * Move to one of the current segment's synapses.
+     *
+     * @param synapse The synapse's index within the segment
+     * @return this
+     */
+    public LayerCursor<Coordinate> moveToSynapse(int synapse) {
+        checkSegment();
+        if (synapse < 0 || synapse >= synapseCount) {
+            throw new IndexOutOfBoundsException("Synapse " + synapse + " of " + synapseCount);
+        }
+        this.synapse = synapse;
+        return this;
+    }
+
+    /**
+     * Advance to the next cell of the current column.
+     *
+     * @return false if there are no more
+     */
+    public boolean nextCell() {
+        if (column < 0 || cell + 1 >= (column + 1) * cellsPerColumn) {
+            return false;
+        }
+        cell++;
+        segment = -1;
+        synapse = -1;
+        synapseCount = 0;
+        return true;
+    }
+
+    /**
+     * Advance to the next segment of the current cell.
+     *
+     * @return false if there are no more
+     */
+    public boolean nextSegment() {
+        if (cell < 0 || cell < column * cellsPerColumn || segment + 1 >= dendritesPerCell) {
+            return false;
+        }
+        moveToSegment(segment + 1);
+        return true;
+    }
+
+    /**
+     * Advance to the next synapse of the current segment.
+     *
+     * @return false if there are no more
+     */
+    public boolean nextSynapse() {
+        if (synapse + 1 >= synapseCount) {
+            return false;
+        }
+        synapse++;
+        return true;
+    }
+
+    private void checkCell() {
+        if (cell < 0 || cell < column * cellsPerColumn) {
+            throw new IllegalStateException("Not positioned on a cell");
+        }
+    }
+
+    private void checkSegment() {
+        if (segment < 0) {
+            throw new IllegalStateException("Not positioned on a segment");
+        }
+    }
+
+    private void checkSynapse() {
+        if (synapse < 0) {
+            throw new IllegalStateException("Not positioned on a synapse");
+        }
+    }
+
+    public int column() {
+        return column;
+    }
+
+    public int cell() {
+        checkCell();
+        return cell;
+    }
+
+    public int cellInColumn() {
+        checkCell();
+        return cell - column * cellsPerColumn;
+    }
+
+    /**
+     * The current segment's index within its cell.
+     *
+     * @return An index
+     */
+    public int segment() {
+        checkSegment();
+        return segment;
+    }
+
+    /**
+     * The current synapse's index within its segment.
+     *
+     * @return An index
+     */
+    public int synapse() {
+        checkSynapse();
+        return synapse;
+    }
+
+    public int cellsPerColumn() {
+        return cellsPerColumn;
+    }
+
+    public int segmentsPerCell() {
+        return dendritesPerCell;
+    }
+
+    /**
+     * The number of synapses of the current segment.
+     *
+     * @return A count
+     */
+    public int synapseCount() {
+        checkSegment();
+        return synapseCount;
+    }
+
+    /**
+     * Whether any cell of the current column is active.
+     *
+     * @return true if the column is active
+     */
+    public boolean isColumnActive() {
+        if (column < 0) {
+            throw new IllegalStateException("Not positioned on a column");
+        }
+        return layer.activeColumns().get(column);
+    }
+
+    public boolean isCellActive() {
+        checkCell();
+        return layer.activatedCells().get(cell);
+    }
+
+    public boolean isCellPredictive() {
+        checkCell();
+        return layer.predictiveCells().get(cell);
+    }
+
+    /**
+     * The step along the segment's path at which the current synapse's
+     * presynaptic column lies.
+     *
+     * @return A step
+     */
+    public int step() {
+        checkSynapse();
+        return synapse / cellsPerColumn;
+    }
+
+    public int presynapticColumn() {
+        checkSynapse();
+        return table.column(segmentStart + synapse / cellsPerColumn);
+    }
+
+    public int presynapticCell() {
+        return presynapticColumn() * cellsPerColumn + synapse % cellsPerColumn;
+    }
+
+    public boolean isPresynapticActive() {
+        return layer.activatedCells().get(presynapticCell());
+    }
+
+    /**
+     * The current synapse's permanence, including any pending temporary
+     * adjustment.
+     *
+     * @return A permanence value
+     */
+    public double permanence() {
+        checkSynapse();
+        return store.values.get(firstSlot + synapse);
+    }
+
+    /**
+     * The current synapse's committed permanence, without temporary
+     * adjustments.
+     *
+     * @return A permanence value
+     */
+    public double committedPermanence() {
+        checkSynapse();
+        return store.values.committed(firstSlot + synapse);
+    }
+
+    /**
+     * Adjust the current synapse's permanence.
+     *
+     * @param amount The amount to add
+     * @param temporary Whether to make a pending adjustment, which may be
+     * retained or culled later, rather than a permanent one
+     * @return The new permanence, including pending adjustments
+     */
+    public double adjustPermanence(double amount, boolean temporary) {
+        checkSynapse();
+        return store.values.add(firstSlot + synapse, amount, temporary);
+    }
+
+    /**
+     * Count the current segment's synapses onto active cells whose
+     * permanence is at or above a threshold, without moving the cursor.
+     *
+     * @param connected The permanence threshold
+     * @return A count
+     */
+    public int activeConnectedSynapses(double connected) {
+        checkSegment();
+        Bits active = layer.activatedCells();
+        int result = 0;
+        int end = segmentStart + synapseCount / Math.max(1, cellsPerColumn);
+        long slot = firstSlot;
+        for (int entry = segmentStart; entry < end; entry++) {
+            int first = table.column(entry) * cellsPerColumn;
+            for (int i = 0; i < cellsPerColumn; i++, slot++) {
+                if (active.get(first + i) && store.values.get(slot) >= connected) {
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "Cursor at column " + column + " cell " + cell + " segment "
+                + segment + " synapse " + synapse;
+    }
+}
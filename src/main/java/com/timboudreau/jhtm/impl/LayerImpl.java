@@ -24,7 +24,13 @@ import com.timboudreau.jhtm.topology.Direction;
 import com.timboudreau.jhtm.topology.Path;
 import com.timboudreau.jhtm.topology.Topology;
 import com.timboudreau.jhtm.util.Bits;
+import com.timboudreau.jhtm.util.IntVisitor;
+import com.timboudreau.jhtm.util.OffHeapMemory;
 import com.timboudreau.jhtm.util.Snapshottable;
+import com.timboudreau.jhtm.util.SynapseVisitor;
+import com.timboudreau.jhtm.util.Visitor;
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.Random;
 
@@ -36,27 +42,74 @@ import java.util.Random;
  *
  * @author Tim Boudreau
  */
-public class LayerImpl<Coordinate> implements Layer, Snapshottable<LayerSnapshot<Coordinate>> {
+public class LayerImpl<Coordinate> implements Layer, Snapshottable<LayerSnapshot<Coordinate>>, Closeable {
 
     final int cellsPerColumn;
+    final int dendritesPerCell;
     final RegionImpl region = new RegionImpl();
+    // Null when paths are generated on demand by a procedural layout
     Path<Coordinate, ? extends Direction<Coordinate>>[][] paths;
+    private final ProceduralDistalLayout<Coordinate> procedural;
+    private final SegmentColumnCache columnCache;
     Topology<Coordinate> topology;
     LayerSnapshot snapshot;
     InputMapping<?, Coordinate> mapping;
-
+    private final OffHeapMemory memory;
+    volatile DistalPathTable distalPaths;
+    private PresynapticIndex presynapticIndex;
+    // Column-level view of the active cells, so finding active columns costs
+    // O(active columns); rebuilt on read if the cells were written since
+    private final Bits activeColumns;
+    private Bits syncedCells;
+    private long syncedModifications;
+
+    /**
+     * Create a layer with a random distal layout of paths of the default
+     * length, laid out on the calling thread without reporting progress.
+     *
+     * @param cellsPerColumn The number of cells in each column
+     * @param distalDendritesPerCell The number of distal dendrites per cell
+     * @param topology The topology
+     */
     @SuppressWarnings("LeakingThisInConstructor")
     public LayerImpl(int cellsPerColumn, int distalDendritesPerCell, Topology<Coordinate> topology) {
-        this(cellsPerColumn, distalDendritesPerCell, topology, new RandomDistalLayoutFactory<Coordinate>());
+        this(cellsPerColumn, distalDendritesPerCell, topology, new ParallelDistalLayoutFactory<Coordinate>(23,
+                RandomDistalLayoutFactory.DEFAULT_DENDRITE_LENGTH, Parallelism.serial()));
     }
 
     public LayerImpl(int cellsPerColumn, int distalDendritesPerCell, Topology<Coordinate> topology, DistalLayoutFactory<Coordinate> layout) {
+        this(cellsPerColumn, distalDendritesPerCell, topology, layout, null);
+    }
+
+    /**
+     * Create a layer whose activation bits and distal permanences are
+     * stored outside the Java heap, for layers too large for the garbage
+     * collector to cope with.  Closing the layer closes the memory.
+     *
+     * @param cellsPerColumn The number of cells in each column
+     * @param distalDendritesPerCell The number of distal dendrites per cell
+     * @param topology The topology
+     * @param layout Lays out distal dendrites
+     * @param memory The memory to allocate from, or null to use the heap
+     */
+    public LayerImpl(int cellsPerColumn, int distalDendritesPerCell, Topology<Coordinate> topology, DistalLayoutFactory<Coordinate> layout, OffHeapMemory memory) {
+        this.memory = memory;
         int columnCount = topology.columnCount();
+        activeColumns = Bits.create(columnCount, Bits.Storage.COMPRESSED);
         this.cellsPerColumn = cellsPerColumn;
+        this.dendritesPerCell = distalDendritesPerCell;
         this.topology = topology;
-        snapshot = new LayerSnapshot(topology.columnCount() * cellsPerColumn);
 
         int totalCells = columnCount * cellsPerColumn;
+        if (layout instanceof ProceduralDistalLayout<?>) {
+            procedural = (ProceduralDistalLayout<Coordinate>) layout;
+            int cacheSize = procedural.cacheSize();
+            columnCache = cacheSize > 0 ? new SegmentColumnCache(cacheSize) : null;
+            snapshot = new LayerSnapshot(totalCells, cellsPerColumn, distalDendritesPerCell, procedural.maxPathLength(), memory);
+            return;
+        }
+        procedural = null;
+        columnCache = null;
         paths = (Path<Coordinate, ? extends Direction<Coordinate>>[][]) topology.pathArray(totalCells, distalDendritesPerCell);
         layout.createLayout(topology, this, columnCount, cellsPerColumn, distalDendritesPerCell, new DistalDendrites<Coordinate>() {
 
@@ -65,14 +118,32 @@ public class LayerImpl<Coordinate> implements Layer, Snapshottable<LayerSnapshot
                 paths[cellIndex][dendriteIndex] = path;
             }
         });
+        snapshot = new LayerSnapshot(totalCells, cellsPerColumn, distalDendritesPerCell, maxPathLength(paths), memory);
+    }
+
+    private static int maxPathLength(Path<?, ?>[][] paths) {
+        int result = 0;
+        for (Path<?, ?>[] forCell : paths) {
+            for (Path<?, ?> path : forCell) {
+                if (path != null) {
+                    result = Math.max(result, path.length());
+                }
+            }
+        }
+        return result;
     }
 
     public LayerImpl(Topology<Coordinate> topology, LayerSnapshot snapshot, InputMapping<?, Coordinate> mapping, int cellsPerColumn, Path<Coordinate, ? extends Direction<Coordinate>>[][] paths) {
         this.snapshot = snapshot;
+        this.memory = null;
         this.mapping = mapping;
         this.topology = topology;
         this.cellsPerColumn = cellsPerColumn;
         this.paths = paths;
+        this.dendritesPerCell = paths.length == 0 ? 0 : paths[0].length;
+        this.procedural = null;
+        this.columnCache = null;
+        activeColumns = Bits.create(topology.columnCount(), Bits.Storage.COMPRESSED);
     }
 
     public interface DistalDendrites<Coordinate> {
@@ -85,6 +156,30 @@ public class LayerImpl<Coordinate> implements Layer, Snapshottable<LayerSnapshot
         public void createLayout(Topology<Coordinate> topology, Layer<Coordinate> layer, int columnCount, int cellsPerColumn, int distalDendritesPerCell, DistalDendrites addTo);
     }
 
+    /**
+     * A layout whose paths are a pure function of the cell and dendrite, so
+     * that a layer using it need not store them at all:  a LayerImpl created
+     * with one never calls createLayout(), and instead asks for a segment's
+     * path whenever it needs it.  Implementations must be thread-safe and
+     * return equal paths for the same arguments every time.
+     */
+    public interface ProceduralDistalLayout<Coordinate> extends DistalLayoutFactory<Coordinate> {
+
+        public Path<Coordinate, ? extends Direction<Coordinate>> pathFor(Topology<Coordinate> topology, int cellsPerColumn, int cell, int dendrite);
+
+        /**
+         * The length of the longest path this layout generates.
+         */
+        public int maxPathLength();
+
+        /**
+         * The number of segments whose presynaptic columns the layer should
+         * keep in a cache, to spare regenerating their paths, or zero for
+         * none.
+         */
+        public int cacheSize();
+    }
+
     public static final class RandomDistalLayoutFactory<Coordinate> implements DistalLayoutFactory<Coordinate> {
 
         private final Random random;
@@ -112,7 +207,7 @@ public class LayerImpl<Coordinate> implements Layer, Snapshottable<LayerSnapshot
                 if (i % 10000 == 0) {
                     System.out.println("CELL " + i + " of " + totalCells);
                 }
-                Coordinate coord = topology.coordinateForIndex(i);
+                Coordinate coord = topology.coordinateForIndex(i / cellsPerColumn);
                 for (int j = 0; j < distalDendritesPerCell; j++) {
                     Path<Coordinate, ? extends Direction<Coordinate>> path = topology.createRandom(random, coord, dendriteLength);
                     addTo.add(path, i, j);
@@ -132,6 +227,206 @@ public class LayerImpl<Coordinate> implements Layer, Snapshottable<LayerSnapshot
         return old;
     }
 
+    /**
+     * Write the current state of this layer to a file, in a binary format
+     * which restore(Path) can memory-map.
+     *
+     * @param file The file
+     * @throws IOException If something goes wrong
+     */
+    public void save(java.nio.file.Path file) throws IOException {
+        snapshot().save(file);
+    }
+
+    /**
+     * Replace the state of this layer with a snapshot previously written by
+     * save().  The file's permanences are memory-mapped and only copied into
+     * memory a page at a time as they are modified.
+     *
+     * @param file The file
+     * @return The previous state
+     * @throws IOException If the file is not a snapshot of a layer like this
+     * one, or is corrupt
+     */
+    public LayerSnapshot restore(java.nio.file.Path file) throws IOException {
+        LayerSnapshot loaded = SnapshotFiles.readLayer(file, memory);
+        DistalPermanenceStore loadedStore = loaded.permanences;
+        DistalPermanenceStore store = snapshot.permanences;
+        if (loaded.activatedCells.size() != cellCount()
+                || loadedStore.cellsPerColumn() != cellsPerColumn
+                || loadedStore.dendritesPerCell() != store.dendritesPerCell()
+                || loadedStore.maxPathLength() != store.maxPathLength()) {
+            throw new IOException("Snapshot in " + file + " is for a layer of "
+                    + loaded.activatedCells.size() + " cells, " + loadedStore.cellsPerColumn()
+                    + " per column with " + loadedStore.dendritesPerCell() + " dendrites of up to "
+                    + loadedStore.maxPathLength() + " steps, not " + cellCount() + ", "
+                    + cellsPerColumn + ", " + store.dendritesPerCell() + " and " + store.maxPathLength());
+        }
+        return restore(loaded);
+    }
+
+    /**
+     * Compute the changes to this layer since an older snapshot of it was
+     * taken, without taking a new snapshot.  Apply the result to a copy of
+     * the older snapshot with <code>restore(delta.applyTo(older))</code>.
+     *
+     * @param older A snapshot previously returned by snapshot()
+     * @return A delta
+     */
+    public synchronized LayerSnapshotDelta deltaSince(LayerSnapshot older) {
+        return snapshot.deltaFrom(older);
+    }
+
+    /**
+     * Make all temporary permanence adjustments to distal synapses permanent,
+     * without allocating.
+     */
+    public synchronized void retainTemporaryValues() {
+        snapshot.permanences.values.commit();
+    }
+
+    /**
+     * Discard all temporary permanence adjustments to distal synapses,
+     * without allocating.
+     */
+    public synchronized void cullTemporaryValues() {
+        snapshot.permanences.values.discard();
+    }
+
+    /**
+     * Get the number of bytes of memory outside the Java heap used by this
+     * layer and any snapshots of it which are still reachable.
+     *
+     * @return A number of bytes, or 0 for a layer stored on the heap
+     */
+    public long offHeapBytes() {
+        return memory == null ? 0L : memory.bytesInUse();
+    }
+
+    /**
+     * Release the off-heap memory of this layer, if it has any.  After this
+     * is called, neither the layer nor any snapshot taken from it may be
+     * used;  reading or writing their cells or permanences throws an
+     * IllegalStateException.
+     */
+    @Override
+    public synchronized void close() {
+        if (memory != null) {
+            memory.close();
+        }
+    }
+
+    /**
+     * Walk every distal dendrite's path through the topology once, and keep
+     * the presynaptic column indices in a packed table, so that visiting a
+     * segment's synapses becomes an array scan rather than a walk.  Costs
+     * four bytes per path step plus four per segment.  Idempotent.
+     */
+    public void compileDistalPaths() {
+        compileDistalPaths(Parallelism.serial());
+    }
+
+    /**
+     * Compile the distal paths as compileDistalPaths() does, walking shards
+     * of cells on several threads.  For a layer whose paths come from a
+     * ProceduralDistalLayout, this is where every path is generated, so it
+     * costs about as much as laying out a stored layer does.  Idempotent.
+     *
+     * @param parallelism How to spread the work across threads
+     */
+    public synchronized void compileDistalPaths(Parallelism parallelism) {
+        if (distalPaths == null) {
+            distalPaths = DistalPathTable.compile(this, parallelism);
+        }
+    }
+
+    /**
+     * Determine if this layer's paths are generated on demand by a
+     * ProceduralDistalLayout, rather than stored.
+     *
+     * @return true if the layout is procedural
+     */
+    public boolean isProcedural() {
+        return procedural != null;
+    }
+
+    /**
+     * Get the path of a distal segment - stored, or generated.
+     */
+    Path<Coordinate, ? extends Direction<Coordinate>> path(int cell, int dendrite) {
+        if (paths != null) {
+            return paths[cell][dendrite];
+        }
+        return procedural.pathFor(topology, cellsPerColumn, cell, dendrite);
+    }
+
+    /**
+     * Get the presynaptic columns of a segment of a procedural layout, in
+     * path order, from the cache if possible.  The result must not be
+     * modified.
+     */
+    int[] segmentColumns(int cell, int dendrite) {
+        int segment = cell * dendritesPerCell + dendrite;
+        int[] result = columnCache == null ? null : columnCache.get(segment);
+        if (result == null) {
+            Path<Coordinate, ? extends Direction<Coordinate>> path = path(cell, dendrite);
+            final int[] columns = new int[path == null ? 0 : path.length()];
+            final int[] count = new int[1];
+            if (path != null) {
+                topology.walkIndices(cell / cellsPerColumn, path, new IntVisitor() {
+
+                    @Override
+                    public Visitor.Result visit(int column) {
+                        columns[count[0]++] = column;
+                        return Visitor.Result.NOT_DONE;
+                    }
+                });
+            }
+            result = count[0] == columns.length ? columns : java.util.Arrays.copyOf(columns, count[0]);
+            if (columnCache != null) {
+                columnCache.put(segment, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the reverse of the compiled distal paths, mapping each presynaptic
+     * column to the segments which reach it, compiling both on first use.
+     * Costs eight bytes per path step, on top of the compiled paths.
+     */
+    PresynapticIndex presynapticIndex() {
+        return presynapticIndex(Parallelism.serial());
+    }
+
+    synchronized PresynapticIndex presynapticIndex(Parallelism parallelism) {
+        if (presynapticIndex == null) {
+            compileDistalPaths(parallelism);
+            presynapticIndex = PresynapticIndex.build(distalPaths, topology.columnCount());
+        }
+        return presynapticIndex;
+    }
+
+    /**
+     * Determine if compileDistalPaths() has been called.
+     *
+     * @return true if distal paths are compiled
+     */
+    public boolean isDistalPathsCompiled() {
+        return distalPaths != null;
+    }
+
+    /**
+     * Create a reusable cursor for traversing columns, cells, distal segments
+     * and synapses by index without allocating.  Compiles distal paths if
+     * they are not already.
+     *
+     * @return A new cursor
+     */
+    public LayerCursor<Coordinate> cursor() {
+        return new LayerCursor<>(this);
+    }
+
     public Iterator<Column<Coordinate>> iterator() {
         return new ColumnIterator();
     }
@@ -148,6 +443,76 @@ public class LayerImpl<Coordinate> implements Layer, Snapshottable<LayerSnapshot
         return snapshot.predictiveCells;
     }
 
+    /**
+     * The columns with at least one active cell.  Maintained by the code
+     * which activates cells - SpatialPooler, TemporalMemory - and rebuilt
+     * from the cells if they have been modified any other way since.
+     */
+    synchronized Bits activeColumns() {
+        Bits cells = activatedCells();
+        if (cells != syncedCells || cells.modifications() != syncedModifications) {
+            activeColumns.clear();
+            for (int cell = cells.nextSetBit(0); cell >= 0; cell = cells.nextSetBit(cell + 1)) {
+                activeColumns.set(cell / cellsPerColumn);
+            }
+            // A column cannot have been predicted-active if it is not active
+            snapshot.predictedActiveColumns.and(activeColumns);
+            syncedCells = cells;
+            syncedModifications = cells.modifications();
+        }
+        return activeColumns;
+    }
+
+    /**
+     * The active columns whose activity was predicted:  those which had a
+     * predictive cell before the step which activated them.  Part of the
+     * layer's snapshot, so it survives a snapshot and restore unchanged.
+     */
+    synchronized Bits predictedActiveColumns() {
+        activeColumns();
+        return snapshot.predictedActiveColumns;
+    }
+
+    /**
+     * Record the column-level activity of the cells just activated by
+     * something which already knows which columns they are in.  Call after
+     * activatedCells() is up to date.
+     *
+     * @param active The active columns
+     * @param predictedActive The active columns which had a predictive cell
+     * before the cells were activated
+     */
+    synchronized void setColumnActivity(Bits active, Bits predictedActive) {
+        activeColumns.clear();
+        activeColumns.or(active);
+        Bits predicted = snapshot.predictedActiveColumns;
+        predicted.clear();
+        predicted.or(predictedActive);
+        Bits cells = activatedCells();
+        syncedCells = cells;
+        syncedModifications = cells.modifications();
+    }
+
+    /**
+     * Record the column-level activity of cells activated without changing
+     * the predictive cells, so the columns which were predicted are those
+     * with a predictive cell now.
+     *
+     * @param active The active columns
+     */
+    void setColumnActivity(Bits active) {
+        Bits predictive = predictiveCells();
+        Bits predictedActive = Bits.create(active.size(), Bits.Storage.COMPRESSED);
+        for (int cell = predictive.nextSetBit(0); cell >= 0; cell = predictive.nextSetBit(cell + 1)) {
+            int column = cell / cellsPerColumn;
+            predictedActive.set(column);
+            // Skip the rest of the column
+            cell = (column + 1) * cellsPerColumn - 1;
+        }
+        // One word-level intersection, rather than probing every active column
+        setColumnActivity(active, predictedActive.and(active));
+    }
+
     @Override
     public Column<Coordinate> getColumn(int index) {
         if (index < topology.columnCount()) {
@@ -174,6 +539,80 @@ public class LayerImpl<Coordinate> implements Layer, Snapshottable<LayerSnapshot
         return "Layer " + activatedCells().cardinality() + " active " + predictiveCells().cardinality() + " predictive";
     }
 
+    @Override
+    public Visitor.Result visitActivatedCells(IntVisitor visitor) {
+        return activatedCells().forEach(visitor);
+    }
+
+    @Override
+    public Visitor.Result visitDistalSynapses(int cell, SynapseVisitor visitor) {
+        DistalPermanenceStore store = snapshot.permanences;
+        DistalPathTable table = distalPaths;
+        Visitor.Result result = Visitor.Result.NO_VISITS;
+        for (int d = 0; d < dendritesPerCell; d++) {
+            int segment = cell * dendritesPerCell + d;
+            if (table != null) {
+                long slot = store.firstSlot(cell, d);
+                int end = table.end(cell, d);
+                for (int entry = table.start(cell, d); entry < end; entry++) {
+                    int first = table.column(entry) * cellsPerColumn;
+                    for (int i = 0; i < cellsPerColumn; i++, slot++) {
+                        result = visitor.visit(segment, first + i, (float) store.values.get(slot));
+                        if (result.isDone()) {
+                            return result;
+                        }
+                    }
+                }
+            } else if (procedural != null) {
+                SynapseWalker walker = new SynapseWalker(store, segment, store.firstSlot(cell, d), visitor);
+                for (int column : segmentColumns(cell, d)) {
+                    result = walker.visit(column);
+                    if (result.isDone()) {
+                        return result;
+                    }
+                }
+            } else if (paths[cell][d] != null) {
+                SynapseWalker walker = new SynapseWalker(store, segment, store.firstSlot(cell, d), visitor);
+                result = topology.walkIndices(cell / cellsPerColumn, paths[cell][d], walker);
+                if (result.isDone()) {
+                    return result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adapts path steps to synapse visits, for uncompiled distal paths.
+     */
+    private final class SynapseWalker implements IntVisitor {
+
+        private final DistalPermanenceStore store;
+        private final int segment;
+        private final SynapseVisitor visitor;
+        private long slot;
+
+        SynapseWalker(DistalPermanenceStore store, int segment, long firstSlot, SynapseVisitor visitor) {
+            this.store = store;
+            this.segment = segment;
+            this.slot = firstSlot;
+            this.visitor = visitor;
+        }
+
+        @Override
+        public Visitor.Result visit(int column) {
+            int first = column * cellsPerColumn;
+            Visitor.Result result = Visitor.Result.NO_VISITS;
+            for (int i = 0; i < cellsPerColumn; i++) {
+                result = visitor.visit(segment, first + i, (float) store.values.get(slot++));
+                if (result.isDone()) {
+                    break;
+                }
+            }
+            return result;
+        }
+    }
+
     CellImpl getCell(int pos) {
         return new CellImpl(pos, this);
     }
@@ -194,6 +633,24 @@ public class LayerImpl<Coordinate> implements Layer, Snapshottable<LayerSnapshot
         public Column<Coordinate> get(Coordinate coord) {
             return LayerImpl.this.getColumn(topology.toIndex(coord));
         }
+
+        @Override
+        public Visitor.Result visitActivatedColumns(IntVisitor v) {
+            return activeColumns().forEach(v);
+        }
+
+        @Override
+        public <R> Visitor.Result visitActivatedColumns(Visitor<Column, R> v, R arg) {
+            Visitor.Result result = Visitor.Result.NO_VISITS;
+            Bits activeColumns = activeColumns();
+            for (int column = activeColumns.nextSetBit(0); column >= 0; column = activeColumns.nextSetBit(column + 1)) {
+                result = v.visit(get(column), arg);
+                if (result == Visitor.Result.DONE) {
+                    break;
+                }
+            }
+            return result;
+        }
     }
 
     private class ColumnIterator implements Iterator<Column<Coordinate>> {
@@ -17,136 +17,149 @@
 package com.timboudreau.jhtm.impl;
 
 import com.timboudreau.jhtm.Permanence;
-import com.timboudreau.jhtm.topology.Direction;
-import com.timboudreau.jhtm.topology.Path;
 import com.timboudreau.jhtm.util.Bits;
+import com.timboudreau.jhtm.util.OffHeapMemory;
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.BitSet;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.IdentityHashMap;
-import java.util.Map;
+import java.nio.file.Path;
 import java.util.Objects;
 
 /**
- * Holds state for the layer, so history can be rolled back and forward
+ * Holds state for the layer, so history can be rolled back and forward.
+ * Snapshots are copy-on-write:  a new snapshot shares all of its pages of
+ * permanences and containers of bits with the one it was made from, so taking
+ * one is cheap, and each only grows by what is modified after it is taken.
  */
 class LayerSnapshot<Coordinate> implements Serializable {
     public final Bits activatedCells;
     public final Bits predictiveCells;
-    public final Map<Path<Coordinate, ? extends Direction<Coordinate>>, Map<Integer, Map<Integer, Permanence>>> permanenceForDendritePath = new IdentityHashMap<>();
+    /**
+     * The active columns whose activity was predicted:  those which had a
+     * predictive cell before the step which activated them.  Stored rather
+     * than derived, since by the end of a step the predictive cells are
+     * the predictions for the next one.
+     */
+    public final Bits predictedActiveColumns;
+    final DistalPermanenceStore permanences;
+
+    LayerSnapshot(int totalCells, int cellsPerColumn, int dendritesPerCell, int maxPathLength) {
+        this(totalCells, cellsPerColumn, dendritesPerCell, maxPathLength, null);
+    }
+
+    LayerSnapshot(int totalCells, int cellsPerColumn, int dendritesPerCell, int maxPathLength, OffHeapMemory memory) {
+        if (memory == null) {
+            activatedCells = Bits.create(totalCells, Bits.Storage.COMPRESSED);
+            predictiveCells = Bits.create(totalCells, Bits.Storage.COMPRESSED);
+        } else {
+            activatedCells = Bits.create(totalCells, memory);
+            predictiveCells = Bits.create(totalCells, memory);
+        }
+        predictedActiveColumns = Bits.create(cellsPerColumn == 0 ? 0 : totalCells / cellsPerColumn,
+                Bits.Storage.COMPRESSED);
+        permanences = new DistalPermanenceStore(totalCells, cellsPerColumn, dendritesPerCell, maxPathLength, memory);
+    }
+
+    LayerSnapshot(Bits activatedCells, Bits predictiveCells, Bits predictedActiveColumns, DistalPermanenceStore permanences) {
+        this.activatedCells = activatedCells;
+        this.predictiveCells = predictiveCells;
+        this.predictedActiveColumns = predictedActiveColumns;
+        this.permanences = permanences;
+    }
+
+    /**
+     * Create a snapshot from cell bits alone, taking the predicted-active
+     * columns to be those with a cell which is both active and predictive -
+     * the best that can be done without the predictions which preceded the
+     * activity.
+     */
+    LayerSnapshot(Bits activatedCells, Bits predictiveCells, DistalPermanenceStore permanences) {
+        this(activatedCells, predictiveCells, predictedActiveColumns(activatedCells,
+                predictiveCells, permanences.cellsPerColumn()), permanences);
+    }
 
-    LayerSnapshot(int totalCells) {
-        activatedCells = Bits.create(totalCells);
-        predictiveCells = Bits.create(totalCells);
+    static Bits predictedActiveColumns(Bits activatedCells, Bits predictiveCells, int cellsPerColumn) {
+        int columns = cellsPerColumn == 0 ? 0 : activatedCells.size() / cellsPerColumn;
+        Bits result = Bits.create(columns, Bits.Storage.COMPRESSED);
+        for (int cell = activatedCells.nextSetBit(0); cell >= 0; cell = activatedCells.nextSetBit(cell + 1)) {
+            if (predictiveCells.get(cell)) {
+                result.set(cell / cellsPerColumn);
+            }
+        }
+        return result;
     }
 
     private LayerSnapshot(LayerSnapshot<Coordinate> other) {
         this.activatedCells = other.activatedCells.clone();
         this.predictiveCells = other.predictiveCells.clone();
-        // Do a deep copy, culling empty sets to save space
-        for (Map.Entry<Path<Coordinate, ? extends Direction<Coordinate>>, Map<Integer, Map<Integer, Permanence>>> e : other.permanenceForDendritePath.entrySet()) {
-            Map<Integer, Map<Integer, Permanence>> p4 = e.getValue();
-            if (!p4.isEmpty()) {
-                Map<Integer, Map<Integer, Permanence>> n4 = new HashMap<>();
-                for (Map.Entry<Integer, Map<Integer, Permanence>> e1 : p4.entrySet()) {
-                    Map<Integer, Permanence> m = e1.getValue();
-                    if (!m.isEmpty()) {
-                        Map<Integer, Permanence> n = new HashMap<>(m);
-                        for (Map.Entry<Integer, Permanence> me : m.entrySet()) {
-                            if (me.getValue().get(Permanence.LimitFunction.ZERO_TO_ONE) > 0D) {
-                                n.put(me.getKey(), me.getValue());
-                            }
-                        }
-                        n4.put(e1.getKey(), n);
-                    }
-                }
-                if (!n4.isEmpty()) {
-                    permanenceForDendritePath.put(e.getKey(), n4);
-                }
-            }
-        }
+        this.predictedActiveColumns = other.predictedActiveColumns.clone();
+        this.permanences = other.permanences.copy();
+    }
+
+    public PermanenceInfo getPermanences(int cell, int dendrite) {
+        return new PermanenceInfo(cell, dendrite);
+    }
+
+    public LayerSnapshot<Coordinate> snapshot() {
+        return new LayerSnapshot<>(this);
     }
 
-    public PermanenceInfo getPermanences(Path<Coordinate, ? extends Direction<Coordinate>> pth) {
-        return new PermanenceInfo(pth);
+    /**
+     * Write this snapshot to a file in the binary format of SnapshotFiles.
+     *
+     * @param file The file
+     * @throws IOException If something goes wrong
+     */
+    public void save(Path file) throws IOException {
+        SnapshotFiles.write(this, file);
     }
 
-    public LayerSnapshot snapshot() {
-        return new LayerSnapshot(this);
+    /**
+     * Open a snapshot written by save().  Permanences are memory-mapped
+     * rather than read, so this is fast regardless of the size of the file.
+     *
+     * @param file The file
+     * @return A snapshot
+     * @throws IOException If the file is not a layer snapshot or is corrupt
+     */
+    public static LayerSnapshot<?> load(Path file) throws IOException {
+        return SnapshotFiles.readLayer(file, null);
+    }
+
+    /**
+     * Compute the changes from an older snapshot of the same layer to this
+     * one.
+     *
+     * @param older An older snapshot
+     * @return A delta which can be applied to the older snapshot
+     */
+    public LayerSnapshotDelta deltaFrom(LayerSnapshot<Coordinate> older) {
+        return new LayerSnapshotDelta(older, this);
     }
     
     class PermanenceInfo {
 
-        private final Path<Coordinate, ? extends Direction<Coordinate>> dendritePath;
+        private final int cell;
+        private final int dendrite;
 
-        PermanenceInfo(Path<Coordinate, ? extends Direction<Coordinate>> dendritePath) {
-            this.dendritePath = dendritePath;
+        PermanenceInfo(int cell, int dendrite) {
+            this.cell = cell;
+            this.dendrite = dendrite;
         }
 
-        Map<Integer, Map<Integer, Permanence>> permanences(boolean create) {
-            Map<Integer, Map<Integer, Permanence>> result = permanenceForDendritePath.get(dendritePath);
-            if (result == null) {
-                if (create) {
-                    result = new HashMap<>();
-                    permanenceForDendritePath.put(dendritePath, result);
-                } else {
-                    result = Collections.emptyMap();
-                }
-            }
-            return result;
+        public boolean hasPermanence(int position) {
+            return permanences.hasPermanence(cell, dendrite, position);
         }
 
-        public boolean hasPermanence(int column) {
-            Map<Integer, Permanence> m = permanences(false).get(column);
-            if (m == null || m.isEmpty()) {
-                return false;
-            }
-            for (Map.Entry<Integer, Permanence> e : m.entrySet()) {
-                if (e.getValue().get() > 0D) {
-                    return true;
-                }
-            }
-            return false;
+        public Permanence getPermanence(int position, int cellInColumn) {
+            return permanences.get(permanences.slot(cell, dendrite, position, cellInColumn));
         }
 
-        public Permanence getPermanence(int position, int cell) {
-            Map<Integer, Permanence> m = permanences(false).get(position);
-            if (m == null || m.isEmpty()) {
-                return Permanence.ZERO;
-            }
-            Permanence result = m.get(cell);
-            return result == null ? Permanence.ZERO : result;
+        Permanence updatePermanence(int position, int cellInColumn, double amount, boolean temporary) {
+            return permanences.add(permanences.slot(cell, dendrite, position, cellInColumn), amount, temporary);
         }
 
-        Permanence updatePermanence(int position, int cell, double amount, boolean temporary) {
-            Map<Integer, Permanence> m = permanences(true).get(position);
-            if (m == null) {
-                m = new HashMap<>();
-                permanences(true).put(position, m);
-            }
-            Permanence permanence = m.get(cell);
-            if (permanence == null) {
-                permanence = Permanence.create(0);
-            }
-            Permanence nue = permanence.add(amount, temporary);
-            if (nue != permanence) {
-                m.put(cell, nue);
-            }
-            return nue;
-        }
-
-        Permanence setPermanence(int cell, int offset, Permanence permanence) {
-            Map<Integer, Permanence> m = permanences(true).get(cell);
-            Permanence old = null;
-            if (m == null) {
-                m = new HashMap<>();
-                permanences(true).put(cell, m);
-            } else {
-                old = m.get(offset);
-            }
-            m.put(offset, permanence);
-            return old;
+        Permanence setPermanence(int position, int cellInColumn, Permanence permanence) {
+            return permanences.set(permanences.slot(cell, dendrite, position, cellInColumn), permanence);
         }
     }
 
@@ -155,7 +168,8 @@ class LayerSnapshot<Coordinate> implements Serializable {
         int hash = 3;
         hash = 71 * hash + Objects.hashCode(this.activatedCells);
         hash = 71 * hash + Objects.hashCode(this.predictiveCells);
-        hash = 71 * hash + Objects.hashCode(this.permanenceForDendritePath);
+        hash = 71 * hash + Objects.hashCode(this.predictedActiveColumns);
+        hash = 71 * hash + Objects.hashCode(this.permanences);
         return hash;
     }
 
@@ -174,7 +188,10 @@ class LayerSnapshot<Coordinate> implements Serializable {
         if (!Objects.equals(this.predictiveCells, other.predictiveCells)) {
             return false;
         }
-        return Objects.equals(this.permanenceForDendritePath, other.permanenceForDendritePath);
+        if (!Objects.equals(this.predictedActiveColumns, other.predictedActiveColumns)) {
+            return false;
+        }
+        return Objects.equals(this.permanences, other.permanences);
     }
 
 }
@@ -0,0 +1,99 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.util.Bits;
+import java.io.Serializable;
+
+/**
+ * The difference between two snapshots of the same layer:  the activation
+ * bits and predicted-active columns which flipped, the distal permanences which changed, and the synapses
+ * whose permanence dropped to zero.  Much smaller than a full snapshot when
+ * little has changed, so it can be shipped to a standby which holds the older
+ * snapshot and brought up to date with
+ * <code>layer.restore(delta.applyTo(older))</code>.
+ * <p/>
+ * Since snapshots are copy-on-write, computing a delta only examines the
+ * pages of permanences and containers of bits which are not shared between
+ * the two snapshots - those written in between.
+ *
+ * @author Tim Boudreau
+ */
+class LayerSnapshotDelta implements Serializable {
+
+    private final Bits activatedChanges;
+    private final Bits predictiveChanges;
+    private final Bits predictedActiveChanges;
+    private final PermanenceArray.Delta permanences;
+
+    LayerSnapshotDelta(LayerSnapshot<?> older, LayerSnapshot<?> newer) {
+        if (older.activatedCells.size() != newer.activatedCells.size()) {
+            throw new IllegalArgumentException("Snapshots of different layers: "
+                    + older.activatedCells.size() + " and "
+                    + newer.activatedCells.size() + " cells");
+        }
+        activatedChanges = newer.activatedCells.clone().xor(older.activatedCells);
+        predictiveChanges = newer.predictiveCells.clone().xor(older.predictiveCells);
+        predictedActiveChanges = newer.predictedActiveColumns.clone().xor(older.predictedActiveColumns);
+        permanences = newer.permanences.values.deltaFrom(older.permanences.values);
+    }
+
+    /**
+     * Create a new snapshot by applying this delta to the snapshot it was
+     * computed against.  The passed snapshot is not modified.
+     *
+     * @param older The older snapshot
+     * @return A new snapshot equal to the newer one the delta was computed
+     * from
+     */
+    public <Coordinate> LayerSnapshot<Coordinate> applyTo(LayerSnapshot<Coordinate> older) {
+        LayerSnapshot<Coordinate> result = older.snapshot();
+        result.activatedCells.xor(activatedChanges);
+        result.predictiveCells.xor(predictiveChanges);
+        result.predictedActiveColumns.xor(predictedActiveChanges);
+        result.permanences.values.apply(permanences);
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return activatedChanges.isEmpty() && predictiveChanges.isEmpty()
+                && predictedActiveChanges.isEmpty() && permanences.isEmpty();
+    }
+
+    /**
+     * The number of synapses whose permanence changed, excluding those which
+     * were removed.
+     */
+    public int changedPermanences() {
+        return permanences.changed();
+    }
+
+    /**
+     * The number of synapses whose permanence dropped to zero.
+     */
+    public int removedSynapses() {
+        return permanences.removed();
+    }
+
+    @Override
+    public String toString() {
+        return "LayerSnapshotDelta(" + activatedChanges.cardinality()
+                + " activation changes, " + predictiveChanges.cardinality()
+                + " predictive changes, " + permanences.changed()
+                + " permanence changes, " + permanences.removed() + " removed)";
+    }
+}
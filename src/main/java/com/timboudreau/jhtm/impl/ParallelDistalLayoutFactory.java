@@ -0,0 +1,133 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.system.Layer;
+import com.timboudreau.jhtm.topology.Topology;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lays out random distal dendrites like RandomDistalLayoutFactory, but
+ * across threads.  Rather than drawing every path from one shared Random,
+ * each segment's path is drawn from a Random seeded from the layout's seed
+ * and the segment's cell and dendrite index, so the layout is a pure
+ * function of the seed and the layer's shape - identical however many
+ * threads build it, and however their shards are scheduled.  A segment can
+ * even be regenerated on its own with seedFor().
+ * <p/>
+ * Cells are split into shards by the passed Parallelism;  each shard reuses
+ * one Random, reseeding it per segment.  Progress, if wanted, is reported
+ * to a callback rather than printed.
+ *
+ * @author Tim Boudreau
+ */
+public final class ParallelDistalLayoutFactory<Coordinate> implements LayerImpl.DistalLayoutFactory<Coordinate> {
+
+    // Cells a shard lays out between progress reports
+    private static final int PROGRESS_INTERVAL = 4096;
+    private final long seed;
+    private final int dendriteLength;
+    private final Parallelism parallelism;
+    private final Progress progress;
+
+    public ParallelDistalLayoutFactory(long seed, int dendriteLength, Parallelism parallelism) {
+        this(seed, dendriteLength, parallelism, null);
+    }
+
+    /**
+     * Create a layout factory.
+     *
+     * @param seed The seed all segments' seeds are derived from
+     * @param dendriteLength The number of steps in each path
+     * @param parallelism How to spread the work across threads
+     * @param progress A callback for progress, or null
+     */
+    public ParallelDistalLayoutFactory(long seed, int dendriteLength, Parallelism parallelism, Progress progress) {
+        if (dendriteLength < 0) {
+            throw new IllegalArgumentException("Negative dendrite length " + dendriteLength);
+        }
+        this.seed = seed;
+        this.dendriteLength = dendriteLength;
+        this.parallelism = parallelism;
+        this.progress = progress;
+    }
+
+    /**
+     * Receives progress reports while a layout is created.  Called from
+     * worker threads, possibly concurrently, and once more from the calling
+     * thread with cellsDone == totalCells when the layout is complete.
+     */
+    public interface Progress {
+
+        void progress(int cellsDone, int totalCells);
+    }
+
+    /**
+     * Derive the seed for one segment's path, by running the layout seed,
+     * cell and dendrite through the SplitMix64 finalizer, so that nearby
+     * segments get unrelated seeds.
+     *
+     * @param seed The layout seed
+     * @param cell The cell index
+     * @param dendrite The dendrite index within the cell
+     * @return A seed
+     */
+    public static long seedFor(long seed, int cell, int dendrite) {
+        long z = seed + (((long) cell << 16) ^ dendrite) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public void createLayout(final Topology<Coordinate> topology, Layer<Coordinate> layer, int columnCount, final int cellsPerColumn, final int distalDendritesPerCell, final LayerImpl.DistalDendrites addTo) {
+        final int totalCells = columnCount * cellsPerColumn;
+        final AtomicInteger done = new AtomicInteger();
+        parallelism.run(totalCells, new Parallelism.Shard() {
+
+            @Override
+            public void compute(int shard, int from, int to) {
+                Random random = new Random(0);
+                Coordinate coord = null;
+                int column = -1;
+                for (int cell = from; cell < to; cell++) {
+                    if (cell / cellsPerColumn != column) {
+                        column = cell / cellsPerColumn;
+                        coord = topology.coordinateForIndex(column);
+                    }
+                    for (int d = 0; d < distalDendritesPerCell; d++) {
+                        random.setSeed(seedFor(seed, cell, d));
+                        addTo.add(topology.createRandom(random, coord, dendriteLength), cell, d);
+                    }
+                    if (progress != null && (cell - from + 1) % PROGRESS_INTERVAL == 0) {
+                        progress.progress(done.addAndGet(PROGRESS_INTERVAL), totalCells);
+                    }
+                }
+            }
+        });
+        if (progress != null) {
+            progress.progress(totalCells, totalCells);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ParallelDistalLayoutFactory(" + seed + ", " + dendriteLength
+                + ", " + parallelism + ")";
+    }
+}
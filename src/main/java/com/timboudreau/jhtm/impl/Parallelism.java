@@ -0,0 +1,182 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.impl;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * How compute engines such as SpatialPooler and TemporalMemory spread their
+ * read-only passes across threads.  Work over a range - columns for spatial
+ * pooling, distal segments for temporal memory - is cut into a fixed number
+ * of shards, each a contiguous sub-range, which are run on a ForkJoinPool.
+ * <p/>
+ * Shard boundaries depend only on the size of the range and the shard
+ * count, never on the number of threads or on scheduling;  each shard
+ * writes only its own sub-range of the engine's scratch arrays, and results
+ * are merged into the layer's Bits afterwards in shard order, on the calling
+ * thread.  So a parallel run produces exactly the same results as a serial
+ * one.  Passes which write permanences (learning) stay on the calling
+ * thread, since copy-on-write permanence pages may not be copied by two
+ * threads at once.
+ *
+ * @author Tim Boudreau
+ */
+public final class Parallelism {
+
+    private static final Parallelism SERIAL = new Parallelism(null, 1);
+    // Below this many items per shard, forking costs more than it saves
+    private static final int MIN_SHARD_SIZE = 1024;
+    private final ForkJoinPool pool;
+    private final int shards;
+
+    private Parallelism(ForkJoinPool pool, int shards) {
+        this.pool = pool;
+        this.shards = shards;
+    }
+
+    /**
+     * Run everything on the calling thread.
+     *
+     * @return A Parallelism
+     */
+    public static Parallelism serial() {
+        return SERIAL;
+    }
+
+    /**
+     * Run on a pool, with four shards per thread, so uneven shards balance
+     * out.
+     *
+     * @param pool The pool
+     * @return A Parallelism
+     */
+    public static Parallelism forkJoin(ForkJoinPool pool) {
+        return forkJoin(pool, pool.getParallelism() * 4);
+    }
+
+    /**
+     * Run on a pool, with a given number of shards.
+     *
+     * @param pool The pool
+     * @param shards The maximum number of shards to cut a range into
+     * @return A Parallelism
+     */
+    public static Parallelism forkJoin(ForkJoinPool pool, int shards) {
+        if (pool == null) {
+            throw new NullPointerException("Null pool");
+        }
+        if (shards < 1) {
+            throw new IllegalArgumentException("Shard count must be > 0: " + shards);
+        }
+        return new Parallelism(pool, shards);
+    }
+
+    /**
+     * A Parallelism on the same pool with one shard per thread, for passes
+     * in which every shard must look at all of the input, so that more
+     * shards would mean more repeated work rather than better balance.
+     *
+     * @return A Parallelism
+     */
+    Parallelism oneShardPerThread() {
+        return pool == null ? this : new Parallelism(pool, pool.getParallelism());
+    }
+
+    public boolean isParallel() {
+        return pool != null;
+    }
+
+    /**
+     * The number of shards a range of some size will be cut into.
+     *
+     * @param size The size of the range
+     * @return A number of shards, at least one
+     */
+    int shardCount(int size) {
+        if (pool == null) {
+            return 1;
+        }
+        return Math.max(1, Math.min(shards, size / MIN_SHARD_SIZE));
+    }
+
+    /**
+     * The first item of a shard.
+     */
+    static int shardStart(int size, int shardCount, int shard) {
+        return (int) (((long) size * shard) / shardCount);
+    }
+
+    /**
+     * Run a task over every shard of a range, returning when all are done.
+     *
+     * @param size The size of the range
+     * @param task The work
+     * @return The number of shards run
+     */
+    int run(int size, Shard task) {
+        int count = shardCount(size);
+        if (count == 1) {
+            task.compute(0, 0, size);
+        } else {
+            pool.invoke(new ShardAction(task, size, count, 0, count));
+        }
+        return count;
+    }
+
+    /**
+     * Work done over one contiguous sub-range.
+     */
+    interface Shard {
+
+        void compute(int shard, int from, int to);
+    }
+
+    private static final class ShardAction extends RecursiveAction {
+
+        private final Shard task;
+        private final int size;
+        private final int shardCount;
+        private final int first;
+        private final int last;
+
+        ShardAction(Shard task, int size, int shardCount, int first, int last) {
+            this.task = task;
+            this.size = size;
+            this.shardCount = shardCount;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first == 1) {
+                task.compute(first, shardStart(size, shardCount, first),
+                        shardStart(size, shardCount, last));
+            } else {
+                int middle = (first + last) >>> 1;
+                invokeAll(new ShardAction(task, size, shardCount, first, middle),
+                        new ShardAction(task, size, shardCount, middle, last));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return pool == null ? "serial" : shards + " shards on " + pool;
+    }
+}
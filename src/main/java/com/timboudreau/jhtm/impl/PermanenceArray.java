@@ -0,0 +1,688 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.Permanence;
+import com.timboudreau.jhtm.util.OffHeapMemory;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Primitive counterpart to Permanence:  stores committed permanence values and
+ * pending temporary adjustments for many synapses in two parallel sets of
+ * float buffers.  Adding to a permanence, committing pending values (the
+ * equivalent of Permanence.retainTemporaryValues()) and discarding them (the
+ * equivalent of Permanence.cullTemporaryValues()) never allocate, and can be
+ * done in bulk over a range of synapses or the whole array.
+ * <p/>
+ * Values are stored in fixed-size pages, and copies are copy-on-write:  a
+ * copy shares every page with the original, and the first write to a shared
+ * page by either of them copies just that page.  So copying costs one
+ * pointer per page, and a copy only grows by the pages touched after it was
+ * made.  A page of pending values is only allocated the first time a
+ * temporary adjustment is made to a synapse in it.
+ * <p/>
+ * Since pages are buffers, they can also be read-only slices of a
+ * memory-mapped snapshot file, which are never written to, only copied on
+ * the first write - so loading a snapshot costs nothing until pages are
+ * modified.  Or they can be allocated off-heap from an OffHeapMemory, in
+ * which case pages are larger, and pages of pending values are returned to
+ * it as soon as they are committed or discarded.
+ *
+ * @author Tim Boudreau
+ */
+final class PermanenceArray implements Serializable {
+
+    static final int PAGE_SHIFT = 12;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    // 256Kb pages, so a very large array is not millions of tiny buffers
+    static final int OFF_HEAP_PAGE_SHIFT = 16;
+    // Bytes per region of a file mapped at once, since a single mapping is
+    // limited to 2Gb
+    private static final int MAPPING_SHIFT = 30;
+    private final long size;
+    private final int pageShift;
+    private final int pageMask;
+    private transient OffHeapMemory memory;
+    private transient FloatBuffer[] committed;
+    private transient FloatBuffer[] pending;
+    // Whether this instance may write to each page without copying it first;
+    // an owned page is referenced by nothing else
+    private transient boolean[] ownsCommitted;
+    private transient boolean[] ownsPending;
+    private boolean hasPending;
+
+    PermanenceArray(long size) {
+        this(size, null);
+    }
+
+    PermanenceArray(long size, OffHeapMemory memory) {
+        this(size, memory == null ? PAGE_SHIFT : OFF_HEAP_PAGE_SHIFT, memory, true);
+    }
+
+    private PermanenceArray(long size, int pageShift, OffHeapMemory memory, boolean allocate) {
+        this.size = size;
+        this.pageShift = pageShift;
+        this.pageMask = (1 << pageShift) - 1;
+        this.memory = memory;
+        init();
+        if (allocate) {
+            for (int i = 0; i < committed.length; i++) {
+                committed[i] = newPage(i);
+            }
+            Arrays.fill(ownsCommitted, true);
+        }
+    }
+
+    private PermanenceArray(PermanenceArray other) {
+        size = other.size;
+        pageShift = other.pageShift;
+        pageMask = other.pageMask;
+        memory = other.memory;
+        committed = other.committed.clone();
+        pending = other.pending.clone();
+        ownsCommitted = new boolean[committed.length];
+        ownsPending = new boolean[committed.length];
+        hasPending = other.hasPending;
+        // Neither side may now write to the pages in place
+        Arrays.fill(other.ownsCommitted, false);
+        Arrays.fill(other.ownsPending, false);
+    }
+
+    private void init() {
+        long pages = (size + pageMask) >>> pageShift;
+        if (pages > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many values: " + size);
+        }
+        committed = new FloatBuffer[(int) pages];
+        pending = new FloatBuffer[(int) pages];
+        ownsCommitted = new boolean[(int) pages];
+        ownsPending = new boolean[(int) pages];
+    }
+
+    PermanenceArray copy() {
+        return new PermanenceArray(this);
+    }
+
+    private int pageLength(int page) {
+        return (int) Math.min(1 << pageShift, size - ((long) page << pageShift));
+    }
+
+    private FloatBuffer newPage(int page) {
+        return memory == null ? FloatBuffer.allocate(pageLength(page))
+                : memory.allocateFloats(pageLength(page));
+    }
+
+    /**
+     * Pages allocated off-heap are freed when their memory is closed;  fail
+     * with an exception rather than touch them afterwards.
+     */
+    private void checkOpen() {
+        if (memory != null) {
+            memory.checkOpen();
+        }
+    }
+
+    private FloatBuffer copyOf(int page, FloatBuffer old) {
+        FloatBuffer result = newPage(page);
+        FloatBuffer src = old.duplicate();
+        src.clear();
+        result.put(src);
+        result.clear();
+        return result;
+    }
+
+    private void release(FloatBuffer page) {
+        if (memory != null) {
+            memory.release(page);
+        }
+    }
+
+    private FloatBuffer committedForWrite(int page) {
+        if (!ownsCommitted[page]) {
+            committed[page] = copyOf(page, committed[page]);
+            ownsCommitted[page] = true;
+        }
+        return committed[page];
+    }
+
+    private FloatBuffer pendingForWrite(int page) {
+        FloatBuffer result = pending[page];
+        if (result == null) {
+            result = pending[page] = newPage(page);
+            ownsPending[page] = true;
+        } else if (!ownsPending[page]) {
+            result = pending[page] = copyOf(page, result);
+            ownsPending[page] = true;
+        }
+        hasPending = true;
+        return result;
+    }
+
+    /**
+     * Drop the pending values of one page, returning its memory if nothing
+     * else shares it.
+     */
+    private void dropPending(int page) {
+        if (ownsPending[page]) {
+            release(pending[page]);
+            ownsPending[page] = false;
+        }
+        pending[page] = null;
+    }
+
+    long size() {
+        return size;
+    }
+
+    int pageCount() {
+        return committed.length;
+    }
+
+    /**
+     * The number of pages of committed values this instance has written to
+     * since it was created or last copied, and so does not share.
+     */
+    int ownedPages() {
+        int result = 0;
+        for (boolean owned : ownsCommitted) {
+            if (owned) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    long sizeInBytes() {
+        long result = size * 4L;
+        for (int page = 0; page < pending.length; page++) {
+            if (pending[page] != null) {
+                result += pageLength(page) * 4L;
+            }
+        }
+        return result;
+    }
+
+    double get(long i) {
+        checkOpen();
+        int page = (int) (i >>> pageShift);
+        int ix = (int) i & pageMask;
+        float result = committed[page].get(ix);
+        if (hasPending) {
+            FloatBuffer p = pending[page];
+            if (p != null) {
+                result += p.get(ix);
+            }
+        }
+        return result;
+    }
+
+    double committed(long i) {
+        checkOpen();
+        return committed[(int) (i >>> pageShift)].get((int) i & pageMask);
+    }
+
+    double pending(long i) {
+        checkOpen();
+        if (!hasPending) {
+            return 0D;
+        }
+        FloatBuffer p = pending[(int) (i >>> pageShift)];
+        return p == null ? 0D : p.get((int) i & pageMask);
+    }
+
+    boolean hasPending() {
+        return hasPending;
+    }
+
+    /**
+     * Materialize a Permanence object for one element, for callers of the
+     * object-based API.  Allocates unless the value is zero.
+     */
+    Permanence permanence(long i) {
+        double c = committed(i);
+        double p = pending(i);
+        if (p == 0D) {
+            return c == 0D ? Permanence.ZERO : Permanence.create(c);
+        }
+        return Permanence.create(c).add(p, true);
+    }
+
+    double add(long i, double amount, boolean temporary) {
+        checkOpen();
+        int page = (int) (i >>> pageShift);
+        int ix = (int) i & pageMask;
+        FloatBuffer buf = temporary ? pendingForWrite(page) : committedForWrite(page);
+        buf.put(ix, (float) (buf.get(ix) + amount));
+        return get(i);
+    }
+
+    void set(long i, double committedValue, double pendingValue) {
+        checkOpen();
+        int page = (int) (i >>> pageShift);
+        int ix = (int) i & pageMask;
+        committedForWrite(page).put(ix, (float) committedValue);
+        if (pendingValue != 0D) {
+            pendingForWrite(page).put(ix, (float) pendingValue);
+        } else if (pending[page] != null && pending[page].get(ix) != 0F) {
+            pendingForWrite(page).put(ix, 0F);
+        }
+    }
+
+    Permanence set(long i, Permanence permanence) {
+        Permanence old = permanence(i);
+        double permanent = permanence.cullTemporaryValues().get();
+        set(i, permanent, permanence.get() - permanent);
+        return old;
+    }
+
+    void fill(double value) {
+        checkOpen();
+        float f = (float) value;
+        for (int page = 0; page < committed.length; page++) {
+            FloatBuffer buf = committedForWrite(page);
+            for (int i = 0; i < pageLength(page); i++) {
+                buf.put(i, f);
+            }
+        }
+    }
+
+    /**
+     * Fold pending temporary values into the committed value of one element.
+     */
+    void commit(long i) {
+        commit(i, i + 1);
+    }
+
+    /**
+     * Throw away pending temporary values of one element.
+     */
+    void discard(long i) {
+        discard(i, i + 1);
+    }
+
+    /**
+     * Fold pending temporary values into committed values for elements from
+     * start (inclusive) to end (exclusive).
+     */
+    void commit(long start, long end) {
+        checkOpen();
+        if (!hasPending) {
+            return;
+        }
+        while (start < end) {
+            int page = (int) (start >>> pageShift);
+            long pageEnd = Math.min(end, (long) (page + 1) << pageShift);
+            if (pending[page] != null) {
+                FloatBuffer c = committedForWrite(page);
+                FloatBuffer p = pendingForWrite(page);
+                for (int i = (int) start & pageMask, max = i + (int) (pageEnd - start); i < max; i++) {
+                    c.put(i, c.get(i) + p.get(i));
+                    p.put(i, 0F);
+                }
+            }
+            start = pageEnd;
+        }
+    }
+
+    /**
+     * Throw away pending temporary values for elements from start (inclusive)
+     * to end (exclusive).
+     */
+    void discard(long start, long end) {
+        checkOpen();
+        if (!hasPending) {
+            return;
+        }
+        while (start < end) {
+            int page = (int) (start >>> pageShift);
+            long pageEnd = Math.min(end, (long) (page + 1) << pageShift);
+            if (pending[page] != null) {
+                FloatBuffer p = pendingForWrite(page);
+                for (int i = (int) start & pageMask, max = i + (int) (pageEnd - start); i < max; i++) {
+                    p.put(i, 0F);
+                }
+            }
+            start = pageEnd;
+        }
+    }
+
+    void commit() {
+        checkOpen();
+        if (hasPending) {
+            for (int page = 0; page < pending.length; page++) {
+                FloatBuffer p = pending[page];
+                if (p != null) {
+                    FloatBuffer c = committedForWrite(page);
+                    for (int i = 0; i < pageLength(page); i++) {
+                        c.put(i, c.get(i) + p.get(i));
+                    }
+                    dropPending(page);
+                }
+            }
+            hasPending = false;
+        }
+    }
+
+    void discard() {
+        if (hasPending) {
+            for (int page = 0; page < pending.length; page++) {
+                dropPending(page);
+            }
+            hasPending = false;
+        }
+    }
+
+    /**
+     * Compute the changes needed to turn an older copy of this array into
+     * this one.  Only pages which are not shared with the older copy are
+     * examined, so for two generations of the same array the cost is
+     * proportional to the pages written in between.
+     *
+     * @param older An older copy of this array
+     * @return A delta
+     */
+    Delta deltaFrom(PermanenceArray older) {
+        checkOpen();
+        if (older.size != size || older.pageShift != pageShift) {
+            throw new IllegalArgumentException("Different sizes " + older.size
+                    + " and " + size);
+        }
+        Delta result = new Delta(size);
+        for (int page = 0; page < committed.length; page++) {
+            if (committed[page] == older.committed[page] && pending[page] == older.pending[page]) {
+                continue;
+            }
+            FloatBuffer c = committed[page];
+            FloatBuffer oc = older.committed[page];
+            FloatBuffer p = pending[page];
+            FloatBuffer op = older.pending[page];
+            long base = (long) page << pageShift;
+            for (int i = 0; i < pageLength(page); i++) {
+                float value = c.get(i);
+                float pend = p == null ? 0F : p.get(i);
+                if (value != oc.get(i) || pend != (op == null ? 0F : op.get(i))) {
+                    result.add(base + i, value, pend);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Apply a delta computed against this array (or an identical one).
+     *
+     * @param delta A delta
+     */
+    void apply(Delta delta) {
+        if (delta.size != size) {
+            throw new IllegalArgumentException("Delta is for an array of "
+                    + delta.size + " not " + size);
+        }
+        for (int i = 0; i < delta.changed; i++) {
+            set(delta.slots[i], delta.committed[i], delta.pending[i]);
+        }
+        for (int i = 0; i < delta.removed; i++) {
+            set(delta.removedSlots[i], 0D, 0D);
+        }
+    }
+
+    private static int headerSize(int version) {
+        return version == 1 ? 8 : 16;
+    }
+
+    /**
+     * The number of bytes writeTo() writes, or wrote in the passed version of
+     * the snapshot file format.
+     */
+    long binarySize(int version) {
+        return headerSize(version) + size * (hasPending ? 8L : 4L);
+    }
+
+    /**
+     * Write the committed values, and pending values if there are any, as
+     * little-endian floats, preceded by the size as a long and 1 or 0 as an
+     * int for whether pending values follow, and four bytes of padding.
+     */
+    void writeTo(WritableByteChannel channel) throws IOException {
+        checkOpen();
+        ByteBuffer buf = ByteBuffer.allocate(4 << pageShift).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putLong(size);
+        buf.putInt(hasPending ? 1 : 0);
+        buf.putInt(0);
+        buf.flip();
+        writeFully(channel, buf);
+        writePages(channel, committed, buf);
+        if (hasPending) {
+            writePages(channel, pending, buf);
+        }
+    }
+
+    private void writePages(WritableByteChannel channel, FloatBuffer[] pages, ByteBuffer buf) throws IOException {
+        for (int page = 0; page < pages.length; page++) {
+            buf.clear();
+            FloatBuffer p = pages[page];
+            for (int i = 0; i < pageLength(page); i++) {
+                buf.putFloat(p == null ? 0F : p.get(i));
+            }
+            buf.flip();
+            writeFully(channel, buf);
+        }
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Create an array whose pages are read-only, memory-mapped regions of a
+     * file written by writeTo(), starting at the passed position.
+     *
+     * @param channel A file channel open for reading
+     * @param position The position writeTo() started writing at
+     * @param version The version of the file format
+     * @param memory Memory to allocate modified pages from, or null to
+     * use the heap
+     * @return An array
+     * @throws IOException If the file cannot be mapped or is truncated
+     */
+    static PermanenceArray map(FileChannel channel, long position, int version, OffHeapMemory memory) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(headerSize(version)).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, position + header.position()) < 0) {
+                throw new IOException("Truncated permanences at " + position);
+            }
+        }
+        header.flip();
+        long size = version == 1 ? header.getInt() : header.getLong();
+        boolean hasPending = header.getInt() != 0;
+        long start = position + headerSize(version);
+        if (size < 0 || start + size * (hasPending ? 8L : 4L) > channel.size()) {
+            throw new IOException("Truncated or corrupt permanences at "
+                    + position + " for " + size + " values");
+        }
+        PermanenceArray result = new PermanenceArray(size,
+                memory == null ? PAGE_SHIFT : OFF_HEAP_PAGE_SHIFT, memory, false);
+        result.mapPages(channel, start, result.committed);
+        if (hasPending) {
+            result.mapPages(channel, start + size * 4L, result.pending);
+            result.hasPending = true;
+        }
+        return result;
+    }
+
+    private void mapPages(FileChannel channel, long start, FloatBuffer[] into) throws IOException {
+        int pagesPerMapping = 1 << (MAPPING_SHIFT - pageShift - 2);
+        for (int first = 0; first < into.length; first += pagesPerMapping) {
+            int last = Math.min(into.length, first + pagesPerMapping);
+            long from = (long) first << pageShift;
+            long to = Math.min(size, (long) last << pageShift);
+            ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY,
+                    start + from * 4L, (to - from) * 4L);
+            for (int page = first; page < last; page++) {
+                int offset = (page - first) << (pageShift + 2);
+                region.limit(offset + pageLength(page) * 4);
+                region.position(offset);
+                into[page] = region.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        for (int page = 0; page < committed.length; page++) {
+            out.writeObject(toArray(committed[page]));
+            out.writeObject(pending[page] == null ? null : toArray(pending[page]));
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        init();
+        for (int page = 0; page < committed.length; page++) {
+            committed[page] = FloatBuffer.wrap((float[]) in.readObject());
+            float[] p = (float[]) in.readObject();
+            pending[page] = p == null ? null : FloatBuffer.wrap(p);
+            ownsCommitted[page] = true;
+            ownsPending[page] = p != null;
+        }
+    }
+
+    private float[] toArray(FloatBuffer buf) {
+        checkOpen();
+        float[] result = new float[buf.capacity()];
+        FloatBuffer src = buf.duplicate();
+        src.clear();
+        src.get(result);
+        return result;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int page = 0; page < committed.length; page++) {
+            FloatBuffer buf = committed[page];
+            for (int i = 0; i < pageLength(page); i++) {
+                result = 31 * result + Float.floatToIntBits(buf.get(i));
+            }
+        }
+        return 37 * result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof PermanenceArray)) {
+            return false;
+        }
+        PermanenceArray other = (PermanenceArray) o;
+        if (other.size != size) {
+            return false;
+        }
+        for (int page = 0; page < committed.length; page++) {
+            long start = (long) page << pageShift;
+            long end = start + pageLength(page);
+            // Shared pages are trivially equal
+            boolean sameCommitted = other.pageShift == pageShift && committed[page] == other.committed[page];
+            for (long i = start; i < end; i++) {
+                if ((!sameCommitted && committed(i) != other.committed(i)) || pending(i) != other.pending(i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The elements which differ between two generations of an array.
+     * Elements which have dropped to zero - synapses which have been
+     * removed - are stored as just an index.
+     */
+    static final class Delta implements Serializable {
+
+        private final long size;
+        private long[] slots = new long[16];
+        private float[] committed = new float[16];
+        private float[] pending = new float[16];
+        private int changed;
+        private long[] removedSlots = new long[16];
+        private int removed;
+
+        Delta(long size) {
+            this.size = size;
+        }
+
+        private void add(long slot, float committedValue, float pendingValue) {
+            if (committedValue == 0F && pendingValue == 0F) {
+                if (removed == removedSlots.length) {
+                    removedSlots = Arrays.copyOf(removedSlots, Math.max(16, removed * 2));
+                }
+                removedSlots[removed++] = slot;
+                return;
+            }
+            if (changed == slots.length) {
+                int newLength = Math.max(16, changed * 2);
+                slots = Arrays.copyOf(slots, newLength);
+                committed = Arrays.copyOf(committed, newLength);
+                pending = Arrays.copyOf(pending, newLength);
+            }
+            slots[changed] = slot;
+            committed[changed] = committedValue;
+            pending[changed++] = pendingValue;
+        }
+
+        /**
+         * The number of elements whose value changed to something other than
+         * zero.
+         */
+        int changed() {
+            return changed;
+        }
+
+        /**
+         * The number of elements whose value changed to zero.
+         */
+        int removed() {
+            return removed;
+        }
+
+        boolean isEmpty() {
+            return changed == 0 && removed == 0;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            // Don't ship the unused tails of the arrays
+            slots = Arrays.copyOf(slots, changed);
+            committed = Arrays.copyOf(committed, changed);
+            pending = Arrays.copyOf(pending, changed);
+            removedSlots = Arrays.copyOf(removedSlots, removed);
+            out.defaultWriteObject();
+        }
+    }
+}
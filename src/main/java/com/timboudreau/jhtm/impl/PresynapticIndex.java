@@ -0,0 +1,133 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.impl;
+
+/**
+ * Reverse of a DistalPathTable:  for each presynaptic column, every
+ * (segment, step) pair whose path passes through it, in compressed-sparse-row
+ * form.  Since each step of a segment's path has one synapse per cell of the
+ * column it lands on, the synapse from cell <i>i</i> of that column is at slot
+ * <code>segment * slotsPerDendrite + step * cellsPerColumn + i</code> of
+ * the DistalPermanenceStore;  indexing by column rather than by cell keeps
+ * the index cellsPerColumn times smaller.
+ * <p/>
+ * With this, the segments affected by a set of active cells can be found by
+ * visiting only the entries of those cells' columns, so computing segment
+ * activity costs time proportional to activity rather than to the number of
+ * synapses in the layer.
+ *
+ * @author Tim Boudreau
+ */
+final class PresynapticIndex {
+
+    private final int[] offsets;
+    private final int[] segments;
+    private final int[] steps;
+
+    private PresynapticIndex(int[] offsets, int[] segments, int[] steps) {
+        this.offsets = offsets;
+        this.segments = segments;
+        this.steps = steps;
+    }
+
+    static PresynapticIndex build(DistalPathTable table, int columnCount) {
+        int[] offsets = new int[columnCount + 1];
+        int entries = table.size();
+        for (int entry = 0; entry < entries; entry++) {
+            offsets[table.column(entry) + 1]++;
+        }
+        for (int column = 0; column < columnCount; column++) {
+            offsets[column + 1] += offsets[column];
+        }
+        int[] cursors = new int[columnCount];
+        System.arraycopy(offsets, 0, cursors, 0, columnCount);
+        int[] segments = new int[entries];
+        int[] steps = new int[entries];
+        int segmentCount = table.segmentCount();
+        int dendritesPerCell = table.dendritesPerCell();
+        // Walking segments in order leaves each column's run sorted by
+        // segment, then by step
+        for (int segment = 0; segment < segmentCount; segment++) {
+            int cell = segment / dendritesPerCell;
+            int dendrite = segment % dendritesPerCell;
+            int start = table.start(cell, dendrite);
+            int end = table.end(cell, dendrite);
+            for (int entry = start; entry < end; entry++) {
+                int position = cursors[table.column(entry)]++;
+                segments[position] = segment;
+                steps[position] = entry - start;
+            }
+        }
+        return new PresynapticIndex(offsets, segments, steps);
+    }
+
+    /**
+     * The index of the first entry for a presynaptic column.
+     */
+    int start(int column) {
+        return offsets[column];
+    }
+
+    /**
+     * One past the index of the last entry for a presynaptic column.
+     */
+    int end(int column) {
+        return offsets[column + 1];
+    }
+
+    /**
+     * The first entry for a presynaptic column whose segment is at or
+     * above a given one, or end(column) if there is none - entries for a
+     * column are sorted by segment, so a range of segments maps to a
+     * contiguous range of entries.
+     */
+    int lowerBound(int column, int segment) {
+        int low = offsets[column];
+        int high = offsets[column + 1];
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (segments[middle] < segment) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The segment (cell * dendritesPerCell + dendrite) at an entry.
+     */
+    int segment(int entry) {
+        return segments[entry];
+    }
+
+    /**
+     * The step along the segment's path at an entry.
+     */
+    int step(int entry) {
+        return steps[entry];
+    }
+
+    int size() {
+        return segments.length;
+    }
+
+    int sizeInBytes() {
+        return (offsets.length + segments.length + steps.length) * 4;
+    }
+}
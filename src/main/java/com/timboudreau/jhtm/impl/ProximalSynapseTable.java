@@ -0,0 +1,252 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.Permanence;
+import com.timboudreau.jhtm.util.Bits;
+import com.timboudreau.jhtm.util.IntVisitor;
+import com.timboudreau.jhtm.util.Visitor;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Compressed-sparse-row storage for proximal synapses:  the input bit indices
+ * of every column's synapses are stored contiguously in one int array, with
+ * permanences in a parallel float array, and a per-column offset table
+ * recording where each column's run of synapses starts.  Within a column,
+ * synapses are sorted by input bit index.
+ *
+ * @author Tim Boudreau
+ */
+final class ProximalSynapseTable implements Serializable {
+
+    private final int[] offsets;
+    private final int[] bits;
+    final PermanenceArray values;
+
+    ProximalSynapseTable(int[] offsets, int[] bits, PermanenceArray values) {
+        this.offsets = offsets;
+        this.bits = bits;
+        this.values = values;
+    }
+
+    private ProximalSynapseTable(ProximalSynapseTable other) {
+        this.offsets = other.offsets;
+        this.bits = other.bits;
+        this.values = other.values.copy();
+    }
+
+    ProximalSynapseTable copy() {
+        // Offsets and bits are never modified after construction, so they
+        // can be shared
+        return new ProximalSynapseTable(this);
+    }
+
+    int columnCount() {
+        return offsets.length - 1;
+    }
+
+    int size() {
+        return bits.length;
+    }
+
+    int start(int column) {
+        return offsets[column];
+    }
+
+    int end(int column) {
+        return offsets[column + 1];
+    }
+
+    int bit(int synapse) {
+        return bits[synapse];
+    }
+
+    int indexOf(int column, int bit) {
+        int result = Arrays.binarySearch(bits, offsets[column], offsets[column + 1], bit);
+        return result < 0 ? -1 : result;
+    }
+
+    double value(int synapse) {
+        return values.get(synapse);
+    }
+
+    Permanence get(int synapse) {
+        return values.permanence(synapse);
+    }
+
+    Permanence add(int synapse, double amount, boolean temp) {
+        values.add(synapse, amount, temp);
+        return values.permanence(synapse);
+    }
+
+    Permanence set(int synapse, Permanence permanence) {
+        return values.set(synapse, permanence);
+    }
+
+    /**
+     * Count the synapses of a column whose permanence is at least the
+     * connected threshold and whose input bit is active.
+     *
+     * @param column The column
+     * @param activeInputs The set of active input bits
+     * @param connected The connected permanence threshold
+     * @return The overlap
+     */
+    int overlap(int column, Bits activeInputs, double connected) {
+        int result = 0;
+        int end = offsets[column + 1];
+        for (int i = offsets[column]; i < end; i++) {
+            if (values.get(i) >= connected && activeInputs.get(bits[i])) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Load a set of active input bits into a plain bitmap for the overloads
+     * which take one, visiting only the set bits, so that no Bits
+     * implementation boxes or rescans.
+     *
+     * @param activeInputs The active inputs
+     * @param words A bitmap of (activeInputs.size() + 63) / 64 words, which
+     * must be all zeros
+     * @return The words
+     */
+    static long[] load(Bits activeInputs, final long[] words) {
+        activeInputs.forEach(new IntVisitor() {
+
+            @Override
+            public Visitor.Result visit(int bit) {
+                words[bit >>> 6] |= 1L << bit;
+                return Visitor.Result.NOT_DONE;
+            }
+        });
+        return words;
+    }
+
+    /**
+     * Count the synapses of a column whose permanence is at least the
+     * connected threshold and whose input bit is active, testing bits in a
+     * plain bitmap rather than a Bits.
+     *
+     * @param column The column
+     * @param activeWords The active input bits, 64 per long
+     * @param connected The connected permanence threshold
+     * @return The overlap
+     */
+    int overlap(int column, long[] activeWords, double connected) {
+        int result = 0;
+        int end = offsets[column + 1];
+        for (int i = offsets[column]; i < end; i++) {
+            int bit = bits[i];
+            if ((activeWords[bit >>> 6] & (1L << bit)) != 0 && values.get(i) >= connected) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hebbian learning for one column:  raise the committed permanence of
+     * synapses onto active input bits, lower the rest, keeping values
+     * between 0 and 1.  Pending temporary values are left alone.
+     *
+     * @param column The column
+     * @param activeWords The active input bits, 64 per long
+     * @param increment The amount to add for active inputs
+     * @param decrement The amount to subtract for inactive inputs
+     */
+    void learn(int column, long[] activeWords, double increment, double decrement) {
+        int end = offsets[column + 1];
+        for (int i = offsets[column]; i < end; i++) {
+            double committed = values.committed(i);
+            int bit = bits[i];
+            double updated = (activeWords[bit >>> 6] & (1L << bit)) != 0 ? Math.min(1D, committed + increment)
+                    : Math.max(0D, committed - decrement);
+            if (updated != committed) {
+                values.set(i, updated, values.pending(i));
+            }
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bits) + 37 * values.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof ProximalSynapseTable)) {
+            return false;
+        }
+        ProximalSynapseTable other = (ProximalSynapseTable) o;
+        return Arrays.equals(offsets, other.offsets) && Arrays.equals(bits, other.bits)
+                && values.equals(other.values);
+    }
+
+    /**
+     * Accumulates rows of synapses in any column order, and packs them into
+     * a table.
+     */
+    static final class Builder {
+
+        private final int[][] rows;
+        private final int[] rowSizes;
+
+        Builder(int columnCount) {
+            rows = new int[columnCount][];
+            rowSizes = new int[columnCount];
+        }
+
+        /**
+         * Replace the row for a column.  Duplicate bits are collapsed.
+         */
+        void setRow(int column, int[] bits, int count) {
+            int[] row = Arrays.copyOf(bits, count);
+            Arrays.sort(row);
+            int unique = 0;
+            for (int i = 0; i < row.length; i++) {
+                if (unique == 0 || row[unique - 1] != row[i]) {
+                    row[unique++] = row[i];
+                }
+            }
+            rows[column] = row;
+            rowSizes[column] = unique;
+        }
+
+        ProximalSynapseTable build(double initialPermanence) {
+            int[] offsets = new int[rows.length + 1];
+            for (int i = 0; i < rows.length; i++) {
+                offsets[i + 1] = offsets[i] + rowSizes[i];
+            }
+            int[] bits = new int[offsets[rows.length]];
+            for (int i = 0; i < rows.length; i++) {
+                if (rows[i] != null) {
+                    System.arraycopy(rows[i], 0, bits, offsets[i], rowSizes[i]);
+                }
+            }
+            PermanenceArray values = new PermanenceArray(bits.length);
+            values.fill(initialPermanence);
+            return new ProximalSynapseTable(offsets, bits, values);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.impl;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small, fixed-size, direct-mapped cache of the presynaptic columns of
+ * distal segments, for layers whose paths are generated rather than stored.
+ * Each segment can only live in one slot (segment mod capacity), so a lookup
+ * is one array read and a comparison;  a newer segment simply replaces an
+ * older one.  Entries are immutable and published through an
+ * AtomicReferenceArray, so the cache can be shared by threads without
+ * locking.
+ *
+ * @author Tim Boudreau
+ */
+final class SegmentColumnCache {
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+
+    SegmentColumnCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be > 0: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity && size < 1 << 30) {
+            size <<= 1;
+        }
+        entries = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    int capacity() {
+        return entries.length();
+    }
+
+    int[] get(int segment) {
+        Entry e = entries.get(segment & mask);
+        return e != null && e.segment == segment ? e.columns : null;
+    }
+
+    void put(int segment, int[] columns) {
+        entries.set(segment & mask, new Entry(segment, columns));
+    }
+
+    private static final class Entry {
+
+        final int segment;
+        final int[] columns;
+
+        Entry(int segment, int[] columns) {
+            this.segment = segment;
+            this.columns = columns;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.BoostFactor;
+import com.timboudreau.jhtm.util.Bits;
+import com.timboudreau.jhtm.util.IntVisitor;
+import com.timboudreau.jhtm.util.OffHeapMemory;
+import com.timboudreau.jhtm.util.Visitor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Reads and writes snapshots in a versioned binary format which can be
+ * memory-mapped and used as the live backing store, rather than rebuilt
+ * object by object as Java serialization does.  Permanences - the bulk of any
+ * model - are mapped read-only and copied a page at a time as they are
+ * modified, so opening a snapshot of any size takes milliseconds.
+ * <p/>
+ * All values are little-endian.  Every file starts with a header of the magic
+ * number 0x4D54484A ("JHTM"), a format version, and the kind of snapshot.  A
+ * layer snapshot then holds:
+ * <ul>
+ * <li>the total cells, cells per column, distal dendrites per cell and maximum
+ * path length, as ints</li>
+ * <li>the activated and then the predictive cells, each as a count followed
+ * by that many ascending int indices</li>
+ * <li>the predicted-active columns, likewise</li>
+ * <li>the distal permanences:  the number of values as a long, 1 or 0 as
+ * an int for whether pending temporary values follow, four bytes of padding,
+ * then the committed values as floats, then the pending values if
+ * present</li>
+ * </ul>
+ * An input mapping snapshot holds 1 or 0 for whether a table of proximal
+ * synapses follows;  if it does, the column count and synapse count, the
+ * column offsets and sorted input bit indices as ints, and the permanences
+ * as above.  Then the count of boost factors, and for each, the column as an
+ * int and its multiplier as a double.
+ * <p/>
+ * Version 2 lacks the predicted-active columns, which are derived from the
+ * cells when it is read.  Version 1 also stores the number of permanences
+ * as an int, with no padding.  Files are written to a temporary file and renamed into
+ * place, so overwriting a file which is currently mapped is safe.
+ *
+ * @author Tim Boudreau
+ */
+final class SnapshotFiles {
+
+    static final int MAGIC = 0x4D54484A;
+    static final int VERSION = 3;
+    static final int KIND_LAYER = 1;
+    static final int KIND_INPUT_MAPPING = 2;
+
+    private SnapshotFiles() {
+        throw new AssertionError();
+    }
+
+    static void write(LayerSnapshot<?> snapshot, Path file) throws IOException {
+        Path tmp = tempFile(file);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(channel);
+            out.header(KIND_LAYER);
+            DistalPermanenceStore store = snapshot.permanences;
+            out.putInt(snapshot.activatedCells.size());
+            out.putInt(store.cellsPerColumn());
+            out.putInt(store.dendritesPerCell());
+            out.putInt(store.maxPathLength());
+            out.putBits(snapshot.activatedCells);
+            out.putBits(snapshot.predictiveCells);
+            out.putBits(snapshot.predictedActiveColumns);
+            out.flush();
+            store.values.writeTo(channel);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static LayerSnapshot<?> readLayer(Path file, OffHeapMemory memory) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Input in = new Input(channel, file);
+            int version = in.header(KIND_LAYER);
+            int totalCells = in.getInt();
+            int cellsPerColumn = in.getInt();
+            int dendritesPerCell = in.getInt();
+            int maxPathLength = in.getInt();
+            Bits activated = in.getBits(totalCells, memory);
+            Bits predictive = in.getBits(totalCells, memory);
+            Bits predictedActive = version < 3 ? null
+                    : in.getBits(cellsPerColumn == 0 ? 0 : totalCells / cellsPerColumn, null);
+            PermanenceArray values = PermanenceArray.map(channel, in.position, version, memory);
+            if (values.size() != (long) totalCells * cellsPerColumn * dendritesPerCell * maxPathLength) {
+                throw new IOException("Wrong number of permanences " + values.size() + " in " + file);
+            }
+            // The mappings remain valid after the channel is closed
+            DistalPermanenceStore store = new DistalPermanenceStore(cellsPerColumn, dendritesPerCell, maxPathLength, values);
+            return predictedActive == null ? new LayerSnapshot<>(activated, predictive, store)
+                    : new LayerSnapshot<>(activated, predictive, predictedActive, store);
+        }
+    }
+
+    static void write(InputMappingSnapshot snapshot, Path file) throws IOException {
+        Path tmp = tempFile(file);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(channel);
+            out.header(KIND_INPUT_MAPPING);
+            ProximalSynapseTable synapses = snapshot.synapses;
+            out.putInt(synapses == null ? 0 : 1);
+            if (synapses != null) {
+                int columns = synapses.columnCount();
+                out.putInt(columns);
+                out.putInt(synapses.size());
+                for (int i = 0; i < columns; i++) {
+                    out.putInt(synapses.start(i));
+                }
+                out.putInt(synapses.size());
+                for (int i = 0; i < synapses.size(); i++) {
+                    out.putInt(synapses.bit(i));
+                }
+                out.flush();
+                synapses.values.writeTo(channel);
+            }
+            out.putInt(snapshot.boostFactorForColumn.size());
+            for (Map.Entry<Integer, BoostFactor> e : snapshot.boostFactorForColumn.entrySet()) {
+                out.putInt(e.getKey());
+                out.putDouble(e.getValue().multiplier());
+            }
+            out.flush();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static InputMappingSnapshot readInputMapping(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Input in = new Input(channel, file);
+            int version = in.header(KIND_INPUT_MAPPING);
+            ProximalSynapseTable synapses = null;
+            if (in.getInt() != 0) {
+                int columns = in.getInt();
+                int count = in.getInt();
+                int[] offsets = in.getInts(columns + 1);
+                int[] bits = in.getInts(count);
+                PermanenceArray values = PermanenceArray.map(channel, in.position, version, null);
+                if (values.size() != count) {
+                    throw new IOException("Wrong number of permanences " + values.size() + " in " + file);
+                }
+                in.position += values.binarySize(version);
+                synapses = new ProximalSynapseTable(offsets, bits, values);
+            }
+            InputMappingSnapshot result = new InputMappingSnapshot(synapses);
+            int boosts = in.getInt();
+            for (int i = 0; i < boosts; i++) {
+                int column = in.getInt();
+                result.boostFactorForColumn.put(column, BoostFactor.create(in.getDouble()));
+            }
+            return result;
+        }
+    }
+
+    private static Path tempFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    private static final class Output {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(65536).order(ByteOrder.LITTLE_ENDIAN);
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void header(int kind) throws IOException {
+            putInt(MAGIC);
+            putInt(VERSION);
+            putInt(kind);
+        }
+
+        void putInt(int value) throws IOException {
+            if (buffer.remaining() < 4) {
+                flush();
+            }
+            buffer.putInt(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            if (buffer.remaining() < 8) {
+                flush();
+            }
+            buffer.putDouble(value);
+        }
+
+        void putBits(Bits bits) throws IOException {
+            putInt(bits.cardinality());
+            final IOException[] thrown = new IOException[1];
+            bits.forEach(new IntVisitor() {
+
+                @Override
+                public Visitor.Result visit(int value) {
+                    try {
+                        putInt(value);
+                        return Visitor.Result.NOT_DONE;
+                    } catch (IOException ex) {
+                        thrown[0] = ex;
+                        return Visitor.Result.DONE;
+                    }
+                }
+            });
+            if (thrown[0] != null) {
+                throw thrown[0];
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    private static final class Input {
+
+        private final FileChannel channel;
+        private final Path file;
+        private final ByteBuffer scratch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        long position;
+
+        Input(FileChannel channel, Path file) {
+            this.channel = channel;
+            this.file = file;
+        }
+
+        int header(int kind) throws IOException {
+            if (channel.size() < 12 || getInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            int version = getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + file);
+            }
+            int actualKind = getInt();
+            if (actualKind != kind) {
+                throw new IOException("Expected snapshot of kind " + kind + " but got "
+                        + actualKind + " in " + file);
+            }
+            return version;
+        }
+
+        private ByteBuffer read(int bytes) throws IOException {
+            scratch.clear();
+            scratch.limit(bytes);
+            while (scratch.hasRemaining()) {
+                if (channel.read(scratch, position + scratch.position()) < 0) {
+                    throw new IOException("Truncated snapshot file " + file);
+                }
+            }
+            position += bytes;
+            scratch.flip();
+            return scratch;
+        }
+
+        int getInt() throws IOException {
+            return read(4).getInt();
+        }
+
+        double getDouble() throws IOException {
+            return read(8).getDouble();
+        }
+
+        private IntBuffer map(int count) throws IOException {
+            if (count < 0 || position + count * 4L > channel.size()) {
+                throw new IOException("Truncated snapshot file " + file);
+            }
+            IntBuffer result = channel.map(FileChannel.MapMode.READ_ONLY, position, count * 4L)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            position += count * 4L;
+            return result;
+        }
+
+        int[] getInts(int count) throws IOException {
+            int[] result = new int[count];
+            map(count).get(result);
+            return result;
+        }
+
+        Bits getBits(int size, OffHeapMemory memory) throws IOException {
+            IntBuffer ints = map(getInt());
+            Bits result = memory == null ? Bits.create(size, Bits.Storage.COMPRESSED)
+                    : Bits.create(size, memory);
+            for (int i = 0; i < ints.capacity(); i++) {
+                result.set(ints.get(i));
+            }
+            return result;
+        }
+    }
+}
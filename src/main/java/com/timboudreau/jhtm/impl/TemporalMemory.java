@@ -0,0 +1,357 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.system.Thresholds;
+import com.timboudreau.jhtm.util.Bits;
+import java.util.Arrays;
+
+/**
+ * Computes which cells of a layer become active and predictive, from the
+ * columns activated by a spatial pooler and the cells active in the previous
+ * step.
+ * <p/>
+ * In each step, a cell of an active column becomes active if it was
+ * predicted in the previous step.  If no cell of an active column was
+ * predicted, the column bursts:  all of its cells become active, and the
+ * one whose segment best matches the previously active cells becomes the
+ * winner.  Predicted cells are winners too.  With learning on, each winner's
+ * segment is reinforced - synapses onto previously active cells are
+ * strengthened, the rest weakened.  Finally the synapses onto the
+ * now-active cells are counted per distal segment, and the cells of segments
+ * with at least Thresholds.activationThreshold() connected ones become
+ * predictive.
+ * <p/>
+ * Segment activity is accumulated through the layer's PresynapticIndex,
+ * visiting only the synapses onto active cells, so that part of a step costs
+ * time proportional to activity rather than to the size of the layer.
+ * Learning scans winning segments through the compiled DistalPathTable, and
+ * permanences are read straight from the permanence store, so once its
+ * buffers have grown to the layer's level of activity a step allocates
+ * nothing.  Segment counting may be spread across threads by passing a
+ * parallel Parallelism, which shards segments - one shard per thread, since
+ * each shard visits all of the active cells - so that no two threads write
+ * the same counts;  results are identical either way.  Not thread-safe.
+ *
+ * @author Tim Boudreau
+ */
+public final class TemporalMemory<Coordinate> {
+
+    private final LayerImpl<Coordinate> layer;
+    private final DistalPathTable table;
+    private final PresynapticIndex index;
+    private final int cellsPerColumn;
+    private final int dendritesPerCell;
+    private final int activationThreshold;
+    private final int matchingThreshold;
+    private final double connectedPermanence;
+    private final double increment;
+    private final double decrement;
+    // Per segment (cell * dendritesPerCell + dendrite), from the last step:
+    // connected synapses onto active cells, synapses with a nonzero
+    // permanence onto active cells, and all synapses onto active cells
+    private final int[] connectedCounts;
+    private final int[] matchingCounts;
+    private final int[] reachableCounts;
+    // The segments whose counts are nonzero;  each shard of segments
+    // records its own in the same sub-range of this array, and its count in
+    // touchedCounts
+    private final int[] touched;
+    private final int[] touchedCounts;
+    private final Parallelism parallelism;
+    private final int segmentCount;
+    private final Parallelism.Shard countShard = new Parallelism.Shard() {
+
+        @Override
+        public void compute(int shard, int from, int to) {
+            countSegments(shard, from, to);
+        }
+    };
+    private final Bits winnerCells;
+    private final Bits predictedColumns;
+    // This step's active cells grouped by column, gathered once so that
+    // each shard of the counting pass need not rescan activeWords:  the
+    // position in each column of its active cells, in runs, and for each
+    // run its column and where it starts (the last entry ends the last run)
+    private int[] activeCellsInColumn = new int[64];
+    private int[] runColumns = new int[16];
+    private int[] runStarts = new int[17];
+    private int runCount;
+    // Active cells as plain bitmaps:  this step's, and the previous step's
+    private long[] activeWords;
+    private long[] previousWords;
+    private int activeSegments;
+
+    public TemporalMemory(LayerImpl<Coordinate> layer, Thresholds thresholds) {
+        this(layer, thresholds, Parallelism.serial());
+    }
+
+    /**
+     * Create a temporal memory.  Compiles the layer's distal paths and
+     * builds its PresynapticIndex if that has not been done - twelve bytes
+     * per path step.  For a layer with a ProceduralDistalLayout, compiling
+     * generates every path, costing about as much as laying out the layer;
+     * the passed Parallelism spreads that across threads too.
+     *
+     * @param layer The layer
+     * @param thresholds The thresholds
+     * @param parallelism How to spread compilation and segment counting
+     * across threads
+     */
+    public TemporalMemory(LayerImpl<Coordinate> layer, Thresholds thresholds, Parallelism parallelism) {
+        // Every shard visits every active cell, so more shards than threads
+        // only repeats work
+        this.parallelism = parallelism.oneShardPerThread();
+        this.index = layer.presynapticIndex(parallelism);
+        this.layer = layer;
+        this.table = layer.distalPaths;
+        this.cellsPerColumn = layer.cellsPerColumn;
+        int cells = layer.cellCount();
+        this.dendritesPerCell = layer.dendritesPerCell;
+        this.activationThreshold = thresholds.activationThreshold();
+        this.matchingThreshold = thresholds.matchingThreshold();
+        this.connectedPermanence = thresholds.connectedPermanence();
+        this.increment = thresholds.permanenceIncrement();
+        this.decrement = thresholds.permanenceDecrement();
+        int segments = cells * dendritesPerCell;
+        connectedCounts = new int[segments];
+        matchingCounts = new int[segments];
+        reachableCounts = new int[segments];
+        touched = new int[segments];
+        segmentCount = segments;
+        touchedCounts = new int[this.parallelism.shardCount(segments)];
+        winnerCells = Bits.create(cells, Bits.Storage.COMPRESSED);
+        predictedColumns = Bits.create(layer.size(), Bits.Storage.COMPRESSED);
+        activeWords = new long[(cells + 63) >>> 6];
+        previousWords = new long[activeWords.length];
+    }
+
+    /**
+     * Run one step.
+     *
+     * @param activeColumns The active columns, such as from a SpatialPooler
+     * @param learn Whether to adjust distal permanences
+     */
+    public void compute(Bits activeColumns, boolean learn) {
+        long[] swap = previousWords;
+        previousWords = activeWords;
+        activeWords = swap;
+        Arrays.fill(activeWords, 0L);
+        winnerCells.clear();
+        predictedColumns.clear();
+        DistalPermanenceStore store = layer.snapshot.permanences;
+        Bits predictive = layer.predictiveCells();
+        for (int column = activeColumns.nextSetBit(0); column >= 0; column = activeColumns.nextSetBit(column + 1)) {
+            int first = column * cellsPerColumn;
+            boolean predicted = false;
+            for (int cell = first; cell < first + cellsPerColumn; cell++) {
+                if (predictive.get(cell)) {
+                    predicted = true;
+                    activate(cell);
+                    winnerCells.set(cell);
+                    if (learn) {
+                        reinforceActiveSegments(store, cell);
+                    }
+                }
+            }
+            if (predicted) {
+                predictedColumns.set(column);
+            } else {
+                burst(store, first, learn);
+            }
+        }
+        Bits activated = layer.activatedCells();
+        activated.clear();
+        runCount = 0;
+        int cellCount = 0;
+        int lastColumn = -1;
+        for (int i = 0; i < activeWords.length; i++) {
+            long word = activeWords[i];
+            while (word != 0) {
+                int cell = (i << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                activated.set(cell);
+                int column = cell / cellsPerColumn;
+                if (column != lastColumn) {
+                    addRun(column, cellCount);
+                    lastColumn = column;
+                }
+                if (cellCount == activeCellsInColumn.length) {
+                    activeCellsInColumn = Arrays.copyOf(activeCellsInColumn, cellCount * 2);
+                }
+                activeCellsInColumn[cellCount++] = cell - column * cellsPerColumn;
+            }
+        }
+        runStarts[runCount] = cellCount;
+        predict(predictive);
+        layer.setColumnActivity(activeColumns, predictedColumns);
+    }
+
+    private void addRun(int column, int start) {
+        if (runCount == runColumns.length) {
+            runColumns = Arrays.copyOf(runColumns, runCount * 2);
+            runStarts = Arrays.copyOf(runStarts, (runCount * 2) + 1);
+        }
+        runColumns[runCount] = column;
+        runStarts[runCount++] = start;
+    }
+
+    private void activate(int cell) {
+        activeWords[cell >>> 6] |= 1L << cell;
+    }
+
+    private void burst(DistalPermanenceStore store, int first, boolean learn) {
+        int bestSegment = -1;
+        int bestMatching = matchingThreshold - 1;
+        int bestReachable = 0;
+        for (int cell = first; cell < first + cellsPerColumn; cell++) {
+            activate(cell);
+            for (int d = 0; d < dendritesPerCell; d++) {
+                int segment = cell * dendritesPerCell + d;
+                int matching = matchingCounts[segment];
+                int reachable = reachableCounts[segment];
+                // Prefer matching segments, then those which could learn
+                // the most;  strict comparisons keep the lowest on ties
+                if (matching > bestMatching || (bestMatching < matchingThreshold
+                        && matching < matchingThreshold && reachable > bestReachable)) {
+                    bestSegment = segment;
+                    bestMatching = Math.max(bestMatching, matching);
+                    bestReachable = reachable;
+                }
+            }
+        }
+        int winner = bestSegment < 0 ? first : bestSegment / dendritesPerCell;
+        winnerCells.set(winner);
+        if (learn && bestSegment >= 0) {
+            reinforce(store, winner, bestSegment % dendritesPerCell);
+        }
+    }
+
+    private void reinforceActiveSegments(DistalPermanenceStore store, int cell) {
+        for (int d = 0; d < dendritesPerCell; d++) {
+            if (connectedCounts[cell * dendritesPerCell + d] >= activationThreshold) {
+                reinforce(store, cell, d);
+            }
+        }
+    }
+
+    private void reinforce(DistalPermanenceStore store, int cell, int dendrite) {
+        PermanenceArray values = store.values;
+        long slot = store.firstSlot(cell, dendrite);
+        int end = table.end(cell, dendrite);
+        for (int entry = table.start(cell, dendrite); entry < end; entry++) {
+            int presynaptic = table.column(entry) * cellsPerColumn;
+            for (int i = 0; i < cellsPerColumn; i++, slot++) {
+                int target = presynaptic + i;
+                double committed = values.committed(slot);
+                double updated = (previousWords[target >>> 6] & (1L << target)) != 0
+                        ? Math.min(1D, committed + increment)
+                        : Math.max(0D, committed - decrement);
+                if (updated != committed) {
+                    values.set(slot, updated, values.pending(slot));
+                }
+            }
+        }
+    }
+
+    private void predict(Bits predictive) {
+        int shards = parallelism.run(segmentCount, countShard);
+        // Merge on this thread, in shard order
+        predictive.clear();
+        activeSegments = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            int first = Parallelism.shardStart(segmentCount, shards, shard);
+            int last = first + touchedCounts[shard];
+            for (int i = first; i < last; i++) {
+                int segment = touched[i];
+                if (connectedCounts[segment] >= activationThreshold) {
+                    activeSegments++;
+                    predictive.set(segment / dendritesPerCell);
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the synapses onto active cells of segments from - to, writing
+     * only those segments' counts and this shard's part of touched.
+     */
+    private void countSegments(int shard, int from, int to) {
+        // Only segments touched by the last step's active cells have
+        // nonzero counts, so only those need resetting
+        int touchedCount = touchedCounts[shard];
+        for (int i = from; i < from + touchedCount; i++) {
+            int segment = touched[i];
+            connectedCounts[segment] = 0;
+            matchingCounts[segment] = 0;
+            reachableCounts[segment] = 0;
+        }
+        touchedCount = 0;
+        boolean all = from == 0 && to == segmentCount;
+        DistalPermanenceStore store = layer.snapshot.permanences;
+        PermanenceArray values = store.values;
+        long slotsPerDendrite = store.slotsPerDendrite();
+        int[] inColumn = activeCellsInColumn;
+        for (int run = 0; run < runCount; run++) {
+            int column = runColumns[run];
+            int firstCell = runStarts[run];
+            int lastCell = runStarts[run + 1];
+            // One search per active column and shard, shared by all of the
+            // column's active cells
+            int entry = all ? index.start(column) : index.lowerBound(column, from);
+            int end = index.end(column);
+            for (; entry < end; entry++) {
+                int segment = index.segment(entry);
+                if (segment >= to) {
+                    break;
+                }
+                long base = segment * slotsPerDendrite + index.step(entry) * cellsPerColumn;
+                for (int c = firstCell; c < lastCell; c++) {
+                    if (reachableCounts[segment]++ == 0) {
+                        touched[from + touchedCount++] = segment;
+                    }
+                    double permanence = values.get(base + inColumn[c]);
+                    if (permanence > 0D) {
+                        matchingCounts[segment]++;
+                        if (permanence >= connectedPermanence) {
+                            connectedCounts[segment]++;
+                        }
+                    }
+                }
+            }
+        }
+        touchedCounts[shard] = touchedCount;
+    }
+
+    /**
+     * The cells chosen to learn in the last step.
+     *
+     * @return The winner cells, which are overwritten by the next step
+     */
+    public Bits winnerCells() {
+        return winnerCells;
+    }
+
+    /**
+     * The number of distal segments which became active in the last step.
+     *
+     * @return A count
+     */
+    public int activeSegmentCount() {
+        return activeSegments;
+    }
+}
@@ -20,6 +20,9 @@ import com.timboudreau.jhtm.Column;
 import com.timboudreau.jhtm.InputBit;
 import com.timboudreau.jhtm.ProximalDendriteSegment;
 import com.timboudreau.jhtm.impl.LayerImpl;
+import com.timboudreau.jhtm.util.Bits;
+import com.timboudreau.jhtm.util.OverlapVisitor;
+import com.timboudreau.jhtm.util.SynapseVisitor;
 import com.timboudreau.jhtm.util.Visitor;
 
 /**
@@ -58,7 +61,7 @@ public abstract class InputMapping<T, Coordinate> {
         }
     }
 
-    private void checkInit() {
+    protected final void checkInit() {
         if (!initialized) {
             initialized = true;
             init();
@@ -70,6 +73,33 @@ public abstract class InputMapping<T, Coordinate> {
         return doVisitProximalDendriteSegments(v, arg);
     }
 
+    /**
+     * Visit every proximal synapse as raw indices and permanence values:
+     * the column, the input bit and the permanence.
+     *
+     * @param v A visitor
+     * @return The result of the last visit
+     */
+    public final Visitor.Result visitProximalSynapses(SynapseVisitor v) {
+        checkInit();
+        return doVisitProximalSynapses(v);
+    }
+
+    /**
+     * Visit the overlap of every column with a set of active input bits -
+     * the number of its connected synapses onto active bits.
+     *
+     * @param activeInputs The active input bits
+     * @param connectedPermanence The permanence at or above which a synapse
+     * is considered connected
+     * @param v A visitor
+     * @return The result of the last visit
+     */
+    public final Visitor.Result visitOverlaps(Bits activeInputs, double connectedPermanence, OverlapVisitor v) {
+        checkInit();
+        return doVisitOverlaps(activeInputs, connectedPermanence, v);
+    }
+
     public ProximalDendriteSegment segmentFor(Column<Coordinate> column) {
         checkInit();
         return getSegmentFor(column);
@@ -81,6 +111,10 @@ public abstract class InputMapping<T, Coordinate> {
 
     protected abstract <R> Visitor.Result doVisitProximalDendriteSegments(Visitor<ProximalDendriteSegment, R> v, R arg);
 
+    protected abstract Visitor.Result doVisitProximalSynapses(SynapseVisitor v);
+
+    protected abstract Visitor.Result doVisitOverlaps(Bits activeInputs, double connectedPermanence, OverlapVisitor v);
+
     public static interface SynapseFactory<T, Coordinate> {
 
         public abstract void connect(Layer<Coordinate> layer, ProximalDendriteBuilder<T, Coordinate> connector, Input<T> input);
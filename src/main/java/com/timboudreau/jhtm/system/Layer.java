@@ -17,6 +17,9 @@
 package com.timboudreau.jhtm.system;
 
 import com.timboudreau.jhtm.Column;
+import com.timboudreau.jhtm.util.IntVisitor;
+import com.timboudreau.jhtm.util.SynapseVisitor;
+import com.timboudreau.jhtm.util.Visitor;
 
 /**
  *
@@ -25,4 +28,22 @@ import com.timboudreau.jhtm.Column;
 public interface Layer<Coordinate> extends Iterable<Column<Coordinate>> {
     public Column<Coordinate> getColumn(int index);
     public int size();
+
+    /**
+     * Visit the indices of all active cells, in ascending order.
+     *
+     * @param visitor A visitor
+     * @return The result of the last visit
+     */
+    public Visitor.Result visitActivatedCells(IntVisitor visitor);
+
+    /**
+     * Visit every distal synapse of one cell as raw indices and permanence
+     * values, segment by segment, in path order.
+     *
+     * @param cell The cell index
+     * @param visitor A visitor
+     * @return The result of the last visit
+     */
+    public Visitor.Result visitDistalSynapses(int cell, SynapseVisitor visitor);
 }
@@ -24,4 +24,72 @@ public class Thresholds {
     public double defaultPermanence() {
         return 0.5D;
     }
+
+    /**
+     * The permanence at or above which a synapse counts as connected.
+     *
+     * @return A permanence
+     */
+    public double connectedPermanence() {
+        return 0.5D;
+    }
+
+    /**
+     * The amount spatial pooler learning adds to the permanence of a winning
+     * column's synapses onto active input bits.
+     *
+     * @return An increment
+     */
+    public double permanenceIncrement() {
+        return 0.05D;
+    }
+
+    /**
+     * The amount spatial pooler learning subtracts from the permanence of a
+     * winning column's synapses onto inactive input bits.
+     *
+     * @return A decrement
+     */
+    public double permanenceDecrement() {
+        return 0.008D;
+    }
+
+    /**
+     * The smallest overlap with the input which allows a column to win.
+     *
+     * @return An overlap
+     */
+    public int stimulusThreshold() {
+        return 1;
+    }
+
+    /**
+     * The fraction of columns which should be active after inhibition.
+     *
+     * @return A fraction between 0 and 1
+     */
+    public double activeColumnDensity() {
+        return 0.02D;
+    }
+
+    /**
+     * The number of connected distal synapses onto active cells at or above
+     * which a distal segment becomes active, making its cell predictive.
+     *
+     * @return A number of synapses
+     */
+    public int activationThreshold() {
+        return 3;
+    }
+
+    /**
+     * The number of distal synapses with any permanence onto active cells
+     * at or above which a distal segment counts as matching, and is
+     * preferred for learning when its column bursts.
+     *
+     * @return A number of synapses
+     */
+    public int matchingThreshold() {
+        return 1;
+    }
 }
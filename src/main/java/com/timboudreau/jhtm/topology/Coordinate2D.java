@@ -16,6 +16,8 @@
  */
 package com.timboudreau.jhtm.topology;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * A coordinate in a 2d topology
  *
@@ -26,19 +28,25 @@ public class Coordinate2D {
     public final int x;
     public final int y;
     private static final int INTERN_TABLE_SIZE = 1024;
-    private static final Coordinate2D[][] INTERN_TABLE = new Coordinate2D[INTERN_TABLE_SIZE][INTERN_TABLE_SIZE];
-
-    static {
-        for (int i = 0; i < INTERN_TABLE_SIZE; i++) {
-            for (int j = 0; j < INTERN_TABLE_SIZE; j++) {
-                INTERN_TABLE[i][j] = new Coordinate2D(i, j);
-            }
-        }
-    }
+    // Rows are created on first use and filled in as coordinates are asked
+    // for, so only coordinates actually used are ever allocated.  Racing
+    // threads may each create a coordinate, which is harmless since they
+    // are immutable and compare by value.
+    private static final AtomicReferenceArray<Coordinate2D[]> INTERN_TABLE
+            = new AtomicReferenceArray<>(INTERN_TABLE_SIZE);
 
     public static Coordinate2D valueOf(int x, int y) {
-        if (x > 0 && x < INTERN_TABLE_SIZE && y > 0 && y < INTERN_TABLE_SIZE) {
-            return INTERN_TABLE[x][y];
+        if (x >= 0 && x < INTERN_TABLE_SIZE && y >= 0 && y < INTERN_TABLE_SIZE) {
+            Coordinate2D[] row = INTERN_TABLE.get(y);
+            if (row == null) {
+                INTERN_TABLE.compareAndSet(y, null, new Coordinate2D[INTERN_TABLE_SIZE]);
+                row = INTERN_TABLE.get(y);
+            }
+            Coordinate2D result = row[x];
+            if (result == null) {
+                row[x] = result = new Coordinate2D(x, y);
+            }
+            return result;
         }
         return new Coordinate2D(x, y);
     }
@@ -28,7 +28,7 @@ public enum Direction2D implements Direction<Coordinate2D> {
     UP, DOWN, LEFT, RIGHT, UP_RIGHT, DOWN_RIGHT, UP_LEFT, DOWN_LEFT;
 
     public static Direction2D random(Random r) {
-        return Direction2D.values()[r.nextInt(Direction2D.values().length)];
+        return ALL[r.nextInt(ALL.length)];
     }
     
     public byte toByte() {
@@ -36,7 +36,39 @@ public enum Direction2D implements Direction<Coordinate2D> {
     }
     
     public static Direction2D fromByte(byte b) {
-        return values()[b];
+        return ALL[b];
+    }
+
+    static Direction2D fromOrdinal(int ordinal) {
+        return ALL[ordinal];
+    }
+
+    // values() clones its array on every call
+    private static final Direction2D[] ALL = values();
+    private static final int[] DX = new int[ALL.length];
+    private static final int[] DY = new int[ALL.length];
+
+    static {
+        for (Direction2D d : ALL) {
+            DX[d.ordinal()] = d.adjustX(0);
+            DY[d.ordinal()] = d.adjustY(0);
+        }
+    }
+
+    /**
+     * The change in x coordinate from one step in the direction with the
+     * passed ordinal.
+     */
+    static int dx(int ordinal) {
+        return DX[ordinal];
+    }
+
+    /**
+     * The change in y coordinate from one step in the direction with the
+     * passed ordinal.
+     */
+    static int dy(int ordinal) {
+        return DY[ordinal];
     }
 
     private int adjustX(int x) {
@@ -0,0 +1,106 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.topology;
+
+import java.io.Serializable;
+
+/**
+ * One step of plus or minus one along a single axis of a TopologyND.
+ * Coordinates in an N-dimensional topology are packed into a single int -
+ * the column index - so a direction carries the extents it needs to unpack
+ * and repack them.  Obtain instances from TopologyND.directions().
+ *
+ * @author Tim Boudreau
+ */
+public final class DirectionND implements Direction<Integer>, Serializable {
+
+    private final int axis;
+    private final int delta;
+    private final int[] extents;
+    private final int[] strides;
+
+    DirectionND(int axis, int delta, int[] extents, int[] strides) {
+        this.axis = axis;
+        this.delta = delta;
+        this.extents = extents;
+        this.strides = strides;
+    }
+
+    public int axis() {
+        return axis;
+    }
+
+    /**
+     * The change in the coordinate on this direction's axis - plus or minus
+     * one.
+     *
+     * @return The change
+     */
+    public int delta() {
+        return delta;
+    }
+
+    int ordinal() {
+        return (axis * 2) + (delta > 0 ? 1 : 0);
+    }
+
+    /**
+     * Move a packed coordinate one step in this direction.  The edge rule
+     * must be one of the built-in rules, which adjust each axis separately;
+     * if it leaves the location outside the extents, the location is
+     * constrained to them, since a packed coordinate cannot represent a
+     * location outside the volume.
+     *
+     * @param extents Ignored - the direction knows its topology's extents
+     * @param curr The current packed coordinate
+     * @param edgeRule The edge rule
+     * @return The new packed coordinate
+     */
+    @Override
+    public Integer navigate(Integer extents, Integer curr, EdgeRule<Integer> edgeRule) {
+        return step(curr, edgeRule);
+    }
+
+    int step(int index, EdgeRule<?> edgeRule) {
+        int extent = this.extents[axis];
+        int stride = strides[axis];
+        int value = (index / stride) % extent;
+        int adjusted = edgeRule.adjustAxis(value + delta, extent);
+        if (adjusted < 0) {
+            adjusted = 0;
+        } else if (adjusted >= extent) {
+            adjusted = extent - 1;
+        }
+        return index + ((adjusted - value) * stride);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DirectionND && ((DirectionND) o).axis == axis
+                && ((DirectionND) o).delta == delta;
+    }
+
+    @Override
+    public int hashCode() {
+        return ordinal() + 1;
+    }
+
+    @Override
+    public String toString() {
+        return (delta > 0 ? "+" : "-") + axis;
+    }
+}
@@ -43,6 +43,28 @@ public abstract class EdgeRule<Coordinate> {
      */
     public abstract Coordinate adjust(Coordinate curr, Coordinate proposed, Coordinate extents);
 
+    /**
+     * Determine if this rule treats each axis separately, so that
+     * adjustAxis() can be used to apply it to raw integer components without
+     * constructing coordinates.
+     *
+     * @return true if adjustAxis() is implemented
+     */
+    boolean adjustsAxesIndependently() {
+        return false;
+    }
+
+    /**
+     * Adjust a single component of a proposed location.
+     *
+     * @param proposed The proposed value
+     * @param extent The extent on that axis, which valid values are less than
+     * @return The adjusted value
+     */
+    int adjustAxis(int proposed, int extent) {
+        throw new UnsupportedOperationException();
+    }
+
     /**
      * A rule which wraps around to the other side
      * @return A rule
@@ -59,6 +81,56 @@ public abstract class EdgeRule<Coordinate> {
         return new ConstrainRule();
     }
 
+    /**
+     * Apply a rule which treats each axis separately to a one-dimensional
+     * space of indices, such as the packed Integer coordinates of a
+     * TopologyND, whose extent is the number of indices.  A location the
+     * rule leaves outside the extent is constrained to it.
+     *
+     * @param axisRule One of the built-in rules
+     * @return A rule
+     * @throws IllegalArgumentException if the rule cannot be applied to a
+     * single axis
+     */
+    public static EdgeRule<Integer> onIndices(EdgeRule<?> axisRule) {
+        if (!axisRule.adjustsAxesIndependently()) {
+            throw new IllegalArgumentException("Edge rule " + axisRule
+                    + " cannot be applied to individual axes");
+        }
+        return new IndexRule(axisRule);
+    }
+
+    private static class IndexRule extends EdgeRule<Integer> {
+
+        private final EdgeRule<?> axisRule;
+
+        IndexRule(EdgeRule<?> axisRule) {
+            this.axisRule = axisRule;
+        }
+
+        @Override
+        public Integer adjust(Integer curr, Integer proposed, Integer extents) {
+            int result = adjustAxis(proposed, extents);
+            return result == proposed ? proposed : Integer.valueOf(result);
+        }
+
+        @Override
+        boolean adjustsAxesIndependently() {
+            return true;
+        }
+
+        @Override
+        int adjustAxis(int proposed, int extent) {
+            int result = axisRule.adjustAxis(proposed, extent);
+            return result < 0 ? 0 : result >= extent ? extent - 1 : result;
+        }
+
+        @Override
+        public String toString() {
+            return "onIndices(" + axisRule + ")";
+        }
+    }
+
     private static class WrapRule extends EdgeRule<Coordinate2D> {
 
         @Override
@@ -83,6 +155,18 @@ public abstract class EdgeRule<Coordinate> {
             return proposed;
         }
 
+        @Override
+        boolean adjustsAxesIndependently() {
+            return true;
+        }
+
+        @Override
+        int adjustAxis(int proposed, int extent) {
+            // Modular, so offsets of more than one step wrap correctly
+            int result = proposed % extent;
+            return result < 0 ? result + extent : result;
+        }
+
     }
 
     private static class Noop<T> extends EdgeRule<T> {
@@ -90,6 +174,16 @@ public abstract class EdgeRule<Coordinate> {
         public T adjust(T curr, T proposed, T extents) {
             return proposed;
         }
+
+        @Override
+        boolean adjustsAxesIndependently() {
+            return true;
+        }
+
+        @Override
+        int adjustAxis(int proposed, int extent) {
+            return proposed;
+        }
     }
 
     private static class ConstrainRule extends EdgeRule<Coordinate2D> {
@@ -114,5 +208,15 @@ public abstract class EdgeRule<Coordinate> {
             }
             return proposed;
         }
+
+        @Override
+        boolean adjustsAxesIndependently() {
+            return true;
+        }
+
+        @Override
+        int adjustAxis(int proposed, int extent) {
+            return proposed >= extent ? extent - 1 : proposed < 0 ? 0 : proposed;
+        }
     }
 }
@@ -0,0 +1,213 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.topology;
+
+import com.timboudreau.jhtm.util.IntVisitor;
+import com.timboudreau.jhtm.util.Visitor;
+import java.util.Arrays;
+
+/**
+ * The precomputed neighbors of every column in a topology, within some
+ * radius, as column indices.  Obtain one from Topology.neighborhood(), which
+ * caches it, and hold onto it - lookups are then plain array reads.
+ * <p/>
+ * The neighbors of all columns are stored contiguously in one int array,
+ * with an offset table recording where each column's run starts, so a
+ * column's neighbors are the slice <code>get(start(column))</code> through
+ * <code>get(end(column) - 1)</code>.  Each run is sorted, free of
+ * duplicates, and includes the column itself.
+ *
+ * @author Tim Boudreau
+ */
+public final class Neighborhood {
+
+    private final int radius;
+    private final int[] offsets;
+    private final int[] neighbors;
+    private final int maxSize;
+
+    private Neighborhood(int radius, int[] offsets, int[] neighbors, int maxSize) {
+        this.radius = radius;
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+        this.maxSize = maxSize;
+    }
+
+    public int radius() {
+        return radius;
+    }
+
+    public int columnCount() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * The index of the first entry for a column.
+     *
+     * @param column A column index
+     * @return An entry index
+     */
+    public int start(int column) {
+        return offsets[column];
+    }
+
+    /**
+     * One past the index of the last entry for a column.
+     *
+     * @param column A column index
+     * @return An entry index
+     */
+    public int end(int column) {
+        return offsets[column + 1];
+    }
+
+    /**
+     * Get the neighboring column index stored at an entry.
+     *
+     * @param entry An entry index between start() and end() for some column
+     * @return A column index
+     */
+    public int get(int entry) {
+        return neighbors[entry];
+    }
+
+    /**
+     * Get the number of neighbors of a column, including itself.
+     *
+     * @param column A column index
+     * @return The number of neighbors
+     */
+    public int size(int column) {
+        return offsets[column + 1] - offsets[column];
+    }
+
+    /**
+     * Get the largest number of neighbors any column has, for sizing
+     * buffers.
+     *
+     * @return The largest size()
+     */
+    public int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Copy the neighbors of a column into an array.
+     *
+     * @param column A column index
+     * @param into An array at least size(column) long
+     * @return The number of neighbors copied
+     */
+    public int copy(int column, int[] into) {
+        int start = offsets[column];
+        int count = offsets[column + 1] - start;
+        System.arraycopy(neighbors, start, into, 0, count);
+        return count;
+    }
+
+    /**
+     * Visit the neighbors of a column in ascending order.
+     *
+     * @param column A column index
+     * @param visitor A visitor
+     * @return The result of visiting
+     */
+    public Visitor.Result visit(int column, IntVisitor visitor) {
+        Visitor.Result result = Visitor.Result.NO_VISITS;
+        for (int i = offsets[column]; i < offsets[column + 1]; i++) {
+            result = visitor.visit(neighbors[i]);
+            if (result.isDone()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Accumulates the neighbors of each column in turn;  used by topologies
+     * to build a neighborhood.  Neighbors may be added in any order, and
+     * duplicates are dropped.
+     */
+    public static final class Builder {
+
+        private final int radius;
+        private final int[] offsets;
+        private int[] neighbors;
+        private int[] pending = new int[16];
+        private int pendingCount;
+        private int column;
+        private int size;
+        private int maxSize;
+
+        public Builder(int columnCount, int radius) {
+            this.radius = radius;
+            this.offsets = new int[columnCount + 1];
+            this.neighbors = new int[Math.max(16, columnCount)];
+        }
+
+        /**
+         * Add a neighbor of the current column.
+         *
+         * @param neighbor A column index
+         * @return this
+         */
+        public Builder add(int neighbor) {
+            if (pendingCount == pending.length) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            }
+            pending[pendingCount++] = neighbor;
+            return this;
+        }
+
+        /**
+         * Finish the current column and move to the next one.
+         *
+         * @return this
+         */
+        public Builder nextColumn() {
+            if (column >= offsets.length - 1) {
+                throw new IllegalStateException("All " + column + " columns done");
+            }
+            Arrays.sort(pending, 0, pendingCount);
+            int start = size;
+            for (int i = 0; i < pendingCount; i++) {
+                if (i == 0 || pending[i] != pending[i - 1]) {
+                    if (size == neighbors.length) {
+                        long newSize = Math.min(Integer.MAX_VALUE - 8, (long) neighbors.length * 2);
+                        if (newSize == neighbors.length) {
+                            throw new IllegalStateException("Too many neighbors");
+                        }
+                        neighbors = Arrays.copyOf(neighbors, (int) newSize);
+                    }
+                    neighbors[size++] = pending[i];
+                }
+            }
+            maxSize = Math.max(maxSize, size - start);
+            pendingCount = 0;
+            offsets[++column] = size;
+            return this;
+        }
+
+        public Neighborhood build() {
+            if (column != offsets.length - 1) {
+                throw new IllegalStateException("Only " + column + " of "
+                        + (offsets.length - 1) + " columns done");
+            }
+            return new Neighborhood(radius, offsets, Arrays.copyOf(neighbors, size), maxSize);
+        }
+    }
+}
@@ -21,58 +21,168 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.NoSuchElementException;
 
 /**
  * A path starting from some 2D coordinates, specified by a set of navigation
  * instructions.
+ * <p/>
+ * A direction needs only three bits, so paths of up to MAX_PACKED_LENGTH
+ * steps - which is nearly all of them - are stored packed into a single
+ * long, step <i>n</i> in bits <code>3n</code> through <code>3n + 2</code>.
+ * Longer paths fall back to one byte per step.  Use a PathCursor2D to walk
+ * a path without allocating.
  *
  * @author Tim Boudreau
  */
 public class Path2D implements Path<Coordinate2D, Direction2D> {
 
+    /**
+     * The maximum number of steps which can be packed into a long.
+     */
+    public static final int MAX_PACKED_LENGTH = 21;
+    private static final int BITS_PER_STEP = 3;
+    private static final long STEP_MASK = 7L;
+    private final long packed;
+    private final int length;
+    // Null unless length > MAX_PACKED_LENGTH
     private final byte[] directions;
 
     public Path2D() {
-        this.directions = new byte[0];
+        this(0L, 0, null);
     }
 
     Path2D(List<Direction2D> directions) {
-        this.directions = new byte[directions.size()];
-        for (int i = 0; i < this.directions.length; i++) {
-            this.directions[i] = directions.get(i).toByte();
-        }
+        this(directions.toArray(new Direction2D[directions.size()]));
     }
 
     Path2D(Direction2D... directions) {
-        this.directions = new byte[directions.length];
-        for (int i = 0; i < directions.length; i++) {
-            this.directions[i] = directions[i].toByte();
+        this.length = directions.length;
+        if (length > MAX_PACKED_LENGTH) {
+            this.packed = 0L;
+            this.directions = new byte[length];
+            for (int i = 0; i < length; i++) {
+                this.directions[i] = directions[i].toByte();
+            }
+        } else {
+            long bits = 0L;
+            for (int i = 0; i < length; i++) {
+                bits |= (long) directions[i].ordinal() << (i * BITS_PER_STEP);
+            }
+            this.packed = bits;
+            this.directions = null;
         }
     }
 
     Path2D(byte[] bytes) {
-        this.directions = bytes.clone();
+        this(toDirections(bytes));
+    }
+
+    private Path2D(long packed, int length, byte[] directions) {
+        this.packed = packed;
+        this.length = length;
+        this.directions = directions;
+    }
+
+    private static Direction2D[] toDirections(byte[] bytes) {
+        Direction2D[] result = new Direction2D[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            result[i] = Direction2D.fromByte(bytes[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Create a path from the packed form returned by toLong().
+     *
+     * @param packed The packed directions
+     * @param length The number of steps, no more than MAX_PACKED_LENGTH
+     * @return A path
+     */
+    public static Path2D fromLong(long packed, int length) {
+        if (length < 0 || length > MAX_PACKED_LENGTH) {
+            throw new IllegalArgumentException("Length must be 0-"
+                    + MAX_PACKED_LENGTH + " but was " + length);
+        }
+        // Mask off anything past the last step, so equal paths are equal
+        long mask = (1L << (length * BITS_PER_STEP)) - 1;
+        return new Path2D(packed & mask, length, null);
+    }
+
+    /**
+     * Determine if this path is short enough to be represented as a long.
+     *
+     * @return true if toLong() will succeed
+     */
+    public boolean isPacked() {
+        return directions == null;
+    }
+
+    /**
+     * Get the directions in this path packed into a long, three bits per
+     * step.  The length is not included, so to reconstruct the path, pass
+     * both to fromLong().
+     *
+     * @return The packed directions
+     * @throws IllegalStateException if the path is longer than
+     * MAX_PACKED_LENGTH
+     */
+    public long toLong() {
+        if (directions != null) {
+            throw new IllegalStateException("Path of " + length
+                    + " steps is too long to pack");
+        }
+        return packed;
+    }
+
+    /**
+     * Get the direction at one step of this path.
+     *
+     * @param step The step
+     * @return A direction
+     */
+    public Direction2D get(int step) {
+        if (step < 0 || step >= length) {
+            throw new IndexOutOfBoundsException(step + " of " + length);
+        }
+        return Direction2D.fromOrdinal(ordinal(step));
+    }
+
+    int ordinal(int step) {
+        return directions == null ? (int) ((packed >>> (step * BITS_PER_STEP)) & STEP_MASK)
+                : directions[step];
     }
 
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        for (Direction2D d : directions()) {
+        for (int i = 0; i < length; i++) {
             if (sb.length() > 0) {
                 sb.append(", ");
             }
-            sb.append(d);
+            sb.append(get(i));
         }
         return sb.toString();
     }
 
     @Override
     public boolean equals(Object o) {
-        return o instanceof Path2D && Arrays.equals(((Path2D) o).directions, directions);
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof Path2D)) {
+            return false;
+        }
+        Path2D other = (Path2D) o;
+        return other.length == length && other.packed == packed
+                && Arrays.equals(other.directions, directions);
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(directions);
+        if (directions != null) {
+            return Arrays.hashCode(directions);
+        }
+        return (int) (packed ^ (packed >>> 32)) * 31 + length;
     }
 
     public String toString(Coordinate2D start) {
@@ -88,27 +198,32 @@ public class Path2D implements Path<Coordinate2D, Direction2D> {
     }
 
     public List<Direction2D> directions() {
-        List<Direction2D> result = new ArrayList<>(directions.length);
-        for (int i = 0; i < directions.length; i++) {
-            result.add(Direction2D.fromByte(directions[i]));
+        List<Direction2D> result = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            result.add(get(i));
         }
         return result;
     }
 
     public int length() {
-        return directions.length;
+        return length;
     }
 
     public Path2D add(Direction2D direction) {
-        byte[] b = new byte[length() + 1];
-        System.arraycopy(directions, 0, b, 0, directions.length);
-        b[b.length - 1] = direction.toByte();
-        return new Path2D(b);
+        if (length < MAX_PACKED_LENGTH) {
+            return new Path2D(packed | ((long) direction.ordinal() << (length * BITS_PER_STEP)), length + 1, null);
+        }
+        byte[] b = new byte[length + 1];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) ordinal(i);
+        }
+        b[length] = direction.toByte();
+        return new Path2D(0L, b.length, b);
     }
 
     @Override
     public ListIterator<Direction2D> iterator() {
-        return directions().listIterator();
+        return new DirectionIterator();
     }
 
     @Override
@@ -116,6 +231,62 @@ public class Path2D implements Path<Coordinate2D, Direction2D> {
         return new Iter(start, extents, edgeRule);
     }
 
+    private final class DirectionIterator implements ListIterator<Direction2D> {
+
+        private int ix;
+
+        @Override
+        public boolean hasNext() {
+            return ix < length;
+        }
+
+        @Override
+        public Direction2D next() {
+            if (ix >= length) {
+                throw new NoSuchElementException();
+            }
+            return get(ix++);
+        }
+
+        @Override
+        public boolean hasPrevious() {
+            return ix > 0;
+        }
+
+        @Override
+        public Direction2D previous() {
+            if (ix <= 0) {
+                throw new NoSuchElementException();
+            }
+            return get(--ix);
+        }
+
+        @Override
+        public int nextIndex() {
+            return ix;
+        }
+
+        @Override
+        public int previousIndex() {
+            return ix - 1;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Paths are immutable");
+        }
+
+        @Override
+        public void set(Direction2D e) {
+            throw new UnsupportedOperationException("Paths are immutable");
+        }
+
+        @Override
+        public void add(Direction2D e) {
+            throw new UnsupportedOperationException("Paths are immutable");
+        }
+    }
+
     private class Iter implements Iterator<Coordinate2D>, Iterable<Coordinate2D> {
 
         private final Iterator<Direction2D> iter = Path2D.this.iterator();
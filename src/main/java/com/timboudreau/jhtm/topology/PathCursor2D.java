@@ -0,0 +1,117 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.topology;
+
+/**
+ * Walks a Path2D through a Topology2D one step at a time, applying the
+ * topology's edge rule to raw x and y values, so that no coordinate,
+ * iterator or list objects are created.  A cursor is reusable - call
+ * reset() to start on another path - but is not thread-safe.
+ * <pre>
+ * PathCursor2D cursor = topology.cursor();
+ * for (cursor.reset(startColumn, path); cursor.next();) {
+ *     doSomethingWith(cursor.column());
+ * }
+ * </pre>
+ * Edge rules other than the built-in ones cannot be applied to raw
+ * components;  for those, each step falls back to Direction2D.navigate().
+ *
+ * @author Tim Boudreau
+ */
+public final class PathCursor2D {
+
+    private final int width;
+    private final int height;
+    private final EdgeRule<Coordinate2D> edgeRule;
+    private final boolean axesIndependent;
+    private Path2D path;
+    private int step;
+    private int x;
+    private int y;
+
+    PathCursor2D(int width, int height, EdgeRule<Coordinate2D> edgeRule) {
+        this.width = width;
+        this.height = height;
+        this.edgeRule = edgeRule;
+        this.axesIndependent = edgeRule.adjustsAxesIndependently();
+    }
+
+    /**
+     * Start walking a path from a column.
+     *
+     * @param startColumn The column index to start at, which is not itself
+     * part of the walk
+     * @param path The path
+     * @return this
+     */
+    public PathCursor2D reset(int startColumn, Path2D path) {
+        this.path = path;
+        this.step = 0;
+        this.x = startColumn % width;
+        this.y = startColumn / width;
+        return this;
+    }
+
+    /**
+     * Move to the next location on the path.
+     *
+     * @return false if the path is finished
+     */
+    public boolean next() {
+        if (path == null || step >= path.length()) {
+            return false;
+        }
+        int ordinal = path.ordinal(step++);
+        if (axesIndependent) {
+            x = edgeRule.adjustAxis(x + Direction2D.dx(ordinal), width);
+            y = edgeRule.adjustAxis(y + Direction2D.dy(ordinal), height);
+        } else {
+            Coordinate2D next = Direction2D.fromOrdinal(ordinal).navigate(
+                    Coordinate2D.valueOf(width, height), Coordinate2D.valueOf(x, y), edgeRule);
+            x = next.x;
+            y = next.y;
+        }
+        return true;
+    }
+
+    /**
+     * The number of steps taken so far;  after a successful call to next(),
+     * one more than the index of the step just taken.
+     *
+     * @return The step count
+     */
+    public int steps() {
+        return step;
+    }
+
+    public int x() {
+        return x;
+    }
+
+    public int y() {
+        return y;
+    }
+
+    /**
+     * The column index of the current location.
+     *
+     * @return The column index
+     */
+    public int column() {
+        return (y * width) + x;
+    }
+}
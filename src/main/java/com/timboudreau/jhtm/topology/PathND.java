@@ -0,0 +1,148 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.topology;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A path through a TopologyND, stored as one byte per step.
+ *
+ * @author Tim Boudreau
+ */
+public final class PathND implements Path<Integer, DirectionND> {
+
+    private final DirectionND[] palette;
+    private final byte[] steps;
+
+    PathND(DirectionND[] palette, byte[] steps) {
+        this.palette = palette;
+        this.steps = steps;
+    }
+
+    @Override
+    public PathND add(DirectionND dir) {
+        byte[] nue = Arrays.copyOf(steps, steps.length + 1);
+        nue[steps.length] = (byte) dir.ordinal();
+        return new PathND(palette, nue);
+    }
+
+    /**
+     * Get the direction at one step of this path.
+     *
+     * @param step The step
+     * @return A direction
+     */
+    public DirectionND get(int step) {
+        return palette[steps[step]];
+    }
+
+    @Override
+    public int length() {
+        return steps.length;
+    }
+
+    public List<DirectionND> directions() {
+        List<DirectionND> result = new ArrayList<>(steps.length);
+        for (byte b : steps) {
+            result.add(palette[b]);
+        }
+        return result;
+    }
+
+    @Override
+    public Iterable<Integer> coordinates(final Integer start, Integer extents, final EdgeRule<Integer> edgeRule) {
+        return new Iterable<Integer>() {
+
+            @Override
+            public Iterator<Integer> iterator() {
+                return new Iterator<Integer>() {
+                    private int ix;
+                    private int last = start;
+
+                    @Override
+                    public boolean hasNext() {
+                        return ix < steps.length;
+                    }
+
+                    @Override
+                    public Integer next() {
+                        if (ix >= steps.length) {
+                            throw new NoSuchElementException();
+                        }
+                        return last = get(ix++).step(last, edgeRule);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public Iterator<DirectionND> iterator() {
+        return new Iterator<DirectionND>() {
+            private int ix;
+
+            @Override
+            public boolean hasNext() {
+                return ix < steps.length;
+            }
+
+            @Override
+            public DirectionND next() {
+                if (ix >= steps.length) {
+                    throw new NoSuchElementException();
+                }
+                return get(ix++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Paths are immutable");
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PathND && Arrays.equals(((PathND) o).steps, steps);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(steps);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : steps) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(palette[b]);
+        }
+        return sb.toString();
+    }
+}
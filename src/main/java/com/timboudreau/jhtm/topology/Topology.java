@@ -18,9 +18,12 @@ package com.timboudreau.jhtm.topology;
 
 import com.timboudreau.jhtm.Column;
 import com.timboudreau.jhtm.system.Layer;
+import com.timboudreau.jhtm.util.IntVisitor;
 import com.timboudreau.jhtm.util.Visitor;
 import java.lang.reflect.Array;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Maps a linear list of columns and friends into a topology with some sort of
@@ -35,6 +38,7 @@ import java.util.Random;
 public abstract class Topology<Coordinate> {
 
     private final Class<? extends Path<Coordinate, ? extends Direction<Coordinate>>> pathType;
+    private final ConcurrentMap<Integer, Neighborhood> neighborhoods = new ConcurrentHashMap<>();
 
     /**
      * Create a new topology.
@@ -59,6 +63,55 @@ public abstract class Topology<Coordinate> {
      */
     public abstract <R> Visitor.Result visitNeighbors(Layer<Coordinate> layer, int radius, Visitor<Column, R> v, Column column, R arg);
 
+    /**
+     * Get the neighbors of every column within the passed radius, as column
+     * indices, honoring this topology's edge rule.  Computed on first request
+     * for each radius and cached thereafter.
+     *
+     * @param radius The radius, zero or greater
+     * @return The neighborhood
+     * @throws UnsupportedOperationException if this topology cannot compute
+     * neighborhoods
+     */
+    public final Neighborhood neighborhood(int radius) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("Negative radius " + radius);
+        }
+        Neighborhood result = neighborhoods.get(radius);
+        if (result == null) {
+            result = computeNeighborhood(radius);
+            Neighborhood existing = neighborhoods.putIfAbsent(radius, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the neighborhood for a radius if neighborhood() has already
+     * computed it, without computing it.  A table for the whole layer can be
+     * huge at large radii, so only callers of neighborhood() opt into one.
+     *
+     * @param radius The radius
+     * @return A neighborhood or null
+     */
+    protected final Neighborhood cachedNeighborhood(int radius) {
+        return neighborhoods.get(radius);
+    }
+
+    /**
+     * Compute the neighborhood for a radius;  called at most once or so per
+     * radius by neighborhood().
+     *
+     * @param radius The radius
+     * @return A neighborhood
+     */
+    protected Neighborhood computeNeighborhood(int radius) {
+        throw new UnsupportedOperationException(getClass().getName()
+                + " does not support neighborhoods");
+    }
+
     /**
      * Get a column located at a given coordinate in a given layer
      *
@@ -114,6 +167,28 @@ public abstract class Topology<Coordinate> {
      */
     public abstract Visitor.Result walk(Coordinate startPoint, Iterable<? extends Direction<Coordinate>> directions, Visitor<Coordinate, Topology<Coordinate>> visitor);
 
+    /**
+     * Walk a path starting from a column, visiting the index of each column
+     * reached, and applying this topology's edge rule, if any.  The default
+     * implementation converts to and from coordinates;  topologies which can
+     * navigate indices directly should override it.
+     *
+     * @param startColumn The index of the column to start from - will not be
+     * included in the output
+     * @param path The path
+     * @param visitor A visitor which will be called with each column index
+     * @return The result of visiting
+     */
+    public Visitor.Result walkIndices(int startColumn, Path<Coordinate, ? extends Direction<Coordinate>> path, final IntVisitor visitor) {
+        return walk(coordinateForIndex(startColumn), path, new Visitor<Coordinate, Topology<Coordinate>>() {
+
+            @Override
+            public Visitor.Result visit(Coordinate coordinate, Topology<Coordinate> topology) {
+                return visitor.visit(topology.toIndex(coordinate));
+            }
+        });
+    }
+
     /**
      * Convert a coordinate to a linear column index
      *
@@ -18,6 +18,7 @@ package com.timboudreau.jhtm.topology;
 
 import com.timboudreau.jhtm.Column;
 import com.timboudreau.jhtm.system.Layer;
+import com.timboudreau.jhtm.util.IntVisitor;
 import com.timboudreau.jhtm.util.Visitor;
 import java.util.Arrays;
 import java.util.EnumSet;
@@ -37,6 +38,11 @@ public class Topology2D extends Topology<Coordinate2D> {
     public final int width;
     public final int height;
     private final EdgeRule<Coordinate2D> edgeRule;
+    private final Coordinate2D extents;
+    // Topologies with more columns than this do not intern coordinates
+    private static final int MAX_INTERNED = 1 << 22;
+    // Created on first use, sized to this topology's extents
+    private volatile Coordinate2D[] coordinates;
 
     public Topology2D(int widthAndHeight) {
         this(widthAndHeight, EdgeRule.wrap());
@@ -55,9 +61,13 @@ public class Topology2D extends Topology<Coordinate2D> {
         this.width = width;
         this.height = height;
         this.edgeRule = edgeRule;
+        this.extents = Coordinate2D.valueOf(width, height);
     }
 
     public Coordinate2D newCoordinate(int x, int y) {
+        if (x >= 0 && x < width && y >= 0 && y < height) {
+            return coordinateForIndex((y * width) + x);
+        }
         return Coordinate2D.valueOf(x, y);
     }
 
@@ -65,7 +75,19 @@ public class Topology2D extends Topology<Coordinate2D> {
     public Coordinate2D coordinateForIndex(int ix) {
         int y = ix / width;
         int x = ix % width;
-        return Coordinate2D.valueOf(x, y);
+        int count = columnCount();
+        if (ix < 0 || ix >= count || count > MAX_INTERNED) {
+            return Coordinate2D.valueOf(x, y);
+        }
+        Coordinate2D[] table = coordinates;
+        if (table == null) {
+            coordinates = table = new Coordinate2D[count];
+        }
+        Coordinate2D result = table[ix];
+        if (result == null) {
+            table[ix] = result = new Coordinate2D(x, y);
+        }
+        return result;
     }
 
     public int toIndex(Coordinate2D coord) {
@@ -77,28 +99,68 @@ public class Topology2D extends Topology<Coordinate2D> {
     }
 
     public Coordinate2D getExtents() {
-        return Coordinate2D.valueOf(width, height);
+        return extents;
     }
 
     public <R> Visitor.Result visitNeighbors(Layer<Coordinate2D> layer, int radius, Visitor<Column, R> v, Column column, R arg) {
         Visitor.Result result = Visitor.Result.NO_VISITS;
-        Coordinate2D loc = coordinateForIndex(column.index());
-        for (int x = loc.x - radius; x < loc.x + radius; x++) {
-            if (x < 0 || x >= width) {
-                continue;
+        int index = column.index();
+        Neighborhood neighbors = cachedNeighborhood(radius);
+        if (neighbors == null) {
+            // Compute only this column's neighbors, rather than a table for
+            // the whole layer
+            Neighborhood.Builder builder = new Neighborhood.Builder(1, radius);
+            addNeighbors(builder, index % width, index / width, radius, edgeRule.adjustsAxesIndependently());
+            neighbors = builder.nextColumn().build();
+            index = 0;
+        }
+        for (int i = neighbors.start(index); i < neighbors.end(index); i++) {
+            result = v.visit(layer.getColumn(neighbors.get(i)), arg);
+            if (result.isDone()) {
+                break;
             }
-            for (int y = loc.y - radius; y < loc.y + radius; y++) {
-                if (y < 0 || y >= height) {
-                    continue;
+        }
+        return result;
+    }
+
+    /**
+     * Neighbors are the columns within a square of side
+     * <code>2 * radius + 1</code> centered on each column.  Locations
+     * outside the topology are passed through the edge rule, and dropped if
+     * they are still invalid afterwards.
+     */
+    @Override
+    protected Neighborhood computeNeighborhood(int radius) {
+        Neighborhood.Builder builder = new Neighborhood.Builder(columnCount(), radius);
+        boolean axesIndependent = edgeRule.adjustsAxesIndependently();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                addNeighbors(builder, x, y, radius, axesIndependent);
+                builder.nextColumn();
+            }
+        }
+        return builder.build();
+    }
+
+    private void addNeighbors(Neighborhood.Builder builder, int x, int y, int radius, boolean axesIndependent) {
+        Coordinate2D center = axesIndependent ? null : newCoordinate(x, y);
+        for (int ny = y - radius; ny <= y + radius; ny++) {
+            for (int nx = x - radius; nx <= x + radius; nx++) {
+                int ax;
+                int ay;
+                if (axesIndependent) {
+                    ax = edgeRule.adjustAxis(nx, width);
+                    ay = edgeRule.adjustAxis(ny, height);
+                } else {
+                    Coordinate2D adjusted = edgeRule.adjust(center, Coordinate2D.valueOf(nx, ny), extents);
+                    ax = adjusted.x;
+                    ay = adjusted.y;
                 }
-                Column c = getColumn(layer, loc);
-                result = v.visit(c, arg);
-                if (result.isDone()) {
-                    break;
+                if (ax >= 0 && ax < width && ay >= 0 && ay < height) {
+                    builder.add((ay * width) + ax);
                 }
             }
         }
-        return result;
     }
 
     public Column<Coordinate2D> getColumn(Layer layer, Coordinate2D coord) {
@@ -117,6 +179,16 @@ public class Topology2D extends Topology<Coordinate2D> {
     @Override
     public Visitor.Result walk(Coordinate2D startPoint, Iterable<? extends Direction<Coordinate2D>> directions, Visitor<Coordinate2D, Topology<Coordinate2D>> visitor) {
         Visitor.Result result = Visitor.Result.NO_VISITS;
+        if (directions instanceof Path2D && isValid(startPoint)) {
+            PathCursor2D cursor = cursor().reset(toIndex(startPoint), (Path2D) directions);
+            while (cursor.next()) {
+                result = visitor.visit(newCoordinate(cursor.x(), cursor.y()), this);
+                if (result.isDone()) {
+                    break;
+                }
+            }
+            return result;
+        }
         Coordinate2D extents = this.getExtents();
         for (Direction<Coordinate2D> d : directions) {
             startPoint = d.navigate(extents, startPoint, edgeRule);
@@ -128,6 +200,32 @@ public class Topology2D extends Topology<Coordinate2D> {
         return result;
     }
 
+    @Override
+    public Visitor.Result walkIndices(int startColumn, Path<Coordinate2D, ? extends Direction<Coordinate2D>> path, IntVisitor visitor) {
+        if (!(path instanceof Path2D)) {
+            return super.walkIndices(startColumn, path, visitor);
+        }
+        Visitor.Result result = Visitor.Result.NO_VISITS;
+        PathCursor2D cursor = cursor().reset(startColumn, (Path2D) path);
+        while (cursor.next()) {
+            result = visitor.visit(cursor.column());
+            if (result.isDone()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Create a reusable cursor for walking paths in this topology without
+     * allocating.
+     *
+     * @return A cursor
+     */
+    public PathCursor2D cursor() {
+        return new PathCursor2D(width, height, edgeRule);
+    }
+
     @Override
     public Path<Coordinate2D, ? extends Direction<Coordinate2D>> createRandom(Random r, Coordinate2D start, int length) {
         Set<Coordinate2D> seen = new HashSet<>(Arrays.asList(start));
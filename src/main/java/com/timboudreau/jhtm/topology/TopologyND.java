@@ -0,0 +1,334 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.topology;
+
+import com.timboudreau.jhtm.Column;
+import com.timboudreau.jhtm.system.Layer;
+import com.timboudreau.jhtm.util.IntVisitor;
+import com.timboudreau.jhtm.util.Visitor;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A topology of any number of dimensions - a 1-D feature space, a 3-D
+ * (x, y, channel) sensor grid, and so on.  Rather than an object per
+ * location, a coordinate is packed into an int using mixed-radix
+ * arithmetic, with axis 0 varying fastest, and that int is simply the
+ * column index.  So the Coordinate type is Integer, and toIndex() and
+ * coordinateForIndex() are identity operations;  use coordinate() and
+ * index() to convert between packed and per-axis values.
+ * <p/>
+ * Paths move one step along one axis at a time, so there are two
+ * directions per dimension.  The edge rule is applied to each axis
+ * separately, so it must be one of the built-in rules (wrap, constrain or
+ * noop), and a location which the rule leaves outside the extents is
+ * constrained to them.  Other kinds of direction, which only see a packed
+ * index, get the rule applied to the index as a single axis.
+ *
+ * @author Tim Boudreau
+ */
+public class TopologyND extends Topology<Integer> {
+
+    private final int[] extents;
+    private final int[] strides;
+    private final int count;
+    private final EdgeRule<?> edgeRule;
+    // The same rule over packed indices, for directions other than
+    // DirectionND, which only know how to move an Integer
+    private final EdgeRule<Integer> indexRule;
+    private final DirectionND[] directions;
+
+    /**
+     * Create a topology which wraps at its edges.
+     *
+     * @param extents The size of each dimension
+     */
+    public TopologyND(int... extents) {
+        this(EdgeRule.wrap(), extents);
+    }
+
+    /**
+     * Create a topology.
+     *
+     * @param edgeRule One of the built-in edge rules, applied to every axis
+     * @param extents The size of each dimension
+     */
+    public TopologyND(EdgeRule<?> edgeRule, int... extents) {
+        super(PathND.class);
+        if (extents.length == 0 || extents.length > 63) {
+            throw new IllegalArgumentException("Need 1-63 dimensions, not " + extents.length);
+        }
+        this.indexRule = EdgeRule.onIndices(edgeRule);
+        this.extents = extents.clone();
+        this.strides = new int[extents.length];
+        long total = 1;
+        for (int i = 0; i < extents.length; i++) {
+            if (extents[i] <= 0) {
+                throw new IllegalArgumentException("Bad extent " + extents[i]
+                        + " for axis " + i);
+            }
+            strides[i] = (int) total;
+            total *= extents[i];
+            if (total > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many columns in "
+                        + Arrays.toString(extents));
+            }
+        }
+        this.count = (int) total;
+        this.edgeRule = edgeRule;
+        this.directions = new DirectionND[extents.length * 2];
+        for (int i = 0; i < extents.length; i++) {
+            directions[i * 2] = new DirectionND(i, -1, this.extents, strides);
+            directions[(i * 2) + 1] = new DirectionND(i, 1, this.extents, strides);
+        }
+    }
+
+    public int dimensions() {
+        return extents.length;
+    }
+
+    public int extent(int axis) {
+        return extents[axis];
+    }
+
+    /**
+     * Get the directions which paths in this topology are made of - minus
+     * and plus for each axis, in order.
+     *
+     * @return A new array of directions
+     */
+    public DirectionND[] directions() {
+        return directions.clone();
+    }
+
+    /**
+     * Get one component of a packed coordinate.
+     *
+     * @param index A packed coordinate, which is a column index
+     * @param axis The axis
+     * @return The coordinate on that axis
+     */
+    public int coordinate(int index, int axis) {
+        return (index / strides[axis]) % extents[axis];
+    }
+
+    /**
+     * Pack per-axis coordinates into a column index.
+     *
+     * @param coordinates One value per dimension
+     * @return A column index
+     */
+    public int index(int... coordinates) {
+        if (coordinates.length != extents.length) {
+            throw new IllegalArgumentException("Expected " + extents.length
+                    + " coordinates but got " + coordinates.length);
+        }
+        int result = 0;
+        for (int i = 0; i < coordinates.length; i++) {
+            if (coordinates[i] < 0 || coordinates[i] >= extents[i]) {
+                throw new IndexOutOfBoundsException(coordinates[i]
+                        + " out of range 0-" + extents[i] + " on axis " + i);
+            }
+            result += coordinates[i] * strides[i];
+        }
+        return result;
+    }
+
+    /**
+     * Create a path from a sequence of directions from directions().
+     *
+     * @param steps The directions
+     * @return A path
+     */
+    public PathND path(DirectionND... steps) {
+        byte[] bytes = new byte[steps.length];
+        for (int i = 0; i < steps.length; i++) {
+            bytes[i] = (byte) steps[i].ordinal();
+        }
+        return new PathND(directions, bytes);
+    }
+
+    @Override
+    public int columnCount() {
+        return count;
+    }
+
+    @Override
+    public Integer coordinateForIndex(int ix) {
+        return ix;
+    }
+
+    @Override
+    public int toIndex(Integer coordinate) {
+        return coordinate;
+    }
+
+    @Override
+    public Integer getExtents() {
+        return count;
+    }
+
+    @Override
+    public boolean isValid(Integer coord) {
+        return coord != null && coord >= 0 && coord < count;
+    }
+
+    @Override
+    public <R> Visitor.Result visitNeighbors(Layer<Integer> layer, int radius, Visitor<Column, R> v, Column column, R arg) {
+        Visitor.Result result = Visitor.Result.NO_VISITS;
+        int index = column.index();
+        Neighborhood neighbors = cachedNeighborhood(radius);
+        if (neighbors == null) {
+            // Compute only this column's neighbors, rather than a table for
+            // the whole layer
+            Neighborhood.Builder builder = new Neighborhood.Builder(1, radius);
+            addNeighbors(builder, index, radius, new int[extents.length], new int[extents.length]);
+            neighbors = builder.nextColumn().build();
+            index = 0;
+        }
+        for (int i = neighbors.start(index); i < neighbors.end(index); i++) {
+            result = v.visit(layer.getColumn(neighbors.get(i)), arg);
+            if (result.isDone()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Neighbors are the columns within a hypercube of side
+     * <code>2 * radius + 1</code> centered on each column.  Locations
+     * outside the topology are passed through the edge rule, and dropped if
+     * they are still invalid afterwards.
+     */
+    @Override
+    protected Neighborhood computeNeighborhood(int radius) {
+        int dims = extents.length;
+        Neighborhood.Builder builder = new Neighborhood.Builder(count, radius);
+        int[] center = new int[dims];
+        int[] offset = new int[dims];
+        for (int column = 0; column < count; column++) {
+            addNeighbors(builder, column, radius, center, offset);
+            builder.nextColumn();
+        }
+        return builder.build();
+    }
+
+    private void addNeighbors(Neighborhood.Builder builder, int column, int radius, int[] center, int[] offset) {
+        int dims = extents.length;
+        for (int axis = 0; axis < dims; axis++) {
+            center[axis] = coordinate(column, axis);
+        }
+        Arrays.fill(offset, -radius);
+        // Odometer over all offsets in the hypercube
+        for (;;) {
+            int neighbor = 0;
+            boolean valid = true;
+            for (int axis = 0; axis < dims && valid; axis++) {
+                int value = edgeRule.adjustAxis(center[axis] + offset[axis], extents[axis]);
+                valid = value >= 0 && value < extents[axis];
+                neighbor += value * strides[axis];
+            }
+            if (valid) {
+                builder.add(neighbor);
+            }
+            for (int axis = 0;; axis++) {
+                if (axis == dims) {
+                    return;
+                }
+                if (++offset[axis] <= radius) {
+                    break;
+                }
+                offset[axis] = -radius;
+            }
+        }
+    }
+
+    @Override
+    public Visitor.Result walk(Integer startPoint, Iterable<? extends Direction<Integer>> directions, Visitor<Integer, Topology<Integer>> visitor) {
+        Visitor.Result result = Visitor.Result.NO_VISITS;
+        int current = startPoint;
+        for (Direction<Integer> d : directions) {
+            current = step(current, d);
+            result = visitor.visit(current, this);
+            if (result.isDone()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Visitor.Result walkIndices(int startColumn, Path<Integer, ? extends Direction<Integer>> path, IntVisitor visitor) {
+        if (!(path instanceof PathND)) {
+            return super.walkIndices(startColumn, path, visitor);
+        }
+        PathND p = (PathND) path;
+        Visitor.Result result = Visitor.Result.NO_VISITS;
+        int current = startColumn;
+        for (int i = 0; i < p.length(); i++) {
+            current = p.get(i).step(current, edgeRule);
+            result = visitor.visit(current);
+            if (result.isDone()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private int step(int current, Direction<Integer> d) {
+        if (d instanceof DirectionND) {
+            return ((DirectionND) d).step(current, edgeRule);
+        }
+        return d.navigate(count, current, indexRule);
+    }
+
+    @Override
+    public PathND createRandom(Random r, Integer start, int length) {
+        Set<Integer> seen = new HashSet<>();
+        seen.add(start);
+        byte[] steps = new byte[length];
+        int current = start;
+        int made = 0;
+        outer:
+        for (int i = 0; i < length; i++) {
+            // Try directions starting from a random one, so every direction
+            // is tried at most once per step
+            int first = r.nextInt(directions.length);
+            for (int j = 0; j < directions.length; j++) {
+                DirectionND d = directions[(first + j) % directions.length];
+                int next = d.step(current, edgeRule);
+                if (!seen.contains(next)) {
+                    seen.add(next);
+                    current = next;
+                    steps[made++] = (byte) d.ordinal();
+                    continue outer;
+                }
+            }
+            // nowhere to go
+            break;
+        }
+        return new PathND(directions, made == length ? steps : Arrays.copyOf(steps, made));
+    }
+
+    @Override
+    public String toString() {
+        return "TopologyND" + Arrays.toString(extents);
+    }
+}
@@ -17,8 +17,10 @@
 package com.timboudreau.jhtm.util;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 
 /**
@@ -34,6 +36,9 @@ import java.util.Set;
  */
 public abstract class Bits implements Serializable {
 
+    // Bumped by every mutator, so derived state can tell it is out of date
+    private transient long modifications;
+
     public abstract Bits flip(int i);
 
     public abstract Bits clear();
@@ -61,32 +66,269 @@ public abstract class Bits implements Serializable {
     public final Bits clone() {
         return copy();
     }
+
+    final void modified() {
+        modifications++;
+    }
+
+    /**
+     * Get a number which changes whenever this set is modified, so that
+     * something derived from its contents - a column-level view of cell
+     * bits, say - can tell when it needs rebuilding by comparing it with
+     * the value it last saw.  It may change when nothing was modified, and
+     * means nothing when compared across different sets.
+     *
+     * @return A number
+     */
+    public long modifications() {
+        return modifications;
+    }
     
     boolean isIntSetBits() {
         return this instanceof IntSetBits;
     }
 
     public Set<Integer> setBits() {
-        int sz = size();
         Set<Integer> set = new HashSet<>();
-        for (int i = 0; i < sz; i++) {
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            set.add(i);
+        }
+        return set;
+    }
+
+    /**
+     * Find the first set bit at or after the passed index.  Usable as a
+     * cursor:  <code>for (int i = bits.nextSetBit(0); i &gt;= 0; i =
+     * bits.nextSetBit(i + 1))</code>.
+     *
+     * @param from The index to start at, inclusive
+     * @return The index of the next set bit, or -1 if there is none
+     */
+    public int nextSetBit(int from) {
+        int sz = size();
+        for (int i = Math.max(0, from); i < sz; i++) {
             if (get(i)) {
-                set.add(i);
+                return i;
             }
         }
-        return set;
+        return -1;
+    }
+
+    /**
+     * Visit each set bit in ascending order, without boxing.
+     *
+     * @param visitor A visitor
+     * @return The result of the last call to the visitor, or NO_VISITS
+     */
+    public Visitor.Result forEach(IntVisitor visitor) {
+        Visitor.Result result = Visitor.Result.NO_VISITS;
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            result = visitor.visit(i);
+            if (result.isDone()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Clear every bit in this set which is not set in the passed one.
+     *
+     * @param other Another set of bits
+     * @return this
+     */
+    public Bits and(Bits other) {
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            if (!other.get(i)) {
+                clear(i);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Set every bit in this set which is set in the passed one.
+     *
+     * @param other Another set of bits
+     * @return this
+     */
+    public Bits or(Bits other) {
+        other.forEach(new IntVisitor() {
+
+            @Override
+            public Visitor.Result visit(int value) {
+                set(value);
+                return Visitor.Result.NOT_DONE;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Clear every bit in this set which is set in the passed one.
+     *
+     * @param other Another set of bits
+     * @return this
+     */
+    public Bits andNot(Bits other) {
+        other.forEach(new IntVisitor() {
+
+            @Override
+            public Visitor.Result visit(int value) {
+                clear(value);
+                return Visitor.Result.NOT_DONE;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Flip every bit in this set which is set in the passed one.
+     *
+     * @param other Another set of bits
+     * @return this
+     */
+    public Bits xor(Bits other) {
+        other.forEach(new IntVisitor() {
+
+            @Override
+            public Visitor.Result visit(int value) {
+                flip(value);
+                return Visitor.Result.NOT_DONE;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Count the bits set in both this and the passed set, without
+     * modifying either.
+     *
+     * @param other Another set of bits
+     * @return The cardinality of the intersection
+     */
+    public int intersectionCardinality(Bits other) {
+        other = unwrap(other);
+        Bits smaller = other.cardinality() < cardinality() ? other : this;
+        final Bits larger = smaller == this ? other : this;
+        final int[] result = new int[1];
+        smaller.forEach(new IntVisitor() {
+
+            @Override
+            public Visitor.Result visit(int value) {
+                if (larger.get(value)) {
+                    result[0]++;
+                }
+                return Visitor.Result.NOT_DONE;
+            }
+        });
+        return result[0];
+    }
+
+    /**
+     * Get bits with the same contents as the passed ones which can be read
+     * without taking a lock:  for a wrapper, a copy of what it wraps, made
+     * while holding only the wrapper's own lock.  A wrapper combining
+     * itself with another must not hold its lock while taking the other's,
+     * or two sets combining with each other at once can deadlock; and the
+     * unwrapped copy lets the bitmap implementations use their word-level
+     * paths.
+     *
+     * @param bits Some bits
+     * @return Some bits which are not a wrapper
+     */
+    static Bits unwrap(Bits bits) {
+        while (bits instanceof WrapperBits) {
+            bits = ((WrapperBits) bits).copyInner();
+        }
+        return bits;
     }
 
     public boolean equals(Object o) {
-        return o instanceof Bits && ((Bits) o).setBits().equals(setBits());
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof Bits)) {
+            return false;
+        }
+        Bits other = (Bits) o;
+        int cardinality = cardinality();
+        return other.cardinality() == cardinality
+                && intersectionCardinality(other) == cardinality;
     }
 
     public int hashCode() {
-        return setBits().hashCode();
+        // Same as setBits().hashCode(), without boxing
+        final int[] result = new int[1];
+        forEach(new IntVisitor() {
+
+            @Override
+            public Visitor.Result visit(int value) {
+                result[0] += value;
+                return Visitor.Result.NOT_DONE;
+            }
+        });
+        return result[0];
     }
     
     public static Bits create(int size) {
-        return new MetaBits(new IntSetBits(size));
+        return create(size, Storage.ADAPTIVE);
+    }
+
+    /**
+     * Create a new, empty set of bits using the passed storage strategy.
+     *
+     * @param size The number of bits
+     * @param storage How to store them
+     * @return A set of bits
+     */
+    public static Bits create(int size, Storage storage) {
+        switch (storage) {
+            case ADAPTIVE:
+                return new MetaBits(new IntSetBits(size));
+            case COMPRESSED:
+                return new CompressedBits(size);
+            case CONCURRENT:
+                return new ConcurrentBits(size);
+            default:
+                throw new AssertionError(storage);
+        }
+    }
+
+    /**
+     * Create a new, empty set of bits whose storage is allocated outside the
+     * Java heap.
+     *
+     * @param size The number of bits
+     * @param memory The memory to allocate from
+     * @return A set of bits
+     */
+    public static Bits create(int size, OffHeapMemory memory) {
+        return new OffHeapBits(size, memory);
+    }
+
+    /**
+     * Internal representations which can be requested from create().
+     */
+    public enum Storage {
+        /**
+         * Starts out as a set of integers, and switches to a BitSet once
+         * that is smaller.  Synchronized.
+         */
+        ADAPTIVE,
+        /**
+         * A compressed bitmap which stores each 65536-bit chunk as either a
+         * sorted array of 16-bit values or a bitmap, whichever is smaller,
+         * and stores nothing for empty chunks.  Best for large, sparse sets
+         * of bits.  Not thread-safe.
+         */
+        COMPRESSED,
+        /**
+         * A plain bitmap of atomically updated words, which many threads can
+         * set and clear bits in at once without locking.  Uses size / 8
+         * bytes regardless of how many bits are set.
+         */
+        CONCURRENT
     }
 
     static class MetaBits extends WrapperBits {
@@ -113,9 +355,9 @@ public abstract class Bits implements Serializable {
         }
 
         protected synchronized Bits inner() {
-            Bits inner = super.inner();
-            check(inner);
-            return inner;
+            check(super.inner());
+            // check() may have replaced the representation
+            return super.inner();
         }
 
         @Override
@@ -125,24 +367,28 @@ public abstract class Bits implements Serializable {
 
         @Override
         public Bits flip(int i) {
+            modified();
             inner().flip(i);
             return this;
         }
 
         @Override
         public Bits clear() {
+            modified();
             inner().clear();
             return this;
         }
 
         @Override
         public Bits set(int i) {
+            modified();
             inner().set(i);
             return this;
         }
 
         @Override
         public Bits clear(int i) {
+            modified();
             inner().clear(i);
             return this;
         }
@@ -177,6 +423,63 @@ public abstract class Bits implements Serializable {
             return inner().toBitSetBits();
         }
 
+        @Override
+        public synchronized int nextSetBit(int from) {
+            return super.inner().nextSetBit(from);
+        }
+
+        @Override
+        public synchronized Visitor.Result forEach(IntVisitor visitor) {
+            return super.inner().forEach(visitor);
+        }
+
+        @Override
+        public Bits and(Bits other) {
+            Bits operand = unwrap(other);
+            synchronized (this) {
+                modified();
+                inner().and(operand);
+            }
+            return this;
+        }
+
+        @Override
+        public Bits or(Bits other) {
+            Bits operand = unwrap(other);
+            synchronized (this) {
+                modified();
+                inner().or(operand);
+            }
+            return this;
+        }
+
+        @Override
+        public Bits andNot(Bits other) {
+            Bits operand = unwrap(other);
+            synchronized (this) {
+                modified();
+                inner().andNot(operand);
+            }
+            return this;
+        }
+
+        @Override
+        public Bits xor(Bits other) {
+            Bits operand = unwrap(other);
+            synchronized (this) {
+                modified();
+                inner().xor(operand);
+            }
+            return this;
+        }
+
+        @Override
+        public int intersectionCardinality(Bits other) {
+            Bits operand = unwrap(other);
+            synchronized (this) {
+                return super.inner().intersectionCardinality(operand);
+            }
+        }
     }
 
     static abstract class WrapperBits extends Bits {
@@ -195,6 +498,10 @@ public abstract class Bits implements Serializable {
             this.inner = inner;
         }
 
+        synchronized Bits copyInner() {
+            return inner().copy();
+        }
+
         public boolean equals(Object o) {
             return inner().equals(o);
         }
@@ -212,7 +519,7 @@ public abstract class Bits implements Serializable {
         }
     }
 
-    private static class SynchronizedBits extends WrapperBits {
+    static class SynchronizedBits extends WrapperBits {
 
         public SynchronizedBits(Bits inner) {
             super(inner);
@@ -220,21 +527,25 @@ public abstract class Bits implements Serializable {
 
         @Override
         public synchronized Bits flip(int i) {
+            modified();
             return inner().flip(i);
         }
 
         @Override
         public synchronized Bits clear() {
+            modified();
             return inner().clear();
         }
 
         @Override
         public synchronized Bits set(int i) {
+            modified();
             return inner().set(i);
         }
 
         @Override
         public synchronized Bits clear(int i) {
+            modified();
             return inner().clear(i);
         }
 
@@ -292,12 +603,73 @@ public abstract class Bits implements Serializable {
         public synchronized Set<Integer> setBits() {
             return inner().setBits();
         }
+
+        @Override
+        public synchronized int nextSetBit(int from) {
+            return inner().nextSetBit(from);
+        }
+
+        @Override
+        public synchronized Visitor.Result forEach(IntVisitor visitor) {
+            return inner().forEach(visitor);
+        }
+
+        @Override
+        public Bits and(Bits other) {
+            Bits operand = unwrap(other);
+            synchronized (this) {
+                modified();
+                inner().and(operand);
+            }
+            return this;
+        }
+
+        @Override
+        public Bits or(Bits other) {
+            Bits operand = unwrap(other);
+            synchronized (this) {
+                modified();
+                inner().or(operand);
+            }
+            return this;
+        }
+
+        @Override
+        public Bits andNot(Bits other) {
+            Bits operand = unwrap(other);
+            synchronized (this) {
+                modified();
+                inner().andNot(operand);
+            }
+            return this;
+        }
+
+        @Override
+        public Bits xor(Bits other) {
+            Bits operand = unwrap(other);
+            synchronized (this) {
+                modified();
+                inner().xor(operand);
+            }
+            return this;
+        }
+
+        @Override
+        public int intersectionCardinality(Bits other) {
+            Bits operand = unwrap(other);
+            synchronized (this) {
+                return inner().intersectionCardinality(operand);
+            }
+        }
     }
 
-    private static class IntSetBits extends Bits {
+    static class IntSetBits extends Bits {
 
         private final Set<Integer> ints = new HashSet<>();
         private int size;
+        // The set bits in order, built on demand for nextSetBit() and
+        // forEach(), and dropped whenever the set changes
+        private int[] sorted;
 
         IntSetBits(int size, Set<Integer> ints) {
             this(size);
@@ -310,29 +682,39 @@ public abstract class Bits implements Serializable {
 
         @Override
         public Bits flip(int i) {
+            modified();
             if (!ints.contains(i)) {
                 ints.add(i);
             } else {
                 ints.remove(i);
             }
+            sorted = null;
             return this;
         }
 
         @Override
         public Bits clear() {
+            modified();
             ints.clear();
+            sorted = null;
             return this;
         }
 
         @Override
         public Bits set(int i) {
-            ints.add(i);
+            modified();
+            if (ints.add(i)) {
+                sorted = null;
+            }
             return this;
         }
 
         @Override
         public Bits clear(int i) {
-            ints.remove(i);
+            modified();
+            if (ints.remove(i)) {
+                sorted = null;
+            }
             return this;
         }
 
@@ -353,11 +735,11 @@ public abstract class Bits implements Serializable {
 
         @Override
         BitSetBits toBitSetBits() {
-            BitSet bs = new BitSet();
+            BitSet bs = new BitSet(size);
             for (int i : ints) {
                 bs.set(i);
             }
-            return new BitSetBits(bs);
+            return new BitSetBits(bs, size);
         }
 
         @Override
@@ -380,36 +762,99 @@ public abstract class Bits implements Serializable {
         int sizeInBytes() {
             return Integer.SIZE * ints.size();
         }
+
+        private int[] sorted() {
+            // Hash order is arbitrary;  sort so iteration order is the same
+            // as for every other implementation, and so that a loop over
+            // nextSetBit() is not quadratic
+            int[] result = sorted;
+            if (result == null) {
+                result = new int[ints.size()];
+                int ix = 0;
+                for (int i : ints) {
+                    result[ix++] = i;
+                }
+                Arrays.sort(result);
+                sorted = result;
+            }
+            return result;
+        }
+
+        @Override
+        public int nextSetBit(int from) {
+            int[] sorted = sorted();
+            int ix = Arrays.binarySearch(sorted, from);
+            if (ix < 0) {
+                ix = -ix - 1;
+            }
+            return ix < sorted.length ? sorted[ix] : -1;
+        }
+
+        @Override
+        public Visitor.Result forEach(IntVisitor visitor) {
+            int[] sorted = sorted();
+            Visitor.Result result = Visitor.Result.NO_VISITS;
+            for (int i = 0; i < sorted.length; i++) {
+                result = visitor.visit(sorted[i]);
+                if (result.isDone()) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Bits and(Bits other) {
+            modified();
+            for (Iterator<Integer> it = ints.iterator(); it.hasNext();) {
+                if (!other.get(it.next())) {
+                    it.remove();
+                }
+            }
+            sorted = null;
+            return this;
+        }
+
+        @Override
+        public Set<Integer> setBits() {
+            return new HashSet<>(ints);
+        }
     }
 
-    private static class BitSetBits extends Bits {
+    static class BitSetBits extends Bits {
 
         private final BitSet bits;
+        private final int size;
 
-        public BitSetBits(BitSet bits) {
+        public BitSetBits(BitSet bits, int size) {
             this.bits = bits;
+            this.size = size;
         }
 
         public BitSetBits(int size) {
-            this.bits = new BitSet(size);
+            this(new BitSet(size), size);
         }
 
         public BitSetBits flip(int i) {
+            modified();
             bits.flip(i);
             return this;
         }
 
         public BitSetBits set(int i) {
+            modified();
             bits.set(i);
             return this;
         }
 
         public BitSetBits clear(int i) {
+            modified();
             bits.clear(i);
             return this;
         }
 
         public BitSetBits clear() {
+            modified();
             bits.clear();
             return this;
         }
@@ -423,7 +868,7 @@ public abstract class Bits implements Serializable {
         }
 
         public int size() {
-            return bits.length();
+            return size;
         }
 
         public boolean equals(Object o) {
@@ -435,14 +880,11 @@ public abstract class Bits implements Serializable {
         }
 
         IntSetBits toIntSetBits() {
-            int size = this.bits.size();
-            IntSetBits bits = new IntSetBits(size);
-            for (int i = 0; i < size; i++) {
-                if (this.bits.get(i)) {
-                    bits.set(i);
-                }
+            IntSetBits result = new IntSetBits(size);
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                result.set(i);
             }
-            return bits;
+            return result;
         }
 
         @Override
@@ -452,7 +894,7 @@ public abstract class Bits implements Serializable {
 
         @Override
         Bits copy() {
-            return new BitSetBits((BitSet) bits.clone());
+            return new BitSetBits((BitSet) bits.clone(), size);
         }
 
         @Override
@@ -463,5 +905,54 @@ public abstract class Bits implements Serializable {
         public int sizeInBytes() {
             return bits.length() / Integer.SIZE;
         }
+
+        @Override
+        public int nextSetBit(int from) {
+            return bits.nextSetBit(Math.max(0, from));
+        }
+
+        @Override
+        public Bits and(Bits other) {
+            modified();
+            Bits operand = unwrap(other);
+            if (operand instanceof BitSetBits) {
+                bits.and(((BitSetBits) operand).bits);
+                return this;
+            }
+            return super.and(operand);
+        }
+
+        @Override
+        public Bits or(Bits other) {
+            modified();
+            Bits operand = unwrap(other);
+            if (operand instanceof BitSetBits) {
+                bits.or(((BitSetBits) operand).bits);
+                return this;
+            }
+            return super.or(operand);
+        }
+
+        @Override
+        public Bits andNot(Bits other) {
+            modified();
+            Bits operand = unwrap(other);
+            if (operand instanceof BitSetBits) {
+                bits.andNot(((BitSetBits) operand).bits);
+                return this;
+            }
+            return super.andNot(operand);
+        }
+
+        @Override
+        public Bits xor(Bits other) {
+            modified();
+            Bits operand = unwrap(other);
+            if (operand instanceof BitSetBits) {
+                bits.xor(((BitSetBits) operand).bits);
+                return this;
+            }
+            return super.xor(operand);
+        }
     }
 }
@@ -0,0 +1,909 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A compressed bitmap in the style of Roaring bitmaps.  The space of bit
+ * indices is divided into chunks of 65536;  each chunk which contains any set
+ * bits gets a container.  A sparse chunk is stored as a sorted array of the
+ * low 16 bits of each set index (two bytes per set bit);  once a chunk holds
+ * more than 4096 set bits it is switched to a plain 8Kb bitmap, which is
+ * smaller at that density.  Chunks with no set bits cost nothing.
+ * <p/>
+ * At the few-percent activation densities typical of a layer, this uses
+ * roughly a sixteenth of the memory of a set of ints and a fraction of that
+ * of an uncompressed bitmap, while keeping get() to a binary search over the
+ * (small) chunk table and the chunk.
+ * <p/>
+ * Copies are copy-on-write:  a copy shares its containers with the original,
+ * and whichever set next modifies a shared container copies that container
+ * first, so copying costs only the chunk table.
+ * <p/>
+ * Not thread-safe.
+ *
+ * @author Tim Boudreau
+ */
+final class CompressedBits extends Bits {
+
+    private static final int INITIAL_CONTAINERS = 4;
+    private final int size;
+    private char[] keys;
+    private Container[] containers;
+    private int count;
+    private int cardinality;
+
+    CompressedBits(int size) {
+        this.size = size;
+        keys = new char[INITIAL_CONTAINERS];
+        containers = new Container[INITIAL_CONTAINERS];
+    }
+
+    private CompressedBits(CompressedBits other) {
+        this.size = other.size;
+        this.keys = other.keys.clone();
+        this.containers = other.containers.clone();
+        for (int i = 0; i < other.count; i++) {
+            containers[i].shared = true;
+        }
+        this.count = other.count;
+        this.cardinality = other.cardinality;
+    }
+
+    private static char highBits(int i) {
+        return (char) (i >>> 16);
+    }
+
+    private static char lowBits(int i) {
+        return (char) (i & 0xFFFF);
+    }
+
+    private int indexOf(char key) {
+        // The chunk table is tiny compared to the chunks, and almost always
+        // accessed in ascending order, so check the last entry first
+        if (count > 0 && keys[count - 1] == key) {
+            return count - 1;
+        }
+        return Arrays.binarySearch(keys, 0, count, key);
+    }
+
+    private Container containerFor(int i, boolean create) {
+        char key = highBits(i);
+        int ix = indexOf(key);
+        if (ix >= 0) {
+            return containers[ix];
+        }
+        if (!create) {
+            return null;
+        }
+        ix = -ix - 1;
+        if (count == keys.length) {
+            int newLength = keys.length * 2;
+            keys = Arrays.copyOf(keys, newLength);
+            containers = Arrays.copyOf(containers, newLength);
+        }
+        System.arraycopy(keys, ix, keys, ix + 1, count - ix);
+        System.arraycopy(containers, ix, containers, ix + 1, count - ix);
+        keys[ix] = key;
+        Container result = containers[ix] = new ArrayContainer();
+        count++;
+        return result;
+    }
+
+    /**
+     * Get the container at an index in the chunk table, first copying it if
+     * it is shared with another set.
+     */
+    private Container writable(int ix) {
+        Container c = containers[ix];
+        if (c.shared) {
+            c = containers[ix] = c.copy();
+        }
+        return c;
+    }
+
+    private Container writable(int i, Container c) {
+        return c.shared ? writable(indexOf(highBits(i))) : c;
+    }
+
+    private void update(int i, Container old, Container nue) {
+        if (nue.cardinality() == 0) {
+            int ix = indexOf(highBits(i));
+            System.arraycopy(keys, ix + 1, keys, ix, count - ix - 1);
+            System.arraycopy(containers, ix + 1, containers, ix, count - ix - 1);
+            containers[--count] = null;
+        } else if (old != nue) {
+            containers[indexOf(highBits(i))] = nue;
+        }
+    }
+
+    @Override
+    public Bits flip(int i) {
+        modified();
+        if (get(i)) {
+            clear(i);
+        } else {
+            set(i);
+        }
+        return this;
+    }
+
+    @Override
+    public Bits clear() {
+        modified();
+        Arrays.fill(containers, 0, count, null);
+        count = 0;
+        cardinality = 0;
+        return this;
+    }
+
+    @Override
+    public Bits set(int i) {
+        modified();
+        if (i < 0) {
+            throw new IndexOutOfBoundsException("Negative index " + i);
+        }
+        Container c = writable(i, containerFor(i, true));
+        int oldCardinality = c.cardinality();
+        Container nue = c.add(lowBits(i));
+        cardinality += nue.cardinality() - oldCardinality;
+        update(i, c, nue);
+        return this;
+    }
+
+    @Override
+    public Bits clear(int i) {
+        modified();
+        if (i < 0) {
+            return this;
+        }
+        Container c = containerFor(i, false);
+        if (c != null) {
+            c = writable(i, c);
+            int oldCardinality = c.cardinality();
+            Container nue = c.remove(lowBits(i));
+            cardinality += nue.cardinality() - oldCardinality;
+            update(i, c, nue);
+        }
+        return this;
+    }
+
+    @Override
+    public boolean get(int i) {
+        if (i < 0) {
+            return false;
+        }
+        Container c = containerFor(i, false);
+        return c != null && c.contains(lowBits(i));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    public int nextSetBit(int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        char key = highBits(from);
+        int ix = Arrays.binarySearch(keys, 0, count, key);
+        int low;
+        if (ix < 0) {
+            ix = -ix - 1;
+            low = 0;
+        } else {
+            low = lowBits(from);
+        }
+        for (; ix < count; ix++) {
+            int found = containers[ix].nextSetBit(low);
+            if (found >= 0) {
+                return (keys[ix] << 16) | found;
+            }
+            low = 0;
+        }
+        return -1;
+    }
+
+    @Override
+    public Visitor.Result forEach(IntVisitor visitor) {
+        Visitor.Result result = Visitor.Result.NO_VISITS;
+        for (int i = 0; i < count; i++) {
+            result = containers[i].forEach(keys[i] << 16, visitor);
+            if (result.isDone()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Bits and(Bits other) {
+        modified();
+        if (!(other instanceof CompressedBits)) {
+            return super.and(other);
+        }
+        CompressedBits o = (CompressedBits) other;
+        int written = 0;
+        int total = 0;
+        for (int i = 0, j = 0; i < count && j < o.count;) {
+            if (keys[i] < o.keys[j]) {
+                i++;
+            } else if (keys[i] > o.keys[j]) {
+                j++;
+            } else {
+                Container c = containers[i] == o.containers[j] ? containers[i]
+                        : writable(i).and(o.containers[j]);
+                if (c.cardinality() > 0) {
+                    keys[written] = keys[i];
+                    containers[written++] = c;
+                    total += c.cardinality();
+                }
+                i++;
+                j++;
+            }
+        }
+        Arrays.fill(containers, written, count, null);
+        count = written;
+        cardinality = total;
+        return this;
+    }
+
+    @Override
+    public Bits andNot(Bits other) {
+        modified();
+        if (!(other instanceof CompressedBits)) {
+            return super.andNot(other);
+        }
+        CompressedBits o = (CompressedBits) other;
+        int written = 0;
+        int total = 0;
+        for (int i = 0, j = 0; i < count; i++) {
+            while (j < o.count && o.keys[j] < keys[i]) {
+                j++;
+            }
+            Container c = containers[i];
+            if (j < o.count && o.keys[j] == keys[i]) {
+                c = writable(i).andNot(o.containers[j]);
+            }
+            if (c.cardinality() > 0) {
+                keys[written] = keys[i];
+                containers[written++] = c;
+                total += c.cardinality();
+            }
+        }
+        Arrays.fill(containers, written, count, null);
+        count = written;
+        cardinality = total;
+        return this;
+    }
+
+    @Override
+    public Bits or(Bits other) {
+        modified();
+        if (!(other instanceof CompressedBits)) {
+            return super.or(other);
+        }
+        return merge((CompressedBits) other, false);
+    }
+
+    @Override
+    public Bits xor(Bits other) {
+        modified();
+        if (!(other instanceof CompressedBits)) {
+            return super.xor(other);
+        }
+        return merge((CompressedBits) other, true);
+    }
+
+    private Bits merge(CompressedBits o, boolean xor) {
+        int max = count + o.count;
+        char[] newKeys = new char[Math.max(INITIAL_CONTAINERS, max)];
+        Container[] newContainers = new Container[newKeys.length];
+        int written = 0;
+        int total = 0;
+        int i = 0;
+        int j = 0;
+        while (i < count || j < o.count) {
+            char key;
+            Container c;
+            if (j == o.count || (i < count && keys[i] < o.keys[j])) {
+                key = keys[i];
+                c = containers[i++];
+            } else if (i == count || keys[i] > o.keys[j]) {
+                key = o.keys[j];
+                c = o.containers[j++].copy();
+            } else if (containers[i] == o.containers[j]) {
+                // Shared with a copy, so the same bits
+                if (xor) {
+                    i++;
+                    j++;
+                    continue;
+                }
+                key = keys[i];
+                c = containers[i++];
+                j++;
+            } else {
+                key = keys[i];
+                c = xor ? writable(i++).xor(o.containers[j++])
+                        : writable(i++).or(o.containers[j++]);
+            }
+            if (c.cardinality() > 0) {
+                newKeys[written] = key;
+                newContainers[written++] = c;
+                total += c.cardinality();
+            }
+        }
+        keys = newKeys;
+        containers = newContainers;
+        count = written;
+        cardinality = total;
+        return this;
+    }
+
+    @Override
+    public int intersectionCardinality(Bits other) {
+        if (!(other instanceof CompressedBits)) {
+            return super.intersectionCardinality(other);
+        }
+        CompressedBits o = (CompressedBits) other;
+        int result = 0;
+        for (int i = 0, j = 0; i < count && j < o.count;) {
+            if (keys[i] < o.keys[j]) {
+                i++;
+            } else if (keys[i] > o.keys[j]) {
+                j++;
+            } else {
+                result += containers[i++].andCardinality(o.containers[j++]);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Set<Integer> setBits() {
+        Set<Integer> result = new HashSet<>(cardinality * 2);
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            result.add(i);
+        }
+        return result;
+    }
+
+    @Override
+    Bits toIntSetBits() {
+        IntSetBits result = new IntSetBits(size);
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            result.set(i);
+        }
+        return result;
+    }
+
+    @Override
+    Bits toBitSetBits() {
+        BitSet result = new BitSet(size);
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            result.set(i);
+        }
+        return new BitSetBits(result, size);
+    }
+
+    @Override
+    Bits copy() {
+        return new CompressedBits(this);
+    }
+
+    @Override
+    int sizeInBytes() {
+        int result = keys.length * 2 + containers.length * 4;
+        for (int i = 0; i < count; i++) {
+            result += containers[i].sizeInBytes();
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof CompressedBits) {
+            CompressedBits other = (CompressedBits) o;
+            if (other.count != count || other.cardinality != cardinality) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (keys[i] != other.keys[i] || !containers[i].sameBits(other.containers[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        // Same as the hash code of setBits(), without boxing
+        int result = 0;
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            result += i;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "CompressedBits(" + cardinality + " of " + size + " in "
+                + count + " containers)";
+    }
+
+    private static abstract class Container implements Serializable {
+
+        /**
+         * Set when a copy of the owning set is made;  a shared container is
+         * never modified, but copied by whichever set next writes to it.
+         */
+        boolean shared;
+
+        abstract boolean contains(char low);
+
+        abstract Container add(char low);
+
+        abstract Container remove(char low);
+
+        abstract int cardinality();
+
+        abstract int nextSetBit(int low);
+
+        abstract Container copy();
+
+        abstract int sizeInBytes();
+
+        /**
+         * Intersect with another container;  may modify this container, and
+         * may return a different one.
+         */
+        Container and(Container other) {
+            Container result = this;
+            for (int b = nextSetBit(0); b >= 0; b = nextSetBit(b + 1)) {
+                if (!other.contains((char) b)) {
+                    result = result.remove((char) b);
+                }
+            }
+            return result;
+        }
+
+        Container or(Container other) {
+            Container result = this;
+            for (int b = other.nextSetBit(0); b >= 0; b = other.nextSetBit(b + 1)) {
+                result = result.add((char) b);
+            }
+            return result;
+        }
+
+        Container andNot(Container other) {
+            Container result = this;
+            for (int b = other.nextSetBit(0); b >= 0; b = other.nextSetBit(b + 1)) {
+                result = result.remove((char) b);
+            }
+            return result;
+        }
+
+        Container xor(Container other) {
+            Container result = this;
+            for (int b = other.nextSetBit(0); b >= 0; b = other.nextSetBit(b + 1)) {
+                char low = (char) b;
+                result = result.contains(low) ? result.remove(low) : result.add(low);
+            }
+            return result;
+        }
+
+        int andCardinality(Container other) {
+            Container smaller = other.cardinality() < cardinality() ? other : this;
+            Container larger = smaller == this ? other : this;
+            int result = 0;
+            for (int b = smaller.nextSetBit(0); b >= 0; b = smaller.nextSetBit(b + 1)) {
+                if (larger.contains((char) b)) {
+                    result++;
+                }
+            }
+            return result;
+        }
+
+        Visitor.Result forEach(int base, IntVisitor visitor) {
+            Visitor.Result result = Visitor.Result.NO_VISITS;
+            for (int b = nextSetBit(0); b >= 0; b = nextSetBit(b + 1)) {
+                result = visitor.visit(base | b);
+                if (result.isDone()) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        boolean sameBits(Container other) {
+            if (other.cardinality() != cardinality()) {
+                return false;
+            }
+            int a = nextSetBit(0);
+            int b = other.nextSetBit(0);
+            while (a >= 0 && a == b) {
+                a = nextSetBit(a + 1);
+                b = other.nextSetBit(b + 1);
+            }
+            return a == b;
+        }
+    }
+
+    /**
+     * Sorted array of the low 16 bits of each set index in a chunk.
+     */
+    private static final class ArrayContainer extends Container {
+
+        static final int MAX_CARDINALITY = 4096;
+        private char[] content;
+        private int cardinality;
+
+        ArrayContainer() {
+            content = new char[4];
+        }
+
+        ArrayContainer(char[] content, int cardinality) {
+            this.content = content;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(content, 0, cardinality, low) >= 0;
+        }
+
+        @Override
+        Container add(char low) {
+            int ix = Arrays.binarySearch(content, 0, cardinality, low);
+            if (ix >= 0) {
+                return this;
+            }
+            if (cardinality == MAX_CARDINALITY) {
+                return toBitmap().add(low);
+            }
+            ix = -ix - 1;
+            if (cardinality == content.length) {
+                content = Arrays.copyOf(content, Math.min(MAX_CARDINALITY,
+                        content.length + (content.length >> 1) + 1));
+            }
+            System.arraycopy(content, ix, content, ix + 1, cardinality - ix);
+            content[ix] = low;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char low) {
+            int ix = Arrays.binarySearch(content, 0, cardinality, low);
+            if (ix >= 0) {
+                System.arraycopy(content, ix + 1, content, ix, cardinality - ix - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        int nextSetBit(int low) {
+            if (low > 0xFFFF) {
+                return -1;
+            }
+            int ix = Arrays.binarySearch(content, 0, cardinality, (char) low);
+            if (ix < 0) {
+                ix = -ix - 1;
+            }
+            return ix < cardinality ? content[ix] : -1;
+        }
+
+        @Override
+        Container and(Container other) {
+            int written = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (other.contains(content[i])) {
+                    content[written++] = content[i];
+                }
+            }
+            cardinality = written;
+            return this;
+        }
+
+        @Override
+        Container andNot(Container other) {
+            if (other instanceof BitmapContainer) {
+                int written = 0;
+                for (int i = 0; i < cardinality; i++) {
+                    if (!other.contains(content[i])) {
+                        content[written++] = content[i];
+                    }
+                }
+                cardinality = written;
+                return this;
+            }
+            return super.andNot(other);
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                // Cheaper to add our few values to a copy of the bitmap
+                Container result = other.copy();
+                for (int i = 0; i < cardinality; i++) {
+                    result = result.add(content[i]);
+                }
+                return result;
+            }
+            return super.or(other);
+        }
+
+        @Override
+        Container xor(Container other) {
+            if (other instanceof BitmapContainer) {
+                Container result = other.copy();
+                for (int i = 0; i < cardinality; i++) {
+                    char low = content[i];
+                    result = result.contains(low) ? result.remove(low) : result.add(low);
+                }
+                return result;
+            }
+            return super.xor(other);
+        }
+
+        @Override
+        Visitor.Result forEach(int base, IntVisitor visitor) {
+            Visitor.Result result = Visitor.Result.NO_VISITS;
+            for (int i = 0; i < cardinality; i++) {
+                result = visitor.visit(base | content[i]);
+                if (result.isDone()) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        private BitmapContainer toBitmap() {
+            BitmapContainer result = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                result.add(content[i]);
+            }
+            return result;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(content, Math.max(4, cardinality)), cardinality);
+        }
+
+        @Override
+        int sizeInBytes() {
+            return content.length * 2 + 4;
+        }
+    }
+
+    /**
+     * Plain bitmap of all 65536 bits in a chunk.
+     */
+    private static final class BitmapContainer extends Container {
+
+        // Switch back to an array somewhat below the array's maximum, so a
+        // chunk hovering around the threshold doesn't flip-flop
+        private static final int MIN_CARDINALITY = ArrayContainer.MAX_CARDINALITY - 1024;
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer() {
+            words = new long[1024];
+        }
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        Container add(char low) {
+            long old = words[low >>> 6];
+            long nue = old | (1L << low);
+            if (old != nue) {
+                words[low >>> 6] = nue;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char low) {
+            long old = words[low >>> 6];
+            long nue = old & ~(1L << low);
+            if (old != nue) {
+                words[low >>> 6] = nue;
+                cardinality--;
+                if (cardinality < MIN_CARDINALITY) {
+                    return toArray();
+                }
+            }
+            return this;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        int nextSetBit(int low) {
+            int wordIndex = low >>> 6;
+            if (wordIndex >= words.length) {
+                return -1;
+            }
+            long word = words[wordIndex] & (-1L << low);
+            while (true) {
+                if (word != 0) {
+                    return (wordIndex * 64) + Long.numberOfTrailingZeros(word);
+                }
+                if (++wordIndex == words.length) {
+                    return -1;
+                }
+                word = words[wordIndex];
+            }
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof BitmapContainer) {
+                long[] o = ((BitmapContainer) other).words;
+                for (int i = 0; i < words.length; i++) {
+                    words[i] &= o[i];
+                }
+                return recount();
+            }
+            // The result can be no larger than the other, array, container
+            ArrayContainer arr = (ArrayContainer) other;
+            char[] content = new char[Math.max(4, arr.cardinality)];
+            int card = 0;
+            for (int i = 0; i < arr.cardinality; i++) {
+                if (contains(arr.content[i])) {
+                    content[card++] = arr.content[i];
+                }
+            }
+            return new ArrayContainer(content, card);
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                long[] o = ((BitmapContainer) other).words;
+                for (int i = 0; i < words.length; i++) {
+                    words[i] |= o[i];
+                }
+                return recount();
+            }
+            return super.or(other);
+        }
+
+        @Override
+        Container andNot(Container other) {
+            if (other instanceof BitmapContainer) {
+                long[] o = ((BitmapContainer) other).words;
+                for (int i = 0; i < words.length; i++) {
+                    words[i] &= ~o[i];
+                }
+                return recount();
+            }
+            return super.andNot(other);
+        }
+
+        @Override
+        Container xor(Container other) {
+            if (other instanceof BitmapContainer) {
+                long[] o = ((BitmapContainer) other).words;
+                for (int i = 0; i < words.length; i++) {
+                    words[i] ^= o[i];
+                }
+                return recount();
+            }
+            return super.xor(other);
+        }
+
+        @Override
+        int andCardinality(Container other) {
+            if (other instanceof BitmapContainer) {
+                long[] o = ((BitmapContainer) other).words;
+                int result = 0;
+                for (int i = 0; i < words.length; i++) {
+                    result += Long.bitCount(words[i] & o[i]);
+                }
+                return result;
+            }
+            return super.andCardinality(other);
+        }
+
+        @Override
+        Visitor.Result forEach(int base, IntVisitor visitor) {
+            Visitor.Result result = Visitor.Result.NO_VISITS;
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    result = visitor.visit(base | (i * 64) + Long.numberOfTrailingZeros(word));
+                    if (result.isDone()) {
+                        return result;
+                    }
+                    word &= word - 1;
+                }
+            }
+            return result;
+        }
+
+        private Container recount() {
+            int card = 0;
+            for (int i = 0; i < words.length; i++) {
+                card += Long.bitCount(words[i]);
+            }
+            cardinality = card;
+            return cardinality < MIN_CARDINALITY ? toArray() : this;
+        }
+
+        private ArrayContainer toArray() {
+            char[] content = new char[cardinality];
+            int ix = 0;
+            for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+                content[ix++] = (char) i;
+            }
+            return new ArrayContainer(content, cardinality);
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+
+        @Override
+        int sizeInBytes() {
+            return words.length * 8 + 4;
+        }
+    }
+}
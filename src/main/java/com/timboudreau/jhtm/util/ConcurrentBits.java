@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.util;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size bitmap which can be written by many threads at once without
+ * locking.  Each 64-bit word is updated with compare-and-swap, so threads
+ * setting bits in different words never contend, and threads setting bits
+ * in the same word simply retry.
+ * <p/>
+ * Single-bit operations are atomic;  bulk operations (clear(), and(), or()
+ * and friends) are atomic per word, not as a whole, and cardinality() is
+ * computed on demand rather than tracked, so it is only exact once writers
+ * are done.  The intended pattern is for several compute threads to publish
+ * activity into one set, and read it after they have been joined.
+ *
+ * @author Tim Boudreau
+ */
+final class ConcurrentBits extends Bits {
+
+    // A counter bumped by every writer would be the very contention this
+    // class exists to avoid, so modifications() reports a new value on every
+    // call instead
+    private static final AtomicLong UNTRACKED = new AtomicLong();
+    private final int size;
+    private final AtomicLongArray words;
+
+    ConcurrentBits(int size) {
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    private ConcurrentBits(ConcurrentBits other) {
+        this.size = other.size;
+        this.words = new AtomicLongArray(other.words.length());
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, other.words.get(i));
+        }
+    }
+
+    private int wordIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(i + " out of range 0-" + size);
+        }
+        return i >>> 6;
+    }
+
+    /**
+     * Set a bit, returning whether this call was the one which changed it.
+     *
+     * @param i The bit
+     * @return true if the bit was previously clear
+     */
+    public boolean testAndSet(int i) {
+        int wordIndex = wordIndex(i);
+        long mask = 1L << i;
+        long old;
+        do {
+            old = words.get(wordIndex);
+            if ((old & mask) != 0) {
+                return false;
+            }
+        } while (!words.compareAndSet(wordIndex, old, old | mask));
+        return true;
+    }
+
+    /**
+     * Clear a bit, returning whether this call was the one which changed it.
+     *
+     * @param i The bit
+     * @return true if the bit was previously set
+     */
+    public boolean testAndClear(int i) {
+        int wordIndex = wordIndex(i);
+        long mask = 1L << i;
+        long old;
+        do {
+            old = words.get(wordIndex);
+            if ((old & mask) == 0) {
+                return false;
+            }
+        } while (!words.compareAndSet(wordIndex, old, old & ~mask));
+        return true;
+    }
+
+    @Override
+    public Bits set(int i) {
+        testAndSet(i);
+        return this;
+    }
+
+    @Override
+    public Bits clear(int i) {
+        testAndClear(i);
+        return this;
+    }
+
+    @Override
+    public Bits flip(int i) {
+        int wordIndex = wordIndex(i);
+        long mask = 1L << i;
+        long old;
+        do {
+            old = words.get(wordIndex);
+        } while (!words.compareAndSet(wordIndex, old, old ^ mask));
+        return this;
+    }
+
+    @Override
+    public long modifications() {
+        return UNTRACKED.incrementAndGet();
+    }
+
+    @Override
+    public boolean get(int i) {
+        if (i < 0 || i >= size) {
+            return false;
+        }
+        return (words.get(i >>> 6) & (1L << i)) != 0;
+    }
+
+    @Override
+    public Bits clear() {
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, 0);
+        }
+        return this;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (int i = 0; i < words.length(); i++) {
+            if (words.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int cardinality() {
+        int result = 0;
+        for (int i = 0; i < words.length(); i++) {
+            result += Long.bitCount(words.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public int nextSetBit(int from) {
+        if (from >= size) {
+            return -1;
+        }
+        from = Math.max(0, from);
+        int wordIndex = from >>> 6;
+        long word = words.get(wordIndex) & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return (wordIndex * 64) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == words.length()) {
+                return -1;
+            }
+            word = words.get(wordIndex);
+        }
+    }
+
+    @Override
+    public Visitor.Result forEach(IntVisitor visitor) {
+        Visitor.Result result = Visitor.Result.NO_VISITS;
+        for (int i = 0; i < words.length(); i++) {
+            long word = words.get(i);
+            while (word != 0) {
+                result = visitor.visit((i * 64) + Long.numberOfTrailingZeros(word));
+                if (result.isDone()) {
+                    return result;
+                }
+                word &= word - 1;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Bits and(Bits other) {
+        if (!(other instanceof ConcurrentBits)) {
+            return super.and(other);
+        }
+        AtomicLongArray otherWords = ((ConcurrentBits) other).words;
+        int max = Math.min(words.length(), otherWords.length());
+        for (int i = 0; i < max; i++) {
+            long mask = otherWords.get(i);
+            long old;
+            do {
+                old = words.get(i);
+            } while (!words.compareAndSet(i, old, old & mask));
+        }
+        for (int i = max; i < words.length(); i++) {
+            words.set(i, 0);
+        }
+        return this;
+    }
+
+    @Override
+    public Bits or(Bits other) {
+        if (!(other instanceof ConcurrentBits)) {
+            return super.or(other);
+        }
+        AtomicLongArray otherWords = ((ConcurrentBits) other).words;
+        int max = Math.min(words.length(), otherWords.length());
+        for (int i = 0; i < max; i++) {
+            long mask = otherWords.get(i);
+            long old;
+            do {
+                old = words.get(i);
+            } while (!words.compareAndSet(i, old, old | mask));
+        }
+        return this;
+    }
+
+    @Override
+    public Bits andNot(Bits other) {
+        if (!(other instanceof ConcurrentBits)) {
+            return super.andNot(other);
+        }
+        AtomicLongArray otherWords = ((ConcurrentBits) other).words;
+        int max = Math.min(words.length(), otherWords.length());
+        for (int i = 0; i < max; i++) {
+            long mask = ~otherWords.get(i);
+            long old;
+            do {
+                old = words.get(i);
+            } while (!words.compareAndSet(i, old, old & mask));
+        }
+        return this;
+    }
+
+    @Override
+    public Bits xor(Bits other) {
+        if (!(other instanceof ConcurrentBits)) {
+            return super.xor(other);
+        }
+        AtomicLongArray otherWords = ((ConcurrentBits) other).words;
+        int max = Math.min(words.length(), otherWords.length());
+        for (int i = 0; i < max; i++) {
+            long mask = otherWords.get(i);
+            long old;
+            do {
+                old = words.get(i);
+            } while (!words.compareAndSet(i, old, old ^ mask));
+        }
+        return this;
+    }
+
+    @Override
+    public int intersectionCardinality(Bits other) {
+        if (!(other instanceof ConcurrentBits)) {
+            return super.intersectionCardinality(other);
+        }
+        AtomicLongArray otherWords = ((ConcurrentBits) other).words;
+        int max = Math.min(words.length(), otherWords.length());
+        int result = 0;
+        for (int i = 0; i < max; i++) {
+            result += Long.bitCount(words.get(i) & otherWords.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    Bits toIntSetBits() {
+        IntSetBits result = new IntSetBits(size);
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            result.set(i);
+        }
+        return result;
+    }
+
+    @Override
+    Bits toBitSetBits() {
+        long[] snapshot = new long[words.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = words.get(i);
+        }
+        return new BitSetBits(BitSet.valueOf(snapshot), size);
+    }
+
+    @Override
+    Bits copy() {
+        return new ConcurrentBits(this);
+    }
+
+    @Override
+    int sizeInBytes() {
+        return words.length() * 8;
+    }
+}
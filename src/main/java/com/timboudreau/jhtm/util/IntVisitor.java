@@ -0,0 +1,34 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.util;
+
+/**
+ * Primitive counterpart to Visitor, for iterating indices - set bits, cells,
+ * columns - without boxing or creating flyweight objects.
+ *
+ * @author Tim Boudreau
+ */
+public interface IntVisitor {
+
+    /**
+     * Visit one value.
+     *
+     * @param value The value
+     * @return Result.DONE to stop iterating
+     */
+    Visitor.Result visit(int value);
+}
@@ -0,0 +1,305 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.util;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A fixed-size bitmap whose words live in pages allocated outside the Java
+ * heap.  Copies are copy-on-write:  a copy shares its pages with the
+ * original, and whichever set next modifies a shared page copies that page
+ * first, so copying costs only the page table.  A page with no bits set need
+ * not be allocated at all.  Pages are allocated from an OffHeapMemory;  those
+ * no copy references any more are freed when they are garbage collected, or
+ * when the memory is closed, after which using any copy throws an
+ * IllegalStateException.  Serializes to (and deserializes as) an on-heap
+ * bitmap's words.  Not thread-safe.
+ *
+ * @author Tim Boudreau
+ */
+final class OffHeapBits extends Bits {
+
+    // 32Kb pages, each holding 256K bits
+    static final int PAGE_SHIFT = 12;
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+    private final int size;
+    private transient int wordCount;
+    private final transient OffHeapMemory memory;
+    // A null page has no bits set
+    private transient LongBuffer[] pages;
+    // Whether this instance may write to each page without copying it first;
+    // an owned page is referenced by nothing else
+    private transient boolean[] owns;
+    private int cardinality;
+
+    OffHeapBits(int size, OffHeapMemory memory) {
+        this.size = size;
+        this.memory = memory;
+        this.wordCount = (size + 63) >>> 6;
+        int pageCount = (wordCount + PAGE_MASK) >>> PAGE_SHIFT;
+        pages = new LongBuffer[pageCount];
+        owns = new boolean[pageCount];
+    }
+
+    private OffHeapBits(OffHeapBits other) {
+        size = other.size;
+        memory = other.memory;
+        wordCount = other.wordCount;
+        pages = other.pages.clone();
+        owns = new boolean[pages.length];
+        cardinality = other.cardinality;
+        // Neither side may now write to the pages in place
+        Arrays.fill(other.owns, false);
+    }
+
+    private void checkOpen() {
+        if (memory != null) {
+            memory.checkOpen();
+        }
+    }
+
+    private int pageLength(int page) {
+        return Math.min(1 << PAGE_SHIFT, wordCount - (page << PAGE_SHIFT));
+    }
+
+    private LongBuffer newPage(int page) {
+        // A deserialized instance has no memory to allocate from
+        return memory == null ? LongBuffer.allocate(pageLength(page))
+                : memory.allocateLongs(pageLength(page));
+    }
+
+    /**
+     * Get a page this instance may write to, allocating it if no bits are
+     * set in it or copying it if it is shared.
+     */
+    private LongBuffer writable(int page) {
+        LongBuffer result = pages[page];
+        if (result == null) {
+            result = pages[page] = newPage(page);
+            owns[page] = true;
+        } else if (!owns[page]) {
+            LongBuffer copy = newPage(page);
+            LongBuffer src = result.duplicate();
+            src.clear();
+            copy.put(src);
+            copy.clear();
+            result = pages[page] = copy;
+            owns[page] = true;
+        }
+        return result;
+    }
+
+    private int wordIndex(int i) {
+        checkOpen();
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(i + " out of range 0-" + size);
+        }
+        return i >>> 6;
+    }
+
+    private long word(int wordIndex) {
+        LongBuffer page = pages[wordIndex >>> PAGE_SHIFT];
+        return page == null ? 0L : page.get(wordIndex & PAGE_MASK);
+    }
+
+    @Override
+    public Bits set(int i) {
+        modified();
+        int wordIndex = wordIndex(i);
+        long old = word(wordIndex);
+        long nue = old | (1L << i);
+        if (nue != old) {
+            writable(wordIndex >>> PAGE_SHIFT).put(wordIndex & PAGE_MASK, nue);
+            cardinality++;
+        }
+        return this;
+    }
+
+    @Override
+    public Bits clear(int i) {
+        modified();
+        int wordIndex = wordIndex(i);
+        long old = word(wordIndex);
+        long nue = old & ~(1L << i);
+        if (nue != old) {
+            writable(wordIndex >>> PAGE_SHIFT).put(wordIndex & PAGE_MASK, nue);
+            cardinality--;
+        }
+        return this;
+    }
+
+    @Override
+    public Bits flip(int i) {
+        modified();
+        return get(i) ? clear(i) : set(i);
+    }
+
+    @Override
+    public boolean get(int i) {
+        return (word(wordIndex(i)) & (1L << i)) != 0;
+    }
+
+    @Override
+    public Bits clear() {
+        modified();
+        checkOpen();
+        for (int page = 0; page < pages.length; page++) {
+            if (owns[page]) {
+                // Keep the memory, since the bits are usually set again
+                LongBuffer buf = pages[page];
+                for (int i = 0; i < buf.capacity(); i++) {
+                    buf.put(i, 0L);
+                }
+            } else {
+                pages[page] = null;
+            }
+        }
+        cardinality = 0;
+        return this;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    public int nextSetBit(int from) {
+        checkOpen();
+        if (from >= size) {
+            return -1;
+        }
+        from = Math.max(0, from);
+        int wordIndex = from >>> 6;
+        long word = word(wordIndex) & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return (wordIndex * 64) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == wordCount) {
+                return -1;
+            }
+            if (pages[wordIndex >>> PAGE_SHIFT] == null) {
+                // Skip the rest of an empty page
+                wordIndex = ((wordIndex >>> PAGE_SHIFT) + 1) << PAGE_SHIFT;
+                if (wordIndex >= wordCount) {
+                    return -1;
+                }
+            }
+            word = word(wordIndex);
+        }
+    }
+
+    @Override
+    public Visitor.Result forEach(IntVisitor visitor) {
+        checkOpen();
+        Visitor.Result result = Visitor.Result.NO_VISITS;
+        if (cardinality == 0) {
+            return result;
+        }
+        for (int page = 0; page < pages.length; page++) {
+            LongBuffer buf = pages[page];
+            if (buf == null) {
+                continue;
+            }
+            int base = page << (PAGE_SHIFT + 6);
+            for (int i = 0; i < buf.capacity(); i++) {
+                long word = buf.get(i);
+                while (word != 0) {
+                    result = visitor.visit(base + (i * 64) + Long.numberOfTrailingZeros(word));
+                    if (result.isDone()) {
+                        return result;
+                    }
+                    word &= word - 1;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    Bits toIntSetBits() {
+        IntSetBits result = new IntSetBits(size);
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            result.set(i);
+        }
+        return result;
+    }
+
+    @Override
+    Bits toBitSetBits() {
+        return new BitSetBits(BitSet.valueOf(toArray()), size);
+    }
+
+    private long[] toArray() {
+        checkOpen();
+        long[] result = new long[wordCount];
+        for (int page = 0; page < pages.length; page++) {
+            if (pages[page] != null) {
+                LongBuffer src = pages[page].duplicate();
+                src.clear();
+                src.get(result, page << PAGE_SHIFT, pageLength(page));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    Bits copy() {
+        return new OffHeapBits(this);
+    }
+
+    @Override
+    int sizeInBytes() {
+        // On-heap bytes;  see OffHeapMemory for the rest
+        return 24 + (pages.length * 5);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(toArray());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        wordCount = (size + 63) >>> 6;
+        long[] words = (long[]) in.readObject();
+        int pageCount = (wordCount + PAGE_MASK) >>> PAGE_SHIFT;
+        pages = new LongBuffer[pageCount];
+        owns = new boolean[pageCount];
+        for (int page = 0; page < pageCount; page++) {
+            pages[page] = LongBuffer.wrap(Arrays.copyOfRange(words, page << PAGE_SHIFT,
+                    (page << PAGE_SHIFT) + pageLength(page)));
+            owns[page] = true;
+        }
+    }
+}
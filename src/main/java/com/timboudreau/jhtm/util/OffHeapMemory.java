@@ -0,0 +1,274 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.util;
+
+import java.io.Closeable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Allocates buffers outside the Java heap, so that very large layers do not
+ * burden the garbage collector, and keeps count of how much memory is in use.
+ * <p/>
+ * Memory is returned in three ways:  explicitly, with release(), by code which
+ * knows it holds the only reference to a buffer;  automatically, some time
+ * after a buffer becomes unreachable;  and all at once when this object is
+ * closed.  Closing frees every buffer this object has handed out, so nothing
+ * allocated from it - including snapshots of a layer which uses it - may be
+ * used afterwards;  the classes which use it check on each access, and throw
+ * an IllegalStateException once it is closed.  Closing while another thread
+ * is still using such an object is not safe.
+ * <p/>
+ * Direct buffers count against the VM's limit on direct memory, so large
+ * models need -XX:MaxDirectMemorySize set accordingly.
+ *
+ * @author Tim Boudreau
+ */
+public final class OffHeapMemory implements Closeable {
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    // Keyed on the identity hash code of the buffer handed out, since
+    // buffers' own equals() and hashCode() compare contents
+    private final Map<Integer, List<Allocation>> allocations = new HashMap<>();
+    private final ReferenceQueue<Buffer> unreachable = new ReferenceQueue<>();
+    private long bytesInUse;
+    private int count;
+    // Volatile so that users of the buffers can check it cheaply on every
+    // access, without taking the lock
+    private volatile boolean closed;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception | LinkageError ex) {
+            // Older VM - use the buffer's cleaner() method, if accessible
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * Allocate a zero-filled buffer of floats.
+     *
+     * @param count The number of floats
+     * @return A direct buffer
+     * @throws IllegalStateException if closed
+     */
+    public FloatBuffer allocateFloats(int count) {
+        ByteBuffer buffer = allocate(count * 4L);
+        return register(buffer.asFloatBuffer(), buffer);
+    }
+
+    /**
+     * Allocate a zero-filled buffer of longs.
+     *
+     * @param count The number of longs
+     * @return A direct buffer
+     * @throws IllegalStateException if closed
+     */
+    public LongBuffer allocateLongs(int count) {
+        ByteBuffer buffer = allocate(count * 8L);
+        return register(buffer.asLongBuffer(), buffer);
+    }
+
+    private synchronized ByteBuffer allocate(long bytes) {
+        if (closed) {
+            throw new IllegalStateException("Closed");
+        }
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too large: " + bytes);
+        }
+        reclaim();
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    }
+
+    private synchronized <T extends Buffer> T register(T view, ByteBuffer buffer) {
+        Allocation allocation = new Allocation(view, buffer, unreachable);
+        Integer key = System.identityHashCode(view);
+        List<Allocation> list = allocations.get(key);
+        if (list == null) {
+            allocations.put(key, list = new ArrayList<>(1));
+        }
+        list.add(allocation);
+        bytesInUse += buffer.capacity();
+        count++;
+        return view;
+    }
+
+    /**
+     * Free a buffer immediately.  The caller must be sure nothing else will
+     * use it.  Buffers not allocated by this object are ignored.
+     *
+     * @param buffer A buffer returned by one of the allocate methods
+     */
+    public synchronized void release(Buffer buffer) {
+        Integer key = System.identityHashCode(buffer);
+        List<Allocation> list = allocations.get(key);
+        if (list != null) {
+            for (int i = 0; i < list.size(); i++) {
+                Allocation allocation = list.get(i);
+                if (allocation.get() == buffer) {
+                    allocation.clear();
+                    remove(key, list, i);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void remove(Integer key, List<Allocation> list, int index) {
+        Allocation allocation = list.remove(index);
+        if (list.isEmpty()) {
+            allocations.remove(key);
+        }
+        bytesInUse -= allocation.buffer.capacity();
+        count--;
+        free(allocation.buffer);
+    }
+
+    /**
+     * Free buffers which have been garbage collected.
+     */
+    private void reclaim() {
+        Allocation allocation;
+        while ((allocation = (Allocation) unreachable.poll()) != null) {
+            List<Allocation> list = allocations.get(allocation.key);
+            int index = list == null ? -1 : list.indexOf(allocation);
+            if (index >= 0) {
+                remove(allocation.key, list, index);
+            }
+        }
+    }
+
+    /**
+     * Get the number of bytes of off-heap memory currently allocated through
+     * this object.
+     *
+     * @return A number of bytes
+     */
+    public synchronized long bytesInUse() {
+        reclaim();
+        return bytesInUse;
+    }
+
+    /**
+     * Get the number of buffers currently allocated through this object.
+     *
+     * @return The count
+     */
+    public synchronized int allocationCount() {
+        reclaim();
+        return count;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Throw if this object has been closed, so that code holding a buffer
+     * allocated from it fails with an exception rather than reading or
+     * writing freed memory.
+     *
+     * @throws IllegalStateException if closed
+     */
+    public void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Off-heap memory has been closed");
+        }
+    }
+
+    /**
+     * Free every buffer allocated through this object.  Nothing allocated
+     * from it may be used after this is called.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            for (List<Allocation> list : allocations.values()) {
+                for (Allocation allocation : list) {
+                    allocation.clear();
+                    free(allocation.buffer);
+                }
+            }
+            allocations.clear();
+            bytesInUse = 0;
+            count = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapMemory(" + bytesInUse() + " bytes in " + allocationCount()
+                + " buffers" + (isClosed() ? ", closed)" : ")");
+    }
+
+    private static void free(ByteBuffer buffer) {
+        // Best effort - if neither works, the buffer is freed when it is
+        // garbage collected
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception | LinkageError ex) {
+            // do nothing
+        }
+    }
+
+    /**
+     * Weakly references the buffer handed out, and strongly references the
+     * direct buffer it is a view of, so the memory can be freed explicitly
+     * once the view is unreachable.
+     */
+    private static final class Allocation extends WeakReference<Buffer> {
+
+        final ByteBuffer buffer;
+        final Integer key;
+
+        Allocation(Buffer view, ByteBuffer buffer, ReferenceQueue<Buffer> queue) {
+            super(view, queue);
+            this.buffer = buffer;
+            this.key = System.identityHashCode(view);
+        }
+    }
+}
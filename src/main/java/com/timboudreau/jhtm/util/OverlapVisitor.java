@@ -0,0 +1,35 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.util;
+
+/**
+ * Primitive visitor for per-column overlap scores, which receives the column
+ * index and its overlap as raw ints.
+ *
+ * @author Tim Boudreau
+ */
+public interface OverlapVisitor {
+
+    /**
+     * Visit one column's overlap.
+     *
+     * @param column The column index
+     * @param overlap The number of connected synapses onto active inputs
+     * @return Result.DONE to stop iterating
+     */
+    Visitor.Result visit(int column, int overlap);
+}
@@ -0,0 +1,41 @@
+/* 
+ * Copyright (C) 2014 Tim Boudreau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.timboudreau.jhtm.util;
+
+/**
+ * Primitive counterpart to a Visitor of PotentialSynapses, for iterating
+ * synapses as raw indices and permanence values without creating synapse
+ * objects.
+ *
+ * @author Tim Boudreau
+ */
+public interface SynapseVisitor {
+
+    /**
+     * Visit one synapse.
+     *
+     * @param segment The index of the segment the synapse belongs to - for
+     * distal segments, cell * dendritesPerCell + dendrite;  for proximal
+     * segments, the column
+     * @param presynaptic The index of the cell or input bit the synapse
+     * connects to
+     * @param permanence The synapse's permanence, including any temporary
+     * adjustment
+     * @return Result.DONE to stop iterating
+     */
+    Visitor.Result visit(int segment, int presynaptic, float permanence);
+}
@@ -0,0 +1,98 @@
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.Permanence;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tim
+ */
+public class DistalPermanenceStoreTest {
+
+    private static final int CELLS = 2048;
+    private static final int CELLS_PER_COLUMN = 4;
+    private static final int DENDRITES = 8;
+    private static final int PATH_LENGTH = 8;
+
+    @Test
+    public void testPermanences() {
+        DistalPermanenceStore store = new DistalPermanenceStore(16, 4, 2, 3);
+        long slot = store.slot(5, 1, 2, 3);
+        assertSame(Permanence.ZERO, store.get(slot));
+        store.add(slot, 0.5, false);
+        store.add(slot, 0.25, true);
+        assertEquals(0.75D, store.get(slot).get(), 0.0001D);
+        assertEquals(0.5D, store.get(slot).cullTemporaryValues().get(), 0.0001D);
+        assertTrue(store.hasPermanence(5, 1, 2));
+        assertFalse(store.hasPermanence(5, 1, 1));
+
+        DistalPermanenceStore copy = store.copy();
+        assertEquals(store, copy);
+        assertEquals(store.hashCode(), copy.hashCode());
+        copy.set(slot, store.get(slot).cullTemporaryValues());
+        assertEquals(0.5D, copy.value(slot), 0.0001D);
+        assertEquals(0.75D, store.value(slot), 0.0001D);
+        assertNotEquals(store, copy);
+
+        for (int cell = 0; cell < 16; cell++) {
+            for (int d = 0; d < 2; d++) {
+                for (int step = 0; step < 3; step++) {
+                    for (int cic = 0; cic < 4; cic++) {
+                        long s = store.slot(cell, d, step, cic);
+                        assertTrue(s >= 0 && s < store.size());
+                    }
+                }
+            }
+        }
+        assertEquals(store.size() - 1, store.slot(15, 1, 2, 3));
+    }
+
+    @Test
+    public void testMemoryPerSynapse() {
+        int synapses = CELLS * DENDRITES * PATH_LENGTH * CELLS_PER_COLUMN;
+
+        long before = usedMemory();
+        DistalPermanenceStore store = new DistalPermanenceStore(CELLS, CELLS_PER_COLUMN, DENDRITES, PATH_LENGTH);
+        for (int i = 0; i < store.size(); i++) {
+            store.add(i, 0.1D * (i % CELLS_PER_COLUMN), false);
+        }
+        long storeBytes = usedMemory() - before;
+
+        before = usedMemory();
+        Map<Object, Map<Integer, Map<Integer, Permanence>>> maps = new IdentityHashMap<>();
+        for (int cell = 0; cell < CELLS; cell++) {
+            for (int d = 0; d < DENDRITES; d++) {
+                Map<Integer, Map<Integer, Permanence>> forPath = new HashMap<>();
+                maps.put(new Object(), forPath);
+                for (int step = 0; step < PATH_LENGTH; step++) {
+                    Map<Integer, Permanence> forStep = new HashMap<>();
+                    forPath.put(step, forStep);
+                    for (int cic = 0; cic < CELLS_PER_COLUMN; cic++) {
+                        forStep.put(cic, Permanence.create(0.1D * cic));
+                    }
+                }
+            }
+        }
+        long mapBytes = usedMemory() - before;
+        // keep both reachable until both have been measured
+        assertEquals(synapses, store.size());
+        assertEquals(CELLS * DENDRITES, maps.size());
+
+        System.out.println("Nested maps: " + ((double) mapBytes / synapses) + " bytes per synapse");
+        System.out.println("Flat store:  " + ((double) storeBytes / synapses) + " bytes per synapse ("
+                + store.sizeInBytes() + " bytes of arrays)");
+        assertTrue("Flat store used " + storeBytes + " bytes, maps " + mapBytes, storeBytes < mapBytes);
+    }
+
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
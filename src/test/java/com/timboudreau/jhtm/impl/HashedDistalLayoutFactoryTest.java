@@ -0,0 +1,113 @@
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.system.Thresholds;
+import com.timboudreau.jhtm.topology.Coordinate2D;
+import com.timboudreau.jhtm.topology.Topology2D;
+import com.timboudreau.jhtm.util.Bits;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class HashedDistalLayoutFactoryTest {
+
+    @Test
+    public void testGeneratedPathsMatchStoredOnes() {
+        LayerImpl<Coordinate2D> stored = new LayerImpl<>(4, 3, new Topology2D(20),
+                new ParallelDistalLayoutFactory<Coordinate2D>(99, 6, Parallelism.serial()));
+        LayerImpl<Coordinate2D> generated = new LayerImpl<>(4, 3, new Topology2D(20),
+                new HashedDistalLayoutFactory<Coordinate2D>(99, 6));
+        assertFalse(stored.isProcedural());
+        assertTrue(generated.isProcedural());
+        assertNull(generated.paths);
+        for (int cell = 0; cell < stored.cellCount(); cell += 37) {
+            for (int d = 0; d < 3; d++) {
+                assertEquals(stored.paths[cell][d], generated.path(cell, d));
+            }
+        }
+        List<Integer> expected = LayerImplTest.presynapticCells(stored);
+        assertEquals(expected, LayerImplTest.presynapticCells(generated));
+        generated.compileDistalPaths();
+        assertEquals(expected, LayerImplTest.presynapticCells(generated));
+        assertEquals(expected.size(), generated.distalPaths.size() * 4);
+    }
+
+    @Test
+    public void testParallelCompileMatchesSerial() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            LayerImpl<Coordinate2D> serial = new LayerImpl<>(4, 2, new Topology2D(64),
+                    new HashedDistalLayoutFactory<Coordinate2D>(3, 6));
+            LayerImpl<Coordinate2D> parallel = new LayerImpl<>(4, 2, new Topology2D(64),
+                    new HashedDistalLayoutFactory<Coordinate2D>(3, 6));
+            Parallelism parallelism = Parallelism.forkJoin(pool, 4);
+            assertEquals(4, parallelism.shardCount(parallel.cellCount()));
+            serial.compileDistalPaths();
+            parallel.compileDistalPaths(parallelism);
+            DistalPathTable a = serial.distalPaths;
+            DistalPathTable b = parallel.distalPaths;
+            assertEquals(a.size(), b.size());
+            for (int cell = 0; cell < serial.cellCount(); cell++) {
+                for (int d = 0; d < 2; d++) {
+                    assertEquals(a.start(cell, d), b.start(cell, d));
+                    assertEquals(a.end(cell, d), b.end(cell, d));
+                }
+            }
+            for (int i = 0; i < a.size(); i++) {
+                assertEquals(a.column(i), b.column(i));
+            }
+            assertEquals(LayerImplTest.presynapticCells(serial), LayerImplTest.presynapticCells(parallel));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCache() {
+        LayerImpl<Coordinate2D> uncached = new LayerImpl<>(2, 2, new Topology2D(12),
+                new HashedDistalLayoutFactory<Coordinate2D>(5, 4));
+        LayerImpl<Coordinate2D> cached = new LayerImpl<>(2, 2, new Topology2D(12),
+                new HashedDistalLayoutFactory<Coordinate2D>(5, 4, 100));
+        int[] columns = cached.segmentColumns(17, 1);
+        assertSame(columns, cached.segmentColumns(17, 1));
+        assertNotSame(uncached.segmentColumns(17, 1), uncached.segmentColumns(17, 1));
+        assertArrayEquals(uncached.segmentColumns(17, 1), columns);
+        assertEquals(LayerImplTest.presynapticCells(uncached), LayerImplTest.presynapticCells(cached));
+
+        SegmentColumnCache cache = new SegmentColumnCache(100);
+        assertEquals(128, cache.capacity());
+        cache.put(3, columns);
+        assertSame(columns, cache.get(3));
+        assertNull(cache.get(131));
+        cache.put(131, new int[0]);
+        assertNull(cache.get(3));
+    }
+
+    @Test
+    public void testTemporalMemoryOnGeneratedLayout() {
+        LayerImpl<Coordinate2D> stored = new LayerImpl<>(4, 2, new Topology2D(8),
+                new ParallelDistalLayoutFactory<Coordinate2D>(8, 8, Parallelism.serial()));
+        LayerImpl<Coordinate2D> generated = new LayerImpl<>(4, 2, new Topology2D(8),
+                new HashedDistalLayoutFactory<Coordinate2D>(8, 8));
+        TemporalMemory<Coordinate2D> a = new TemporalMemory<>(stored, new Thresholds());
+        TemporalMemory<Coordinate2D> b = new TemporalMemory<>(generated, new Thresholds());
+        Bits first = Bits.create(64, Bits.Storage.COMPRESSED);
+        Bits second = Bits.create(64, Bits.Storage.COMPRESSED);
+        for (int i = 0; i < 16; i++) {
+            first.set(i);
+            second.set(40 + i / 2);
+        }
+        for (int i = 0; i < 30; i++) {
+            Bits input = i % 2 == 0 ? first : second;
+            a.compute(input, true);
+            b.compute(input, true);
+            assertEquals(a.activeSegmentCount(), b.activeSegmentCount());
+            assertEquals(a.winnerCells(), b.winnerCells());
+        }
+        assertTrue(a.activeSegmentCount() > 0);
+    }
+}
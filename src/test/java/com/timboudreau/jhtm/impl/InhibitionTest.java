@@ -0,0 +1,130 @@
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.topology.EdgeRule;
+import com.timboudreau.jhtm.topology.Neighborhood;
+import com.timboudreau.jhtm.topology.Topology2D;
+import com.timboudreau.jhtm.util.Bits;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class InhibitionTest {
+
+    @Test
+    public void testGlobalMatchesSort() {
+        Random r = new Random(17);
+        for (int round = 0; round < 50; round++) {
+            int columns = 1 + r.nextInt(3000);
+            float[] scores = new float[columns];
+            for (int i = 0; i < columns; i++) {
+                // Few distinct values, so ties are common
+                scores[i] = r.nextInt(5) == 0 ? 0F : r.nextInt(12) * 1.5F;
+            }
+            double density = r.nextDouble() * 0.2;
+            Bits winners = Bits.create(columns, Bits.Storage.COMPRESSED);
+            int count = Inhibition.global(columns, density).inhibit(scores, winners);
+            assertEquals(winners.cardinality(), count);
+            assertEquals(sortedWinners(scores, density), winners);
+        }
+    }
+
+    @Test
+    public void testSelectLargest() {
+        Random r = new Random(2);
+        for (int round = 0; round < 200; round++) {
+            int size = 1 + r.nextInt(500);
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = r.nextInt(round % 2 == 0 ? 10 : 100000);
+            }
+            // Sorted and reversed input are the classic bad cases
+            if (round % 7 == 0) {
+                Arrays.sort(keys);
+            }
+            long[] sorted = keys.clone();
+            Arrays.sort(sorted);
+            int count = r.nextInt(size + 1);
+            Inhibition.selectLargest(keys, size, count);
+            long[] top = Arrays.copyOfRange(keys, size - count, size);
+            Arrays.sort(top);
+            assertArrayEquals(Arrays.copyOfRange(sorted, size - count, size), top);
+        }
+    }
+
+    @Test
+    public void testLocal() {
+        Topology2D topo = new Topology2D(6, 6, EdgeRule.constrain());
+        Neighborhood n = topo.neighborhood(1);
+        float[] scores = new float[36];
+        scores[topo.toIndex(topo.newCoordinate(1, 1))] = 5F;
+        scores[topo.toIndex(topo.newCoordinate(2, 1))] = 5F;
+        scores[topo.toIndex(topo.newCoordinate(4, 4))] = 1F;
+        scores[topo.toIndex(topo.newCoordinate(0, 5))] = 2F;
+        Bits winners = Bits.create(36, Bits.Storage.COMPRESSED);
+        // One winner per neighborhood
+        assertEquals(3, Inhibition.local(n, 0.01).inhibit(scores, winners));
+        // Tie between (1,1) and (2,1) goes to the lower index
+        assertTrue(winners.get(topo.toIndex(topo.newCoordinate(1, 1))));
+        assertFalse(winners.get(topo.toIndex(topo.newCoordinate(2, 1))));
+        assertTrue(winners.get(topo.toIndex(topo.newCoordinate(4, 4))));
+        assertTrue(winners.get(topo.toIndex(topo.newCoordinate(0, 5))));
+        // Two per neighborhood
+        assertEquals(4, Inhibition.local(n, 2D / 9).inhibit(scores, winners));
+    }
+
+    @Test
+    public void testBenchmarkAgainstSort() {
+        int columns = 131072;
+        Random r = new Random(4);
+        float[] scores = new float[columns];
+        for (int i = 0; i < columns; i++) {
+            scores[i] = r.nextInt(40) * (1F + r.nextFloat());
+        }
+        Inhibition global = Inhibition.global(columns, 0.02);
+        Bits winners = Bits.create(columns, Bits.Storage.COMPRESSED);
+        for (int i = 0; i < 20; i++) {
+            global.inhibit(scores, winners);
+            sortedWinners(scores, 0.02);
+        }
+        int rounds = 50;
+        long then = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            global.inhibit(scores, winners);
+        }
+        long selectTime = System.nanoTime() - then;
+        Bits expected = null;
+        then = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            expected = sortedWinners(scores, 0.02);
+        }
+        long sortTime = System.nanoTime() - then;
+        System.out.println("Global inhibition of " + columns + " columns: selection "
+                + (selectTime / rounds / 1000) + "us, sort " + (sortTime / rounds / 1000) + "us");
+        assertEquals(expected, winners);
+    }
+
+    /**
+     * The obvious implementation, as a reference:  sort everything.
+     */
+    private static Bits sortedWinners(float[] scores, double density) {
+        long[] keys = new long[scores.length];
+        int eligible = 0;
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] > 0F) {
+                keys[eligible++] = Inhibition.key(scores[i], i);
+            }
+        }
+        Arrays.sort(keys, 0, eligible);
+        int count = Math.min(eligible, Math.max(1, (int) Math.round(scores.length * density)));
+        Bits result = Bits.create(scores.length, Bits.Storage.COMPRESSED);
+        for (int i = eligible - count; i < eligible; i++) {
+            result.set(Inhibition.column(keys[i]));
+        }
+        return result;
+    }
+}
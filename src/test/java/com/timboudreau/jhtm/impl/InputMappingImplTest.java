@@ -10,7 +10,14 @@ import com.timboudreau.jhtm.ProximalDendriteSegment;
 import com.timboudreau.jhtm.system.Input;
 import com.timboudreau.jhtm.system.Thresholds;
 import com.timboudreau.jhtm.util.Visitor;
+import com.timboudreau.jhtm.util.Bits;
+import com.timboudreau.jhtm.util.OverlapVisitor;
+import com.timboudreau.jhtm.util.SynapseVisitor;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Iterator;
+import java.util.Random;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -77,7 +84,123 @@ public class InputMappingImplTest {
         System.out.println("Visited " + syncount[0] + " synapses in " + dur  + " milliseconds");
     }
 
-    private static class In implements Input<Coordinate2D> {
+    @Test
+    public void testOverlap() {
+        Topology2D topo = new Topology2D(8, 8);
+        LayerImpl<Coordinate2D> layer = new LayerImpl(2, 2, topo, new LayerImpl.RandomDistalLayoutFactory<>(2));
+        In in = new In(81);
+        InputMappingImpl<Coordinate2D, Coordinate2D> mapping = new InputMappingImpl<>(in, new RandomSynapseFactory(new Random(5), 12), layer, new Thresholds());
+        Bits active = mapping.activeInputs();
+        assertEquals(27, active.cardinality());
+        int[] overlaps = mapping.overlaps(active, 0.5D, new int[layer.size()]);
+        for (int i = 0; i < layer.size(); i++) {
+            final int[] expected = new int[1];
+            layer.getColumn(i).getProximalSegment().visitSynapses(new Visitor<PotentialSynapse<?>, Void>() {
+
+                @Override
+                public Visitor.Result visit(PotentialSynapse<?> obj) {
+                    if (obj.getTargetState().isActive() && obj.getPermanence().get() >= 0.5D) {
+                        expected[0]++;
+                    }
+                    return Visitor.Result.NOT_DONE;
+                }
+            }, null);
+            assertEquals("Column " + i, expected[0], overlaps[i]);
+            assertEquals(overlaps[i], mapping.overlap(i, active, 0.5D));
+        }
+        assertEquals(0, mapping.overlap(0, active, 0.75D));
+    }
+
+    @Test
+    public void testPrimitiveVisitors() {
+        LayerImpl<Coordinate2D> layer = new LayerImpl(2, 2, new Topology2D(8, 8), new LayerImpl.RandomDistalLayoutFactory<>(2));
+        final InputMappingImpl<Coordinate2D, Coordinate2D> mapping = new InputMappingImpl<>(new In(81), new RandomSynapseFactory(new Random(5), 12), layer, new Thresholds());
+        final Bits active = mapping.activeInputs();
+        final int[] visited = new int[1];
+        mapping.visitOverlaps(active, 0.5D, new OverlapVisitor() {
+
+            @Override
+            public Visitor.Result visit(int column, int overlap) {
+                assertEquals(visited[0]++, column);
+                assertEquals(mapping.overlap(column, active, 0.5D), overlap);
+                return Visitor.Result.NOT_DONE;
+            }
+        });
+        assertEquals(layer.size(), visited[0]);
+
+        final int[] synapses = new int[layer.size()];
+        final int[] connected = new int[layer.size()];
+        mapping.visitProximalSynapses(new SynapseVisitor() {
+
+            @Override
+            public Visitor.Result visit(int column, int bit, float permanence) {
+                synapses[column]++;
+                assertTrue(bit >= 0 && bit < 81);
+                if (permanence >= 0.5F) {
+                    connected[column]++;
+                }
+                return Visitor.Result.NOT_DONE;
+            }
+        });
+        for (int column = 0; column < layer.size(); column++) {
+            ProximalDendriteSegment seg = layer.getColumn(column).getProximalSegment();
+            assertEquals(mapping.synapses().end(column) - mapping.synapses().start(column), synapses[column]);
+            assertEquals(connected[column], seg.countSynapsesAboveThreshold(0.5D));
+        }
+    }
+
+    @Test
+    public void testSaveAndRestore() throws IOException {
+        LayerImpl<Coordinate2D> layer = new LayerImpl(2, 2, new Topology2D(8, 8), new LayerImpl.RandomDistalLayoutFactory<>(2));
+        InputMappingImpl<Coordinate2D, Coordinate2D> mapping = new InputMappingImpl<>(new In(81), new RandomSynapseFactory(new Random(5), 12), layer, new Thresholds());
+        layer.getColumn(3).getProximalSegment().increaseBoostFactor(1.5);
+        mapping.overlaps(mapping.activeInputs(), 0.5D, new int[layer.size()]);
+        InputMappingSnapshot expected = mapping.snapshot();
+        expected.synapses.values.add(7, 0.125, false);
+        expected.synapses.values.add(9, 0.125, true);
+        mapping.restore(expected);
+
+        Path dir = Files.createTempDirectory("jhtm");
+        Path file = dir.resolve("mapping.snapshot");
+        try {
+            mapping.save(file);
+            InputMappingSnapshot loaded = InputMappingSnapshot.load(file);
+            assertEquals(expected.synapses, loaded.synapses);
+            assertEquals(expected.boostFactorForColumn, loaded.boostFactorForColumn);
+
+            InputMappingImpl<Coordinate2D, Coordinate2D> other = new InputMappingImpl<>(new In(81), new RandomSynapseFactory(new Random(7), 12), layer, new Thresholds());
+            other.restore(file);
+            assertEquals(expected.synapses, other.snapshot().synapses);
+            Bits active = mapping.activeInputs();
+            for (int i = 0; i < layer.size(); i++) {
+                assertEquals(mapping.overlap(i, active, 0.5D), other.overlap(i, active, 0.5D));
+            }
+            LayerImpl<Coordinate2D> smaller = new LayerImpl(2, 2, new Topology2D(8, 4), new LayerImpl.RandomDistalLayoutFactory<>(2));
+            try {
+                new InputMappingImpl<>(new In(81), new RandomSynapseFactory(new Random(7), 12), smaller, new Thresholds()).restore(file);
+                fail("Restored a mapping for 64 columns onto 32");
+            } catch (IOException ex) {
+                // expected
+            }
+            try {
+                new InputMappingImpl<>(new In(16), new RandomSynapseFactory(new Random(7), 12), layer, new Thresholds()).restore(file);
+                fail("Restored a mapping of 81 input bits onto 16");
+            } catch (IOException ex) {
+                // expected
+            }
+            try {
+                LayerSnapshot.load(file);
+                fail("Loaded an input mapping as a layer");
+            } catch (IOException ex) {
+                // expected
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+
+    static class In implements Input<Coordinate2D> {
 
         private final int size;
         private final boolean[] vals;
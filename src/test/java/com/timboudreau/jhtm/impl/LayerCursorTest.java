@@ -0,0 +1,109 @@
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.Cell;
+import com.timboudreau.jhtm.DistalDendriteSegment;
+import com.timboudreau.jhtm.PotentialSynapse;
+import com.timboudreau.jhtm.topology.Coordinate2D;
+import com.timboudreau.jhtm.topology.Topology2D;
+import com.timboudreau.jhtm.util.Visitor;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class LayerCursorTest {
+
+    @Test
+    public void testCursorMatchesObjectTraversal() {
+        LayerImpl<Coordinate2D> layer = new LayerImpl<>(4, 3, new Topology2D(16), new LayerImpl.RandomDistalLayoutFactory<Coordinate2D>(7));
+        List<Integer> expected = LayerImplTest.presynapticCells(layer);
+        LayerCursor<Coordinate2D> cursor = layer.cursor();
+        List<Integer> found = new ArrayList<>(expected.size());
+        for (int column = 0; column < layer.size(); column++) {
+            cursor.moveToColumn(column);
+            int cells = 0;
+            while (cursor.nextCell()) {
+                assertEquals(column * 4 + cells++, cursor.cell());
+                while (cursor.nextSegment()) {
+                    assertEquals(7 * 4, cursor.synapseCount());
+                    while (cursor.nextSynapse()) {
+                        found.add(cursor.presynapticCell() * 16 + cursor.step());
+                    }
+                }
+            }
+            assertEquals(4, cells);
+        }
+        assertEquals(expected, found);
+    }
+
+    @Test
+    public void testPermanencesAreShared() {
+        LayerImpl<Coordinate2D> layer = new LayerImpl<>(2, 2, new Topology2D(6), new LayerImpl.RandomDistalLayoutFactory<Coordinate2D>(4));
+        LayerCursor<Coordinate2D> cursor = layer.cursor();
+        cursor.moveToCell(5).moveToSegment(1).moveToSynapse(3);
+        assertEquals(2, cursor.column());
+        assertEquals(1, cursor.cellInColumn());
+        assertEquals(0.25D, cursor.adjustPermanence(0.25D, false), 0.0001D);
+        assertEquals(0.35D, cursor.adjustPermanence(0.1D, true), 0.0001D);
+        assertEquals(0.25D, cursor.committedPermanence(), 0.0001D);
+
+        final List<Double> values = new ArrayList<>();
+        layer.getCell(5).visitDistalConnections(new Visitor<DistalDendriteSegment, Void>() {
+
+            @Override
+            public Visitor.Result visit(final DistalDendriteSegment seg, Void ignored) {
+                return seg.visitSynapses(new Visitor<PotentialSynapse<? extends Cell<Coordinate2D>>, Void>() {
+
+                    @Override
+                    public Visitor.Result visit(PotentialSynapse<? extends Cell<Coordinate2D>> syn, Void ignored) {
+                        values.add(syn.getPermanenceValue());
+                        return Visitor.Result.NOT_DONE;
+                    }
+                }, null);
+            }
+        }, null);
+        // Second segment, fourth synapse
+        assertEquals(0.35D, values.get(4 * 2 + 3), 0.0001D);
+        assertEquals(0D, values.get(4 * 2 + 2), 0D);
+
+        assertFalse(cursor.isPresynapticActive());
+        layer.activatedCells().set(cursor.presynapticCell());
+        assertTrue(cursor.isPresynapticActive());
+        assertEquals(0, cursor.activeConnectedSynapses(0.5D));
+        assertEquals(1, cursor.activeConnectedSynapses(0.3D));
+    }
+
+    @Test
+    public void testPositioning() {
+        LayerImpl<Coordinate2D> layer = new LayerImpl<>(2, 2, new Topology2D(4), new LayerImpl.RandomDistalLayoutFactory<Coordinate2D>(3));
+        LayerCursor<Coordinate2D> cursor = layer.cursor();
+        assertFalse(cursor.nextCell());
+        assertFalse(cursor.nextSegment());
+        assertFalse(cursor.nextSynapse());
+        cursor.moveToColumn(3);
+        assertFalse(cursor.nextSegment());
+        try {
+            cursor.cell();
+            fail("Not on a cell yet");
+        } catch (IllegalStateException e) {
+            // ok
+        }
+        try {
+            cursor.moveToCell(32);
+            fail("Out of range");
+        } catch (IndexOutOfBoundsException e) {
+            // ok
+        }
+        layer.activatedCells().set(7);
+        assertTrue(cursor.isColumnActive());
+        assertTrue(cursor.nextCell());
+        assertFalse(cursor.isCellActive());
+        assertTrue(cursor.nextCell());
+        assertTrue(cursor.isCellActive());
+        assertFalse(cursor.nextCell());
+    }
+}
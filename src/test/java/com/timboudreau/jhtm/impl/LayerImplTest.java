@@ -8,8 +8,20 @@ import com.timboudreau.jhtm.PotentialSynapse;
 import com.timboudreau.jhtm.impl.CellImpl;
 import com.timboudreau.jhtm.topology.Direction;
 import com.timboudreau.jhtm.topology.Path;
+import com.timboudreau.jhtm.topology.TopologyND;
+import com.timboudreau.jhtm.Column;
+import com.timboudreau.jhtm.util.IntVisitor;
+import com.timboudreau.jhtm.util.OffHeapMemory;
+import com.timboudreau.jhtm.util.SynapseVisitor;
 import com.timboudreau.jhtm.util.Visitor;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -22,6 +34,21 @@ import static org.junit.Assert.*;
  */
 public class LayerImplTest {
 
+    @Test
+    public void testDefaultLayoutIsQuiet() {
+        java.io.PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new java.io.PrintStream(printed));
+        LayerImpl<Coordinate2D> layer;
+        try {
+            layer = new LayerImpl<>(4, 2, new Topology2D(128));
+        } finally {
+            System.setOut(out);
+        }
+        assertEquals("", printed.toString());
+        assertEquals(LayerImpl.RandomDistalLayoutFactory.DEFAULT_DENDRITE_LENGTH, layer.snapshot.permanences.maxPathLength());
+    }
+
     @Test
     public void test() {
         System.out.println("Okay");
@@ -98,4 +125,467 @@ public class LayerImplTest {
         long dur = (System.currentTimeMillis() - start) / 1000;
         System.out.println("Visited " + totalSynapses[0] + " synapses in " + dur + " seconds. Memory: " + Runtime.getRuntime().totalMemory());
     }
+
+    @Test
+    public void testTemporaryValues() {
+        LayerImpl layer = new LayerImpl(2, 2, new Topology2D(4), new LayerImpl.RandomDistalLayoutFactory<>(3));
+        final PotentialSynapse[] synapses = new PotentialSynapse[2];
+        final DistalDendriteSegment[] segment = new DistalDendriteSegment[1];
+        layer.getCell(5).visitDistalConnections(new Visitor<DistalDendriteSegment, Void>() {
+
+            @Override
+            public Visitor.Result visit(DistalDendriteSegment seg) {
+                segment[0] = seg;
+                seg.visitSynapses(new Visitor<PotentialSynapse<? extends Cell>, Void>() {
+                    int ix;
+
+                    @Override
+                    public Visitor.Result visit(PotentialSynapse obj) {
+                        synapses[ix++] = obj;
+                        return ix == synapses.length ? Visitor.Result.DONE : Visitor.Result.NOT_DONE;
+                    }
+                }, null);
+                return Visitor.Result.DONE;
+            }
+        }, null);
+        synapses[0].adjustPermanence(0.5, false);
+        assertEquals(0.75D, synapses[0].adjustPermanenceValue(0.25, true), 0.0001D);
+        assertEquals(0.25D, synapses[1].adjustPermanenceValue(0.25, true), 0.0001D);
+        synapses[0].cullTemporaryValues();
+        assertEquals(0.5D, synapses[0].getPermanenceValue(), 0.0001D);
+        assertEquals(0.25D, synapses[1].getPermanenceValue(), 0.0001D);
+        segment[0].retainTemporaryValues();
+        layer.cullTemporaryValues();
+        assertEquals(0.25D, synapses[1].getPermanenceValue(), 0.0001D);
+        synapses[1].adjustPermanence(0.5, true);
+        layer.cullTemporaryValues();
+        assertEquals(0.25D, synapses[1].getPermanence().get(), 0.0001D);
+        synapses[1].adjustPermanence(0.5, true);
+        layer.retainTemporaryValues();
+        assertEquals(0.75D, synapses[1].getPermanence().cullTemporaryValues().get(), 0.0001D);
+    }
+
+    @Test
+    public void testSnapshotIsCopyOnWrite() {
+        LayerImpl layer = new LayerImpl(4, 4, new Topology2D(64), new LayerImpl.RandomDistalLayoutFactory<>(10));
+        DistalPermanenceStore store = layer.snapshot.permanences;
+        int pages = store.values.pageCount();
+        assertTrue(pages > 100);
+        long slot = store.slot(1000, 1, 0, 0);
+        store.values.add(slot, 0.5, false);
+        layer.activatedCells().set(1000);
+
+        long then = System.nanoTime();
+        LayerSnapshot snapshot = layer.snapshot();
+        long elapsed = System.nanoTime() - then;
+        System.out.println("Snapshot of " + store.size() + " synapses in "
+                + pages + " pages took " + (elapsed / 1000) + "us");
+        assertEquals(0, store.values.ownedPages());
+
+        store.values.add(slot, 0.25, false);
+        layer.activatedCells().set(2000);
+        assertEquals(1, store.values.ownedPages());
+        assertEquals(0, snapshot.permanences.values.ownedPages());
+        assertEquals(0.75D, store.value(slot), 0.0001D);
+        assertEquals(0.5D, snapshot.permanences.value(slot), 0.0001D);
+        assertTrue(snapshot.activatedCells.get(1000));
+        assertFalse(snapshot.activatedCells.get(2000));
+
+        layer.restore(snapshot);
+        assertEquals(0.5D, layer.snapshot.permanences.value(slot), 0.0001D);
+        assertFalse(layer.activatedCells().get(2000));
+        assertEquals(0.75D, store.value(slot), 0.0001D);
+    }
+
+    @Test
+    public void testDeltaSnapshots() throws IOException {
+        LayerImpl layer = new LayerImpl(4, 4, new Topology2D(32), new LayerImpl.RandomDistalLayoutFactory<>(10));
+        DistalPermanenceStore store = layer.snapshot.permanences;
+        long removed = store.slot(10, 0, 0, 0);
+        store.values.add(removed, 0.5, false);
+        layer.activatedCells().set(10);
+        LayerSnapshot older = layer.snapshot();
+        assertTrue(layer.deltaSince(older).isEmpty());
+
+        store = layer.snapshot.permanences;
+        store.values.set(removed, 0D, 0D);
+        for (int i = 0; i < 20; i++) {
+            store.values.add(store.slot(i * 100, 1, 1, 1), 0.25, i % 2 == 0);
+        }
+        layer.activatedCells().clear(10);
+        layer.activatedCells().set(20);
+        layer.predictiveCells().set(30);
+
+        LayerSnapshotDelta delta = layer.deltaSince(older);
+        assertEquals(20, delta.changedPermanences());
+        assertEquals(1, delta.removedSynapses());
+
+        LayerSnapshot current = layer.snapshot();
+        LayerSnapshot applied = delta.applyTo(older);
+        assertEquals(current, applied);
+        assertNotEquals(current, older);
+        assertTrue(older.activatedCells.get(10));
+
+        LayerImpl standby = new LayerImpl(4, 4, new Topology2D(32), new LayerImpl.RandomDistalLayoutFactory<>(10));
+        standby.restore(delta.applyTo(older));
+        assertEquals(current, standby.snapshot());
+
+        int deltaBytes = serializedSize(delta);
+        int fullBytes = serializedSize(current);
+        System.out.println("Delta " + deltaBytes + " bytes, full snapshot " + fullBytes + " bytes");
+        assertTrue(deltaBytes * 100 < fullBytes);
+    }
+
+    @Test
+    public void testSaveAndRestore() throws IOException {
+        LayerImpl layer = new LayerImpl(4, 4, new Topology2D(32), new LayerImpl.RandomDistalLayoutFactory<>(10));
+        DistalPermanenceStore store = layer.snapshot.permanences;
+        for (int i = 0; i < 100; i++) {
+            store.values.add(store.slot(i * 37, i % 4, i % 10, i % 4), 0.01 * i, i % 3 == 0);
+        }
+        layer.activatedCells().set(17);
+        layer.predictiveCells().set(4000);
+        java.nio.file.Path dir = Files.createTempDirectory("jhtm");
+        java.nio.file.Path file = dir.resolve("layer.snapshot");
+        try {
+            layer.save(file);
+            LayerSnapshot expected = layer.snapshot();
+
+            LayerImpl other = new LayerImpl(4, 4, new Topology2D(32), new LayerImpl.RandomDistalLayoutFactory<>(10));
+            long then = System.nanoTime();
+            other.restore(file);
+            System.out.println("Mapped " + Files.size(file) + " byte snapshot in "
+                    + ((System.nanoTime() - then) / 1000) + "us");
+            assertEquals(expected, other.snapshot());
+            assertTrue(other.activatedCells().get(17));
+
+            // Writing copies mapped pages rather than touching the file
+            long slot = store.slot(5, 1, 1, 1);
+            other.snapshot.permanences.values.add(slot, 0.5, false);
+            assertEquals(0.5D, other.snapshot.permanences.value(slot) - store.value(slot), 0.0001D);
+            assertEquals(expected, LayerSnapshot.load(file));
+
+            try {
+                new LayerImpl(4, 3, new Topology2D(32), new LayerImpl.RandomDistalLayoutFactory<>(10)).restore(file);
+                fail("Restored 4 dendrites per cell onto 3");
+            } catch (IOException ex) {
+                // expected
+            }
+            try {
+                new LayerImpl(4, 4, new Topology2D(32), new LayerImpl.RandomDistalLayoutFactory<>(5)).restore(file);
+                fail("Restored paths of up to 10 steps onto paths of up to 5");
+            } catch (IOException ex) {
+                // expected
+            }
+
+            Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13});
+            try {
+                other.restore(file);
+                fail("Garbage should not load");
+            } catch (IOException ex) {
+                // expected
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testOffHeapLayer() throws IOException {
+        OffHeapMemory memory = new OffHeapMemory();
+        LayerImpl layer = new LayerImpl(4, 4, new Topology2D(32), new LayerImpl.RandomDistalLayoutFactory<>(10), memory);
+        assertTrue(layer.offHeapBytes() > 0);
+        DistalPermanenceStore store = layer.snapshot.permanences;
+        for (int i = 0; i < 100; i++) {
+            store.values.add(store.slot(i * 37, i % 4, i % 10, i % 4), 0.01 * i, i % 3 == 0);
+        }
+        layer.activatedCells().set(17);
+        layer.predictiveCells().set(4000);
+        long withPending = layer.offHeapBytes();
+        layer.cullTemporaryValues();
+        assertTrue("Discarded pending pages should be freed", layer.offHeapBytes() < withPending);
+
+        java.nio.file.Path dir = Files.createTempDirectory("jhtm");
+        java.nio.file.Path file = dir.resolve("layer.snapshot");
+        try {
+            layer.save(file);
+            LayerImpl onHeap = new LayerImpl(4, 4, new Topology2D(32), new LayerImpl.RandomDistalLayoutFactory<>(10));
+            onHeap.restore(file);
+            assertEquals(layer.snapshot(), onHeap.snapshot());
+            assertEquals(0L, onHeap.offHeapBytes());
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+
+        LayerSnapshot snap = layer.snapshot();
+        layer.close();
+        assertTrue(memory.isClosed());
+        assertEquals(0L, layer.offHeapBytes());
+        try {
+            memory.allocateFloats(10);
+            fail("Closed memory should not allocate");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        try {
+            snap.permanences.values.get(0);
+            fail("Snapshot permanences should not be readable after close");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        try {
+            snap.activatedCells.get(17);
+            fail("Snapshot cells should not be readable after close");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        try {
+            layer.predictiveCells().nextSetBit(0);
+            fail("Layer cells should not be readable after close");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCompiledDistalPaths() {
+        LayerImpl<Coordinate2D> layer = new LayerImpl<>(4, 8, new Topology2D(24), new LayerImpl.RandomDistalLayoutFactory<Coordinate2D>(10));
+        long then = System.nanoTime();
+        List<Integer> walked = presynapticCells(layer);
+        long walkTime = System.nanoTime() - then;
+        assertFalse(layer.isDistalPathsCompiled());
+
+        layer.compileDistalPaths();
+        assertTrue(layer.isDistalPathsCompiled());
+        then = System.nanoTime();
+        List<Integer> compiled = presynapticCells(layer);
+        long scanTime = System.nanoTime() - then;
+        System.out.println("Visited " + walked.size() + " distal synapses in "
+                + (walkTime / 1000000) + "ms walking, " + (scanTime / 1000000) + "ms compiled");
+        assertEquals(walked, compiled);
+    }
+
+    @Test
+    public void testColumnActivity() {
+        // A million cells
+        LayerImpl<Coordinate2D> layer = new LayerImpl<>(4, 0, new Topology2D(512), new LayerImpl.RandomDistalLayoutFactory<Coordinate2D>(1));
+        assertEquals(1 << 20, layer.cellCount());
+        Random r = new Random(3);
+        Set<Integer> expected = new java.util.TreeSet<>();
+        while (expected.size() < layer.size() / 50) {
+            int column = r.nextInt(layer.size());
+            expected.add(column);
+            layer.activatedCells().set(column * 4 + r.nextInt(4));
+        }
+        int predicted = expected.iterator().next();
+        for (int i = 0; i < 4; i++) {
+            layer.predictiveCells().set(predicted * 4 + i);
+        }
+        assertTrue(layer.getColumn(predicted).isActivated());
+        assertTrue(((ColumnImpl<?>) layer.getColumn(predicted)).isPredictivelyActivated());
+
+        final List<Integer> found = new ArrayList<>(expected.size());
+        IntVisitor collector = new IntVisitor() {
+
+            @Override
+            public Visitor.Result visit(int column) {
+                found.add(column);
+                return Visitor.Result.NOT_DONE;
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            found.clear();
+            layer.toRegion().visitActivatedColumns(collector);
+        }
+        found.clear();
+        long then = System.nanoTime();
+        layer.toRegion().visitActivatedColumns(collector);
+        long elapsed = System.nanoTime() - then;
+        System.out.println("Found " + found.size() + " active columns of "
+                + layer.size() + " in " + (elapsed / 1000) + "us");
+        assertEquals(new ArrayList<>(expected), found);
+        for (int column : new int[]{0, 1, layer.size() - 1}) {
+            assertEquals(expected.contains(column), layer.getColumn(column).isActivated());
+        }
+        // Writing the cells directly is seen without being told about it
+        for (int i = 0; i < 4; i++) {
+            layer.activatedCells().clear(predicted * 4 + i);
+        }
+        assertFalse(layer.getColumn(predicted).isActivated());
+        assertFalse(layer.activeColumns().get(predicted));
+        layer.activatedCells().set(predicted * 4 + 2);
+        assertTrue(layer.getColumn(predicted).isActivated());
+        assertEquals(expected.size(), layer.activeColumns().cardinality());
+    }
+
+    @Test
+    public void testPrimitiveVisitors() {
+        LayerImpl<Coordinate2D> layer = new LayerImpl<>(4, 3, new Topology2D(10), new LayerImpl.RandomDistalLayoutFactory<Coordinate2D>(5));
+        layer.activatedCells().set(9).set(10).set(11).set(57);
+        final List<Integer> cells = new ArrayList<>();
+        layer.visitActivatedCells(new IntVisitor() {
+
+            @Override
+            public Visitor.Result visit(int cell) {
+                cells.add(cell);
+                return Visitor.Result.NOT_DONE;
+            }
+        });
+        assertEquals(java.util.Arrays.asList(9, 10, 11, 57), cells);
+
+        final List<Integer> columns = new ArrayList<>();
+        layer.toRegion().visitActivatedColumns(new IntVisitor() {
+
+            @Override
+            public Visitor.Result visit(int column) {
+                columns.add(column);
+                return Visitor.Result.NOT_DONE;
+            }
+        });
+        final List<Integer> expectedColumns = new ArrayList<>();
+        layer.toRegion().visitActivatedColumns(new Visitor<Column, Void>() {
+
+            @Override
+            public Visitor.Result visit(Column column, Void ignored) {
+                expectedColumns.add(column.index());
+                return Visitor.Result.NOT_DONE;
+            }
+        }, null);
+        assertEquals(java.util.Arrays.asList(2, 14), columns);
+        assertEquals(expectedColumns, columns);
+
+        CellImpl<Coordinate2D> cell = layer.getCell(33);
+        final int[] slot = new int[1];
+        cell.visitDistalConnections(new Visitor<DistalDendriteSegment, Void>() {
+
+            @Override
+            public Visitor.Result visit(DistalDendriteSegment seg, Void ignored) {
+                return seg.visitSynapses(new Visitor<PotentialSynapse<? extends Cell<Coordinate2D>>, Void>() {
+
+                    @Override
+                    public Visitor.Result visit(PotentialSynapse<? extends Cell<Coordinate2D>> syn, Void ignored) {
+                        syn.adjustPermanenceValue(0.001D * slot[0]++, false);
+                        return Visitor.Result.NOT_DONE;
+                    }
+                }, null);
+            }
+        }, null);
+        final List<Integer> uncompiled = new ArrayList<>();
+        final List<Float> permanences = new ArrayList<>();
+        SynapseVisitor collector = new SynapseVisitor() {
+
+            @Override
+            public Visitor.Result visit(int segment, int presynaptic, float permanence) {
+                uncompiled.add(segment * 1000 + presynaptic);
+                permanences.add(permanence);
+                return Visitor.Result.NOT_DONE;
+            }
+        };
+        layer.visitDistalSynapses(33, collector);
+        assertEquals(3 * 5 * 4, uncompiled.size());
+        for (int i = 0; i < permanences.size(); i++) {
+            assertEquals(0.001D * i, permanences.get(i), 0.00001D);
+        }
+        List<Integer> walked = new ArrayList<>(uncompiled);
+        uncompiled.clear();
+        permanences.clear();
+        layer.compileDistalPaths();
+        layer.visitDistalSynapses(33, collector);
+        assertEquals(walked, uncompiled);
+        assertEquals(99, uncompiled.get(0) / 1000);
+        final List<Integer> counts = new ArrayList<>();
+        cell.visitDistalConnections(new Visitor<DistalDendriteSegment, Void>() {
+
+            @Override
+            public Visitor.Result visit(DistalDendriteSegment seg, Void ignored) {
+                counts.add(seg.countSynapsesAboveThreshold(0.0055D));
+                return Visitor.Result.NOT_DONE;
+            }
+        }, null);
+        // Synapses 6 onwards of the first segment, and all of the others
+        assertEquals(java.util.Arrays.asList(14, 20, 20), counts);
+    }
+
+    @Test
+    public void testPresynapticIndex() {
+        LayerImpl<Coordinate2D> layer = new LayerImpl<>(4, 3, new Topology2D(12), new LayerImpl.RandomDistalLayoutFactory<Coordinate2D>(7));
+        PresynapticIndex index = layer.presynapticIndex();
+        assertTrue(layer.isDistalPathsCompiled());
+        DistalPathTable table = layer.distalPaths;
+        assertEquals(table.size(), index.size());
+        int seen = 0;
+        for (int column = 0; column < layer.size(); column++) {
+            int lastSegment = -1;
+            for (int entry = index.start(column); entry < index.end(column); entry++) {
+                int segment = index.segment(entry);
+                assertTrue(segment >= lastSegment);
+                lastSegment = segment;
+                int tableEntry = table.start(segment / 3, segment % 3) + index.step(entry);
+                assertTrue(tableEntry < table.end(segment / 3, segment % 3));
+                assertEquals(column, table.column(tableEntry));
+                seen++;
+            }
+        }
+        assertEquals(table.size(), seen);
+    }
+
+    @Test
+    public void testThreeDimensionalLayer() {
+        TopologyND topo = new TopologyND(8, 8, 3);
+        LayerImpl<Integer> layer = new LayerImpl<>(4, 4, topo, new LayerImpl.RandomDistalLayoutFactory<Integer>(6));
+        assertEquals(192 * 4, layer.cellCount());
+        final int[] synapses = new int[1];
+        final Visitor<PotentialSynapse<? extends Cell<Integer>>, Void> counter = new Visitor<PotentialSynapse<? extends Cell<Integer>>, Void>() {
+
+            @Override
+            public Visitor.Result visit(PotentialSynapse<? extends Cell<Integer>> syn, Void ignored) {
+                synapses[0]++;
+                return Visitor.Result.NOT_DONE;
+            }
+        };
+        for (int i = 0; i < layer.cellCount(); i++) {
+            layer.getCell(i).visitDistalConnections(new Visitor<DistalDendriteSegment, Void>() {
+
+                @Override
+                public Visitor.Result visit(DistalDendriteSegment seg, Void ignored) {
+                    return seg.visitSynapses(counter, null);
+                }
+            }, null);
+        }
+        assertEquals(layer.cellCount() * 4 * 6 * 4, synapses[0]);
+    }
+
+    static List<Integer> presynapticCells(LayerImpl<Coordinate2D> layer) {
+        final List<Integer> result = new ArrayList<>();
+        final Visitor<PotentialSynapse<? extends Cell<Coordinate2D>>, Void> synapses = new Visitor<PotentialSynapse<? extends Cell<Coordinate2D>>, Void>() {
+
+            @Override
+            public Visitor.Result visit(PotentialSynapse<? extends Cell<Coordinate2D>> syn, Void ignored) {
+                DistalPotentialSynapse<?> distal = (DistalPotentialSynapse<?>) (Object) syn;
+                // Encode the path step too, so a match means same order
+                result.add(distal.presynapticCell().index() * 16 + distal.pathIndex());
+                return Visitor.Result.NOT_DONE;
+            }
+        };
+        for (int i = 0; i < layer.cellCount(); i++) {
+            layer.getCell(i).visitDistalConnections(new Visitor<DistalDendriteSegment, Void>() {
+
+                @Override
+                public Visitor.Result visit(DistalDendriteSegment seg, Void ignored) {
+                    return seg.visitSynapses(synapses, null);
+                }
+            }, null);
+        }
+        return result;
+    }
+
+    private static int serializedSize(Object o) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream oout = new ObjectOutputStream(out)) {
+            oout.writeObject(o);
+        }
+        return out.size();
+    }
 }
@@ -0,0 +1,77 @@
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.topology.Coordinate2D;
+import com.timboudreau.jhtm.topology.Topology2D;
+import com.timboudreau.jhtm.topology.TopologyND;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ParallelDistalLayoutFactoryTest {
+
+    @Test
+    public void testLayoutIndependentOfThreads() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final ConcurrentLinkedQueue<Integer> reports = new ConcurrentLinkedQueue<>();
+            ParallelDistalLayoutFactory.Progress progress = new ParallelDistalLayoutFactory.Progress() {
+
+                @Override
+                public void progress(int cellsDone, int totalCells) {
+                    assertEquals(48 * 48 * 4, totalCells);
+                    reports.add(cellsDone);
+                }
+            };
+            LayerImpl<Coordinate2D> serial = new LayerImpl<>(4, 3, new Topology2D(48),
+                    new ParallelDistalLayoutFactory<Coordinate2D>(42, 8, Parallelism.serial(), progress));
+            assertEquals(Arrays.asList(4096, 8192, 9216), Arrays.asList(reports.toArray()));
+            reports.clear();
+            LayerImpl<Coordinate2D> parallel = new LayerImpl<>(4, 3, new Topology2D(48),
+                    new ParallelDistalLayoutFactory<Coordinate2D>(42, 8, Parallelism.forkJoin(pool, 5), progress));
+            assertEquals(Integer.valueOf(9216), reports.toArray()[reports.size() - 1]);
+            LayerImpl<Coordinate2D> reseeded = new LayerImpl<>(4, 3, new Topology2D(48),
+                    new ParallelDistalLayoutFactory<Coordinate2D>(43, 8, Parallelism.forkJoin(pool)));
+
+            assertTrue(Arrays.deepEquals(serial.paths, parallel.paths));
+            assertFalse(Arrays.deepEquals(serial.paths, reseeded.paths));
+            for (int cell = 0; cell < serial.cellCount(); cell++) {
+                for (int d = 0; d < 3; d++) {
+                    assertNotNull(parallel.paths[cell][d]);
+                    assertEquals(8, parallel.paths[cell][d].length());
+                }
+            }
+            assertEquals(LayerImplTest.presynapticCells(serial), LayerImplTest.presynapticCells(parallel));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSeedsDiffer() {
+        long a = ParallelDistalLayoutFactory.seedFor(1, 0, 0);
+        assertEquals(a, ParallelDistalLayoutFactory.seedFor(1, 0, 0));
+        assertNotEquals(a, ParallelDistalLayoutFactory.seedFor(1, 0, 1));
+        assertNotEquals(a, ParallelDistalLayoutFactory.seedFor(1, 1, 0));
+        assertNotEquals(a, ParallelDistalLayoutFactory.seedFor(2, 0, 0));
+    }
+
+    @Test
+    public void testOtherTopologies() {
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            LayerImpl<Integer> serial = new LayerImpl<>(2, 2, new TopologyND(16, 16, 4),
+                    new ParallelDistalLayoutFactory<Integer>(7, 5, Parallelism.serial()));
+            LayerImpl<Integer> parallel = new LayerImpl<>(2, 2, new TopologyND(16, 16, 4),
+                    new ParallelDistalLayoutFactory<Integer>(7, 5, Parallelism.forkJoin(pool, 2)));
+            assertTrue(Arrays.deepEquals(serial.paths, parallel.paths));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
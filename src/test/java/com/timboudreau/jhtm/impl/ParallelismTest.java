@@ -0,0 +1,113 @@
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.system.Thresholds;
+import com.timboudreau.jhtm.topology.Coordinate2D;
+import com.timboudreau.jhtm.topology.Topology2D;
+import com.timboudreau.jhtm.util.Bits;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ParallelismTest {
+
+    private static final int INPUT_SIZE = 1024;
+
+    static final class Engine {
+
+        final LayerImpl<Coordinate2D> layer;
+        final SpatialPooler<Coordinate2D, Coordinate2D> pooler;
+        final TemporalMemory<Coordinate2D> memory;
+
+        Engine(Parallelism parallelism) {
+            layer = new LayerImpl<>(4, 2, new Topology2D(64), new LayerImpl.RandomDistalLayoutFactory<Coordinate2D>(6));
+            Thresholds thresholds = new Thresholds();
+            InputMappingImpl<Coordinate2D, Coordinate2D> mapping = new InputMappingImpl<>(new InputMappingImplTest.In(INPUT_SIZE),
+                    new RandomSynapseFactory<Coordinate2D, Coordinate2D>(new Random(5), 24), layer, thresholds);
+            pooler = new SpatialPooler<>(layer, mapping, thresholds,
+                    Inhibition.global(layer.size(), thresholds.activeColumnDensity()), parallelism);
+            memory = new TemporalMemory<>(layer, thresholds, parallelism);
+        }
+
+        void step(Bits input) {
+            memory.compute(pooler.compute(input, true), true);
+        }
+    }
+
+    private static Bits copy(Bits bits) {
+        Bits result = Bits.create(bits.size(), Bits.Storage.COMPRESSED);
+        result.or(bits);
+        return result;
+    }
+
+    @Test
+    public void testShards() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Parallelism parallel = Parallelism.forkJoin(pool, 7);
+            assertTrue(parallel.isParallel());
+            assertFalse(Parallelism.serial().isParallel());
+            assertEquals(1, Parallelism.serial().shardCount(1000000));
+            assertEquals(1, parallel.shardCount(100));
+            assertEquals(7, parallel.shardCount(1000000));
+            final int[] covered = new int[100000];
+            int shards = parallel.run(covered.length, new Parallelism.Shard() {
+
+                @Override
+                public void compute(int shard, int from, int to) {
+                    assertEquals(Parallelism.shardStart(covered.length, 7, shard), from);
+                    for (int i = from; i < to; i++) {
+                        covered[i]++;
+                    }
+                }
+            });
+            assertEquals(7, shards);
+            for (int i = 0; i < covered.length; i++) {
+                assertEquals(1, covered[i]);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSerial() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Engine serial = new Engine(Parallelism.serial());
+            Engine parallel = new Engine(Parallelism.forkJoin(pool));
+            Random r = new Random(11);
+            Bits[] inputs = new Bits[3];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = Bits.create(INPUT_SIZE, Bits.Storage.COMPRESSED);
+                for (int j = 0; j < 150; j++) {
+                    inputs[i].set(r.nextInt(INPUT_SIZE));
+                }
+            }
+            for (int i = 0; i < 45; i++) {
+                Bits input = inputs[i % inputs.length];
+                serial.step(input);
+                parallel.step(input);
+                assertEquals(copy(serial.pooler.activeColumns()), copy(parallel.pooler.activeColumns()));
+                assertEquals(copy(serial.layer.activatedCells()), copy(parallel.layer.activatedCells()));
+                assertEquals(copy(serial.memory.winnerCells()), copy(parallel.memory.winnerCells()));
+                assertEquals(copy(serial.layer.predictiveCells()), copy(parallel.layer.predictiveCells()));
+                assertEquals(serial.memory.activeSegmentCount(), parallel.memory.activeSegmentCount());
+            }
+            // The sequence has been learned, so the comparison covered
+            // predictions, not just bursting
+            assertTrue(serial.memory.activeSegmentCount() > 0);
+            PermanenceArray a = serial.layer.snapshot.permanences.values;
+            PermanenceArray b = parallel.layer.snapshot.permanences.values;
+            for (long i = 0; i < a.size(); i++) {
+                assertEquals(a.get(i), b.get(i), 0D);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.Permanence;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tim
+ */
+public class PermanenceArrayTest {
+
+    @Test
+    public void testCommitAndDiscard() {
+        PermanenceArray arr = new PermanenceArray(10);
+        assertFalse(arr.hasPending());
+        assertEquals(0L + 10 * 4, arr.sizeInBytes());
+        arr.add(1, 0.5, false);
+        arr.add(1, 0.25, true);
+        arr.add(2, 0.125, true);
+        arr.add(3, 0.5, true);
+        assertTrue(arr.hasPending());
+        assertEquals(0.75D, arr.get(1), 0.00001D);
+        assertEquals(0.5D, arr.committed(1), 0.00001D);
+        assertEquals(0.25D, arr.pending(1), 0.00001D);
+        assertEquals(Permanence.create(0.5).add(0.25, true), arr.permanence(1));
+
+        arr.commit(1);
+        assertEquals(0.75D, arr.committed(1), 0.00001D);
+        assertEquals(0D, arr.pending(1), 0.00001D);
+
+        arr.discard(2);
+        assertEquals(0D, arr.get(2), 0.00001D);
+        assertSame(Permanence.ZERO, arr.permanence(2));
+
+        PermanenceArray copy = arr.copy();
+        assertEquals(arr, copy);
+        copy.discard();
+        assertFalse(copy.hasPending());
+        assertEquals(0D, copy.get(3), 0.00001D);
+        assertEquals(0.5D, arr.get(3), 0.00001D);
+        assertNotEquals(arr, copy);
+
+        arr.commit();
+        assertFalse(arr.hasPending());
+        assertEquals(0.5D, arr.committed(3), 0.00001D);
+
+        arr.add(4, 0.1, true);
+        arr.add(5, 0.1, true);
+        arr.add(6, 0.1, true);
+        arr.commit(4, 6);
+        assertEquals(0.1D, arr.committed(5), 0.00001D);
+        assertEquals(0.1D, arr.pending(6), 0.00001D);
+        arr.discard(0, 10);
+        assertEquals(0D, arr.get(6), 0.00001D);
+    }
+
+    @Test
+    public void testCopyOnWrite() {
+        int size = PermanenceArray.PAGE_SIZE * 8 + 3;
+        PermanenceArray arr = new PermanenceArray(size);
+        arr.fill(0.5);
+        assertEquals(9, arr.pageCount());
+        assertEquals(9, arr.ownedPages());
+        PermanenceArray copy = arr.copy();
+        assertEquals(0, arr.ownedPages());
+        assertEquals(0, copy.ownedPages());
+        assertEquals(arr, copy);
+
+        arr.add(PermanenceArray.PAGE_SIZE + 1, 0.25, false);
+        arr.add(size - 1, 0.25, true);
+        // pending values live in their own pages
+        assertEquals(1, arr.ownedPages());
+        assertEquals(0.75D, arr.get(PermanenceArray.PAGE_SIZE + 1), 0.00001D);
+        assertEquals(0.5D, copy.get(PermanenceArray.PAGE_SIZE + 1), 0.00001D);
+        assertEquals(0.5D, copy.get(size - 1), 0.00001D);
+        assertFalse(copy.hasPending());
+        assertNotEquals(arr, copy);
+
+        // A copy of a copy with pending values shares them too
+        PermanenceArray second = arr.copy();
+        arr.commit();
+        assertEquals(0.75D, arr.committed(size - 1), 0.00001D);
+        assertEquals(0.5D, second.committed(size - 1), 0.00001D);
+        assertEquals(0.25D, second.pending(size - 1), 0.00001D);
+        second.discard(size - 1);
+        assertEquals(0.5D, second.get(size - 1), 0.00001D);
+        assertEquals(0.75D, arr.get(size - 1), 0.00001D);
+    }
+
+    @Test
+    public void testPermanenceArithmetic() {
+        Permanence p = Permanence.create(0.5).add(0.25, true).add(0.125, true);
+        assertEquals(0.875D, p.get(), 0.00001D);
+        assertEquals(0.5D, p.cullTemporaryValues().get(), 0.00001D);
+        assertEquals(0.875D, p.retainTemporaryValues().get(), 0.00001D);
+        Permanence q = p.add(0.125, false);
+        assertEquals(0.625D, q.cullTemporaryValues().get(), 0.00001D);
+        assertEquals(Permanence.create(0.5), Permanence.create(0.25).add(0.25, false));
+    }
+}
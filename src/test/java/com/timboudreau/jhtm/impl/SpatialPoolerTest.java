@@ -0,0 +1,83 @@
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.system.Thresholds;
+import com.timboudreau.jhtm.topology.Coordinate2D;
+import com.timboudreau.jhtm.topology.Topology2D;
+import com.timboudreau.jhtm.util.Bits;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SpatialPoolerTest {
+
+    @Test
+    public void testWinnersAndLearning() {
+        LayerImpl<Coordinate2D> layer = new LayerImpl<>(3, 1, new Topology2D(10, 10), new LayerImpl.RandomDistalLayoutFactory<Coordinate2D>(1));
+        InputMappingImpl<Coordinate2D, Coordinate2D> mapping = new InputMappingImpl<>(new InputMappingImplTest.In(81),
+                new RandomSynapseFactory<Coordinate2D, Coordinate2D>(new Random(7), 16), layer, new Thresholds());
+        layer.getColumn(42).getProximalSegment().increaseBoostFactor(9);
+        SpatialPooler<Coordinate2D, Coordinate2D> pooler = new SpatialPooler<>(layer, mapping);
+        assertEquals(2, pooler.winnerCount());
+
+        Bits inputs = mapping.activeInputs();
+        ProximalSynapseTable synapses = mapping.synapses();
+        double before = synapses.value(synapses.start(42));
+        Bits active = pooler.compute(inputs, true);
+        assertEquals(2, active.cardinality());
+        // The boosted column wins outright
+        assertTrue(active.get(42));
+        for (int column = 0; column < layer.size(); column++) {
+            assertEquals(mapping.overlap(column, inputs, 0.5D), pooler.overlap(column));
+            if (!active.get(column)) {
+                for (int winner = active.nextSetBit(0); winner >= 0; winner = active.nextSetBit(winner + 1)) {
+                    assertTrue(pooler.boostedOverlap(winner) >= pooler.boostedOverlap(column));
+                }
+            }
+            for (int cell = 0; cell < 3; cell++) {
+                assertEquals(active.get(column), layer.activatedCells().get(column * 3 + cell));
+            }
+        }
+        double after = synapses.value(synapses.start(42));
+        double expected = inputs.get(synapses.bit(synapses.start(42))) ? before + 0.05D : before - 0.008D;
+        assertEquals(expected, after, 0.0001D);
+
+        Bits copy = Bits.create(active.size());
+        copy.or(active);
+        pooler.compute(inputs, false);
+        assertEquals(copy, pooler.activeColumns());
+    }
+
+    @Test
+    public void testThroughput() {
+        Topology2D topo = new Topology2D(256, 256);
+        LayerImpl<Coordinate2D> layer = new LayerImpl<>(1, 1, topo, new LayerImpl.RandomDistalLayoutFactory<Coordinate2D>(1));
+        InputMappingImpl<Coordinate2D, Coordinate2D> mapping = new InputMappingImpl<>(new InputMappingImplTest.In(1024),
+                new RandomSynapseFactory<Coordinate2D, Coordinate2D>(new Random(3), 32), layer, new Thresholds());
+        SpatialPooler<Coordinate2D, Coordinate2D> pooler = new SpatialPooler<>(layer, mapping);
+        Random r = new Random(9);
+        Bits[] inputs = new Bits[16];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = Bits.create(1024, Bits.Storage.COMPRESSED);
+            for (int j = 0; j < 100; j++) {
+                inputs[i].set(r.nextInt(1024));
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            pooler.compute(inputs[i % inputs.length], true);
+        }
+        int count = 200;
+        long then = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            assertEquals(pooler.winnerCount(), pooler.compute(inputs[i % inputs.length], true).cardinality());
+        }
+        double seconds = (System.nanoTime() - then) / 1000000000D;
+        double perSecond = count / seconds;
+        System.out.println("Spatial pooler: " + (int) perSecond + " inputs per second over "
+                + layer.size() + " columns");
+        assertTrue("Too slow: " + perSecond + " inputs/sec", perSecond > 10);
+    }
+}
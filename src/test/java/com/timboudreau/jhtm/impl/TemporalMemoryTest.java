@@ -0,0 +1,131 @@
+package com.timboudreau.jhtm.impl;
+
+import com.timboudreau.jhtm.system.Thresholds;
+import com.timboudreau.jhtm.topology.Coordinate2D;
+import com.timboudreau.jhtm.topology.Topology2D;
+import com.timboudreau.jhtm.util.Bits;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class TemporalMemoryTest {
+
+    private static Bits columns(int size, int from, int to) {
+        Bits result = Bits.create(size, Bits.Storage.COMPRESSED);
+        for (int i = from; i < to; i++) {
+            result.set(i);
+        }
+        return result;
+    }
+
+    private static int activeCellsIn(LayerImpl<?> layer, Bits columns, int cellsPerColumn) {
+        int result = 0;
+        for (int column = columns.nextSetBit(0); column >= 0; column = columns.nextSetBit(column + 1)) {
+            for (int i = 0; i < cellsPerColumn; i++) {
+                if (layer.activatedCells().get(column * cellsPerColumn + i)) {
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testUnpredictedColumnsBurst() {
+        LayerImpl<Coordinate2D> layer = new LayerImpl<>(4, 2, new Topology2D(8), new LayerImpl.RandomDistalLayoutFactory<Coordinate2D>(8));
+        TemporalMemory<Coordinate2D> tm = new TemporalMemory<>(layer, new Thresholds());
+        assertTrue(layer.isDistalPathsCompiled());
+        Bits a = columns(64, 0, 16);
+        tm.compute(a, false);
+        assertEquals(64, layer.activatedCells().cardinality());
+        assertEquals(64, activeCellsIn(layer, a, 4));
+        // One winner per bursting column
+        assertEquals(16, tm.winnerCells().cardinality());
+        for (int column = 0; column < 16; column++) {
+            int winners = 0;
+            for (int i = 0; i < 4; i++) {
+                if (tm.winnerCells().get(column * 4 + i)) {
+                    winners++;
+                }
+            }
+            assertEquals(1, winners);
+        }
+        // Nothing has learned, so nothing is predicted
+        assertEquals(0, tm.activeSegmentCount());
+        assertTrue(layer.predictiveCells().isEmpty());
+    }
+
+    @Test
+    public void testLearnedSequenceIsPredicted() {
+        LayerImpl<Coordinate2D> layer = new LayerImpl<>(4, 2, new Topology2D(8), new LayerImpl.RandomDistalLayoutFactory<Coordinate2D>(8));
+        TemporalMemory<Coordinate2D> tm = new TemporalMemory<>(layer, new Thresholds());
+        Bits a = columns(64, 0, 16);
+        Bits b = columns(64, 40, 48);
+        Bits none = columns(64, 0, 0);
+        for (int i = 0; i < 30; i++) {
+            tm.compute(a, true);
+            tm.compute(b, true);
+            tm.compute(none, true);
+        }
+        tm.compute(a, false);
+        assertTrue(tm.activeSegmentCount() > 0);
+        int predictedInB = 0;
+        for (int cell = layer.predictiveCells().nextSetBit(0); cell >= 0; cell = layer.predictiveCells().nextSetBit(cell + 1)) {
+            if (b.get(cell / 4)) {
+                predictedInB++;
+            }
+        }
+        assertEquals(8, predictedInB);
+        // Predicted columns activate only their predicted cells instead of bursting
+        tm.compute(b, false);
+        assertEquals(8, activeCellsIn(layer, b, 4));
+        assertEquals(8, layer.activatedCells().cardinality());
+        assertEquals(tm.winnerCells().cardinality(), layer.activatedCells().cardinality());
+    }
+
+    @Test
+    public void testPredictedActiveColumnsSurviveRestore() throws IOException {
+        LayerImpl<Coordinate2D> layer = new LayerImpl<>(4, 2, new Topology2D(8), new LayerImpl.RandomDistalLayoutFactory<Coordinate2D>(8));
+        TemporalMemory<Coordinate2D> tm = new TemporalMemory<>(layer, new Thresholds());
+        // Overlapping patterns, so some active columns stay predictive
+        Bits a = columns(64, 0, 16);
+        Bits b = columns(64, 8, 24);
+        for (int i = 0; i < 30; i++) {
+            tm.compute(a, true);
+            tm.compute(b, true);
+        }
+        // The columns predicted before the step, not by it
+        Bits expected = Bits.create(64, Bits.Storage.COMPRESSED);
+        for (int column = a.nextSetBit(0); column >= 0; column = a.nextSetBit(column + 1)) {
+            for (int i = 0; i < 4; i++) {
+                if (layer.predictiveCells().get(column * 4 + i)) {
+                    expected.set(column);
+                }
+            }
+        }
+        tm.compute(a, false);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, layer.predictedActiveColumns());
+
+        layer.restore(layer.snapshot());
+        assertEquals(expected, layer.predictedActiveColumns());
+
+        java.nio.file.Path dir = Files.createTempDirectory("jhtm");
+        java.nio.file.Path file = dir.resolve("layer.snapshot");
+        try {
+            layer.save(file);
+            LayerImpl<Coordinate2D> other = new LayerImpl<>(4, 2, new Topology2D(8), new LayerImpl.RandomDistalLayoutFactory<Coordinate2D>(8));
+            other.restore(file);
+            assertEquals(expected, other.predictedActiveColumns());
+            assertEquals(a, other.activeColumns());
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+}
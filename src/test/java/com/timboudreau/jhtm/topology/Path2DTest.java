@@ -0,0 +1,104 @@
+package com.timboudreau.jhtm.topology;
+
+import org.junit.Test;
+import static com.timboudreau.jhtm.topology.Direction2D.*;
+import static org.junit.Assert.*;
+import com.timboudreau.jhtm.util.Visitor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class Path2DTest {
+
+    @Test
+    public void testPacking() {
+        Random r = new Random(5);
+        Path2D path = new Path2D();
+        List<Direction2D> expected = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            Direction2D d = Direction2D.random(r);
+            path = path.add(d);
+            expected.add(d);
+            assertEquals(expected, path.directions());
+            assertEquals(new Path2D(expected), path);
+            assertEquals(new Path2D(expected).hashCode(), path.hashCode());
+            assertEquals(i < Path2D.MAX_PACKED_LENGTH, path.isPacked());
+            if (path.isPacked()) {
+                assertEquals(path, Path2D.fromLong(path.toLong(), path.length()));
+            }
+        }
+        List<Direction2D> iterated = new ArrayList<>();
+        for (Direction2D d : path) {
+            iterated.add(d);
+        }
+        assertEquals(expected, iterated);
+        assertEquals(Path2D.fromLong(-1L, 2), new Path2D(DOWN_LEFT, DOWN_LEFT));
+        assertNotEquals(new Path2D(UP), new Path2D(UP, UP));
+    }
+
+    @Test
+    public void testCursorMatchesNavigation() {
+        EdgeRule<Coordinate2D> custom = new EdgeRule<Coordinate2D>() {
+            @Override
+            public Coordinate2D adjust(Coordinate2D curr, Coordinate2D proposed, Coordinate2D extents) {
+                return isValid(proposed, extents) ? proposed : curr;
+            }
+
+            private boolean isValid(Coordinate2D c, Coordinate2D extents) {
+                return c.x >= 0 && c.y >= 0 && c.x < extents.x && c.y < extents.y;
+            }
+        };
+        Random r = new Random(11);
+        for (EdgeRule<Coordinate2D> rule : new EdgeRule[]{EdgeRule.wrap(), EdgeRule.constrain(), custom}) {
+            Topology2D topo = new Topology2D(7, 5, rule);
+            PathCursor2D cursor = topo.cursor();
+            for (int i = 0; i < 200; i++) {
+                Path2D path = new Path2D();
+                for (int j = r.nextInt(30); j >= 0; j--) {
+                    path = path.add(Direction2D.random(r));
+                }
+                int start = r.nextInt(topo.columnCount());
+                Coordinate2D loc = topo.coordinateForIndex(start);
+                cursor.reset(start, path);
+                for (Direction2D d : path.directions()) {
+                    loc = d.navigate(topo.getExtents(), loc, rule);
+                    assertTrue(cursor.next());
+                    assertEquals(loc.x, cursor.x());
+                    assertEquals(loc.y, cursor.y());
+                    assertEquals(topo.toIndex(loc), cursor.column());
+                }
+                assertFalse(cursor.next());
+                assertEquals(path.length(), cursor.steps());
+            }
+        }
+    }
+
+    @Test
+    public void testCursorReuseAndWalk() {
+        Topology2D topo = new Topology2D(32);
+        Path2D path = new Path2D(UP, UP, LEFT, DOWN_LEFT, DOWN, RIGHT, UP_RIGHT, RIGHT, DOWN_RIGHT, UP_LEFT);
+        PathCursor2D cursor = topo.cursor();
+        int sum = 0;
+        long then = System.nanoTime();
+        for (int i = 0; i < 100000; i++) {
+            for (cursor.reset(i % topo.columnCount(), path); cursor.next();) {
+                sum += cursor.column();
+            }
+        }
+        System.out.println("Walked 100000 paths in " + ((System.nanoTime() - then) / 1000000) + "ms");
+        final int[] visited = new int[1];
+        topo.walk(Coordinate2D.valueOf(3, 3), path, new Visitor<Coordinate2D, Topology<Coordinate2D>>() {
+            @Override
+            public Visitor.Result visit(Coordinate2D obj, Topology<Coordinate2D> arg) {
+                visited[0]++;
+                return Visitor.Result.NOT_DONE;
+            }
+        });
+        assertEquals(path.length(), visited[0]);
+        assertTrue(sum > 0);
+    }
+}
@@ -3,7 +3,12 @@ package com.timboudreau.jhtm.topology;
 import org.junit.Test;
 import static com.timboudreau.jhtm.topology.Direction2D.*;
 import static org.junit.Assert.*;
+import com.timboudreau.jhtm.Column;
+import com.timboudreau.jhtm.system.Layer;
+import com.timboudreau.jhtm.impl.LayerImpl;
+import com.timboudreau.jhtm.util.IntVisitor;
 import com.timboudreau.jhtm.util.Visitor;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -43,4 +48,88 @@ public class Topology2DTest {
         });
     }
     
+    @Test
+    public void testCoordinatesAreInternedLazily() {
+        assertSame(Coordinate2D.valueOf(0, 0), Coordinate2D.valueOf(0, 0));
+        assertSame(Coordinate2D.valueOf(1023, 5), Coordinate2D.valueOf(1023, 5));
+        assertEquals(Coordinate2D.valueOf(1024, 5), Coordinate2D.valueOf(1024, 5));
+
+        // Interning follows the topology's extents, not a fixed table size
+        Topology2D big = new Topology2D(2000, 1500);
+        Coordinate2D far = big.coordinateForIndex(big.columnCount() - 1);
+        assertEquals(Coordinate2D.valueOf(1999, 1499), far);
+        assertSame(far, big.coordinateForIndex(big.columnCount() - 1));
+        assertSame(far, big.newCoordinate(1999, 1499));
+        assertEquals(big.columnCount() - 1, big.toIndex(far));
+        assertEquals(Coordinate2D.valueOf(-1, 2), big.newCoordinate(-1, 2));
+    }
+    @Test
+    public void testNeighborhoods() {
+        Topology2D wrap = new Topology2D(5, EdgeRule.wrap());
+        Neighborhood n = wrap.neighborhood(1);
+        assertSame(n, wrap.neighborhood(1));
+        assertEquals(1, n.radius());
+        assertEquals(25, n.columnCount());
+        assertArrayEquals(new int[]{0, 1, 4, 5, 6, 9, 20, 21, 24}, neighbors(n, 0));
+        assertArrayEquals(new int[]{6, 7, 8, 11, 12, 13, 16, 17, 18}, neighbors(n, 12));
+        assertEquals(9, n.maxSize());
+        // Wrapping further than the width reaches every column exactly once
+        assertEquals(25, wrap.neighborhood(3).size(7));
+        assertArrayEquals(new int[]{12}, neighbors(wrap.neighborhood(0), 12));
+
+        Topology2D constrain = new Topology2D(5, EdgeRule.constrain());
+        assertArrayEquals(new int[]{0, 1, 5, 6}, neighbors(constrain.neighborhood(1), 0));
+        Topology2D noop = new Topology2D(5, EdgeRule.<Coordinate2D>noop());
+        assertArrayEquals(new int[]{0, 1, 5, 6}, neighbors(noop.neighborhood(1), 0));
+        assertArrayEquals(new int[]{18, 19, 23, 24}, neighbors(noop.neighborhood(1), 24));
+
+        final List<Integer> visited = new LinkedList<>();
+        n.visit(12, new IntVisitor() {
+            @Override
+            public Visitor.Result visit(int value) {
+                visited.add(value);
+                return Visitor.Result.NOT_DONE;
+            }
+        });
+        assertEquals(Arrays.asList(6, 7, 8, 11, 12, 13, 16, 17, 18), visited);
+    }
+
+    @Test
+    public void testVisitNeighborsDoesNotCacheTables() {
+        Topology2D wrap = new Topology2D(5, EdgeRule.wrap());
+        LayerImpl<Coordinate2D> layer = new LayerImpl<>(1, 0, wrap, new LayerImpl.RandomDistalLayoutFactory<Coordinate2D>(1));
+        Neighborhood expected = new Topology2D(5, EdgeRule.wrap()).neighborhood(1);
+        for (int column = 0; column < wrap.columnCount(); column++) {
+            assertArrayEquals(neighbors(expected, column), visitNeighbors(wrap, layer, 1, column));
+        }
+        assertNull(wrap.cachedNeighborhood(1));
+        assertArrayEquals(neighbors(expected, 12), visitNeighbors(wrap, layer, 1, 12));
+        // Once asked for, the table is used
+        wrap.neighborhood(1);
+        assertArrayEquals(neighbors(expected, 12), visitNeighbors(wrap, layer, 1, 12));
+        assertEquals(25, visitNeighbors(wrap, layer, 3, 7).length);
+        assertNull(wrap.cachedNeighborhood(3));
+    }
+
+    private static int[] visitNeighbors(Topology<Coordinate2D> topology, Layer<Coordinate2D> layer, int radius, int column) {
+        final List<Integer> visited = new ArrayList<>();
+        topology.visitNeighbors(layer, radius, new Visitor<Column, Void>() {
+            @Override
+            public Visitor.Result visit(Column neighbor, Void arg) {
+                visited.add(neighbor.index());
+                return Visitor.Result.NOT_DONE;
+            }
+        }, layer.getColumn(column), null);
+        int[] result = new int[visited.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = visited.get(i);
+        }
+        return result;
+    }
+
+    private static int[] neighbors(Neighborhood n, int column) {
+        int[] result = new int[n.size(column)];
+        assertEquals(result.length, n.copy(column, result));
+        return result;
+    }
 }
@@ -0,0 +1,187 @@
+package com.timboudreau.jhtm.topology;
+
+import com.timboudreau.jhtm.Column;
+import com.timboudreau.jhtm.system.Layer;
+import com.timboudreau.jhtm.impl.LayerImpl;
+import com.timboudreau.jhtm.util.IntVisitor;
+import com.timboudreau.jhtm.util.Visitor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class TopologyNDTest {
+
+    @Test
+    public void testIndexMath() {
+        TopologyND topo = new TopologyND(4, 3, 5);
+        assertEquals(3, topo.dimensions());
+        assertEquals(60, topo.columnCount());
+        Set<Integer> seen = new HashSet<>();
+        for (int z = 0; z < 5; z++) {
+            for (int y = 0; y < 3; y++) {
+                for (int x = 0; x < 4; x++) {
+                    int ix = topo.index(x, y, z);
+                    assertTrue(seen.add(ix));
+                    assertEquals(x, topo.coordinate(ix, 0));
+                    assertEquals(y, topo.coordinate(ix, 1));
+                    assertEquals(z, topo.coordinate(ix, 2));
+                }
+            }
+        }
+        assertEquals(60, seen.size());
+        assertEquals(topo.index(1, 0, 0), (int) topo.directions()[1].navigate(60, 0, EdgeRule.<Integer>noop()));
+    }
+
+    @Test
+    public void testWalking() {
+        TopologyND wrap = new TopologyND(4, 3, 5);
+        DirectionND[] d = wrap.directions();
+        // -x, +y, +z, +z
+        PathND path = wrap.path(d[0], d[3], d[5], d[5]);
+        final List<Integer> visited = new ArrayList<>();
+        wrap.walkIndices(wrap.index(0, 2, 4), path, new IntVisitor() {
+            @Override
+            public Visitor.Result visit(int value) {
+                visited.add(value);
+                return Visitor.Result.NOT_DONE;
+            }
+        });
+        List<Integer> expected = new ArrayList<>();
+        expected.add(wrap.index(3, 2, 4));
+        expected.add(wrap.index(3, 0, 4));
+        expected.add(wrap.index(3, 0, 0));
+        expected.add(wrap.index(3, 0, 1));
+        assertEquals(expected, visited);
+
+        final List<Integer> walked = new ArrayList<>();
+        wrap.walk(wrap.index(0, 2, 4), path, new Visitor<Integer, Topology<Integer>>() {
+            @Override
+            public Visitor.Result visit(Integer obj, Topology<Integer> arg) {
+                walked.add(obj);
+                return Visitor.Result.NOT_DONE;
+            }
+        });
+        assertEquals(expected, walked);
+
+        TopologyND constrain = new TopologyND(EdgeRule.constrain(), 4, 3, 5);
+        List<Integer> coords = new ArrayList<>();
+        for (Integer c : path.coordinates(constrain.index(0, 2, 4), constrain.getExtents(), EdgeRule.<Integer>noop())) {
+            coords.add(c);
+        }
+        // Packed coordinates cannot leave the volume, so noop constrains
+        assertEquals(constrain.index(0, 2, 4), (int) coords.get(1));
+    }
+
+    @Test
+    public void testWalkingOtherDirections() {
+        // A direction which only knows packed indices
+        Direction<Integer> skip = new Direction<Integer>() {
+            @Override
+            public Integer navigate(Integer extents, Integer curr, EdgeRule<Integer> edgeRule) {
+                return edgeRule.adjust(curr, curr + 7, extents);
+            }
+        };
+        List<Direction<Integer>> steps = new ArrayList<>();
+        steps.add(skip);
+        steps.add(skip);
+        final List<Integer> walked = new ArrayList<>();
+        Visitor<Integer, Topology<Integer>> collector = new Visitor<Integer, Topology<Integer>>() {
+            @Override
+            public Visitor.Result visit(Integer obj, Topology<Integer> arg) {
+                walked.add(obj);
+                return Visitor.Result.NOT_DONE;
+            }
+        };
+        new TopologyND(4, 3).walk(8, steps, collector);
+        assertEquals(Arrays.asList(3, 10), walked);
+        walked.clear();
+        new TopologyND(EdgeRule.constrain(), 4, 3).walk(8, steps, collector);
+        assertEquals(Arrays.asList(11, 11), walked);
+        try {
+            EdgeRule.onIndices(new EdgeRule<Coordinate2D>() {
+                @Override
+                public Coordinate2D adjust(Coordinate2D curr, Coordinate2D proposed, Coordinate2D extents) {
+                    return proposed;
+                }
+            });
+            fail("A rule over whole coordinates cannot be applied to indices");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNeighborhoods() {
+        TopologyND line = new TopologyND(10);
+        Neighborhood n = line.neighborhood(2);
+        int[] expected = {0, 1, 2, 8, 9};
+        int[] got = new int[n.size(0)];
+        n.copy(0, got);
+        assertArrayEquals(expected, got);
+
+        TopologyND cube = new TopologyND(EdgeRule.constrain(), 3, 3, 3);
+        n = cube.neighborhood(1);
+        assertEquals(8, n.size(cube.index(0, 0, 0)));
+        assertEquals(27, n.size(cube.index(1, 1, 1)));
+        assertEquals(12, n.size(cube.index(1, 0, 0)));
+        assertEquals(27, n.maxSize());
+    }
+
+    @Test
+    public void testVisitNeighborsDoesNotCacheTables() {
+        TopologyND cube = new TopologyND(EdgeRule.constrain(), 3, 3, 3);
+        LayerImpl<Integer> layer = new LayerImpl<>(1, 0, cube, new LayerImpl.RandomDistalLayoutFactory<Integer>(1));
+        Neighborhood expected = new TopologyND(EdgeRule.constrain(), 3, 3, 3).neighborhood(1);
+        for (int column = 0; column < cube.columnCount(); column++) {
+            int[] got = new int[expected.size(column)];
+            expected.copy(column, got);
+            assertArrayEquals(got, visitNeighbors(cube, layer, 1, column));
+        }
+        assertNull(cube.cachedNeighborhood(1));
+    }
+
+    private static int[] visitNeighbors(Topology<Integer> topology, Layer<Integer> layer, int radius, int column) {
+        final List<Integer> visited = new ArrayList<>();
+        topology.visitNeighbors(layer, radius, new Visitor<Column, Void>() {
+            @Override
+            public Visitor.Result visit(Column neighbor, Void arg) {
+                visited.add(neighbor.index());
+                return Visitor.Result.NOT_DONE;
+            }
+        }, layer.getColumn(column), null);
+        int[] result = new int[visited.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = visited.get(i);
+        }
+        return result;
+    }
+
+    @Test
+    public void testRandomPaths() {
+        TopologyND topo = new TopologyND(8, 8, 3);
+        Random r = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            int start = r.nextInt(topo.columnCount());
+            PathND path = topo.createRandom(r, start, 10);
+            assertEquals(10, path.length());
+            final Set<Integer> seen = new HashSet<>();
+            seen.add(start);
+            topo.walkIndices(start, path, new IntVisitor() {
+                @Override
+                public Visitor.Result visit(int value) {
+                    assertTrue("Path revisits " + value, seen.add(value));
+                    return Visitor.Result.NOT_DONE;
+                }
+            });
+        }
+    }
+}
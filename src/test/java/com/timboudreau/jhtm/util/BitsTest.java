@@ -0,0 +1,276 @@
+package com.timboudreau.jhtm.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tim
+ */
+public class BitsTest {
+
+    private static final int SIZE = 200000;
+    private final OffHeapMemory memory = new OffHeapMemory();
+
+    private interface Factory {
+
+        Bits create(BitSet contents);
+    }
+
+    private final Factory[] factories = new Factory[]{
+        new Factory() {
+            @Override
+            public Bits create(BitSet contents) {
+                return fill(Bits.create(SIZE), contents);
+            }
+
+            public String toString() {
+                return "adaptive";
+            }
+        },
+        new Factory() {
+            @Override
+            public Bits create(BitSet contents) {
+                return fill(Bits.create(SIZE, Bits.Storage.COMPRESSED), contents);
+            }
+
+            public String toString() {
+                return "compressed";
+            }
+        },
+        new Factory() {
+            @Override
+            public Bits create(BitSet contents) {
+                return fill(new Bits.BitSetBits(SIZE), contents);
+            }
+
+            public String toString() {
+                return "bitset";
+            }
+        },
+        new Factory() {
+            @Override
+            public Bits create(BitSet contents) {
+                return fill(new Bits.IntSetBits(SIZE), contents);
+            }
+
+            public String toString() {
+                return "intset";
+            }
+        },
+        new Factory() {
+            @Override
+            public Bits create(BitSet contents) {
+                return fill(Bits.create(SIZE, Bits.Storage.CONCURRENT), contents);
+            }
+
+            public String toString() {
+                return "concurrent";
+            }
+        },
+        new Factory() {
+            @Override
+            public Bits create(BitSet contents) {
+                return fill(Bits.create(SIZE, memory), contents);
+            }
+
+            public String toString() {
+                return "offheap";
+            }
+        }
+    };
+
+    private static Bits fill(Bits bits, BitSet contents) {
+        for (int i = contents.nextSetBit(0); i >= 0; i = contents.nextSetBit(i + 1)) {
+            bits.set(i);
+        }
+        return bits;
+    }
+
+    private static BitSet random(Random r, int count) {
+        BitSet result = new BitSet(SIZE);
+        for (int i = 0; i < count; i++) {
+            result.set(r.nextInt(SIZE));
+        }
+        // one dense region, to get bitmap containers in compressed bits
+        int start = r.nextInt(SIZE - 10000);
+        for (int i = start; i < start + 10000; i++) {
+            if (r.nextInt(3) != 0) {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testSetAlgebra() {
+        Random r = new Random(3);
+        BitSet a = random(r, 2000);
+        BitSet b = random(r, 3000);
+        BitSet and = (BitSet) a.clone();
+        and.and(b);
+        BitSet or = (BitSet) a.clone();
+        or.or(b);
+        BitSet andNot = (BitSet) a.clone();
+        andNot.andNot(b);
+        BitSet xor = (BitSet) a.clone();
+        xor.xor(b);
+        for (Factory fa : factories) {
+            for (Factory fb : factories) {
+                String msg = fa + " with " + fb;
+                assertEquals(msg, and.cardinality(), fa.create(a).intersectionCardinality(fb.create(b)));
+                assertMatches(msg + " and", and, fa.create(a).and(fb.create(b)));
+                assertMatches(msg + " or", or, fa.create(a).or(fb.create(b)));
+                assertMatches(msg + " andNot", andNot, fa.create(a).andNot(fb.create(b)));
+                assertMatches(msg + " xor", xor, fa.create(a).xor(fb.create(b)));
+                assertEquals(msg, fa.create(a), fb.create(a));
+                assertEquals(msg, fa.create(a).hashCode(), fb.create(a).hashCode());
+            }
+        }
+    }
+
+    @Test
+    public void testWrappersCombineWithEachOtherConcurrently() throws InterruptedException {
+        Random r = new Random(5);
+        final Bits a = fill(Bits.create(SIZE), random(r, 20000));
+        final Bits b = new Bits.SynchronizedBits(fill(Bits.create(SIZE), random(r, 20000)));
+        Thread one = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 200; i++) {
+                    a.or(b);
+                    a.intersectionCardinality(b);
+                }
+            }
+        };
+        Thread two = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 200; i++) {
+                    b.or(a);
+                    b.intersectionCardinality(a);
+                }
+            }
+        };
+        one.start();
+        two.start();
+        one.join(30000);
+        two.join(30000);
+        assertFalse("Deadlocked", one.isAlive() || two.isAlive());
+        assertEquals(a, b);
+    }
+
+    @Test
+    public void testIteration() {
+        Random r = new Random(11);
+        BitSet a = random(r, 500);
+        for (Factory f : factories) {
+            Bits bits = f.create(a);
+            final List<Integer> visited = new ArrayList<>();
+            bits.forEach(new IntVisitor() {
+
+                @Override
+                public Visitor.Result visit(int value) {
+                    visited.add(value);
+                    return Visitor.Result.NOT_DONE;
+                }
+            });
+            assertEquals(f.toString(), a.cardinality(), visited.size());
+            int ix = 0;
+            for (int i = a.nextSetBit(0); i >= 0; i = a.nextSetBit(i + 1)) {
+                assertEquals(f.toString(), i, (int) visited.get(ix++));
+            }
+            final int[] count = new int[1];
+            Visitor.Result res = bits.forEach(new IntVisitor() {
+
+                @Override
+                public Visitor.Result visit(int value) {
+                    return ++count[0] == 3 ? Visitor.Result.DONE : Visitor.Result.NOT_DONE;
+                }
+            });
+            assertEquals(Visitor.Result.DONE, res);
+            assertEquals(3, count[0]);
+            assertEquals(-1, bits.nextSetBit(SIZE));
+            assertEquals(a.nextSetBit(SIZE / 2), bits.nextSetBit(SIZE / 2));
+        }
+    }
+
+    @Test
+    public void testNextSetBitAfterChanges() {
+        for (Factory f : factories) {
+            String msg = f.toString();
+            Bits bits = f.create(new BitSet());
+            bits.set(10).set(30);
+            assertEquals(msg, 10, bits.nextSetBit(0));
+            assertEquals(msg, 30, bits.nextSetBit(11));
+            bits.set(20);
+            assertEquals(msg, 20, bits.nextSetBit(11));
+            bits.clear(20);
+            assertEquals(msg, 30, bits.nextSetBit(11));
+            bits.flip(15);
+            assertEquals(msg, 15, bits.nextSetBit(11));
+            bits.and(f.create(new BitSet()).set(30));
+            assertEquals(msg, 30, bits.nextSetBit(0));
+            bits.clear();
+            assertEquals(msg, -1, bits.nextSetBit(0));
+        }
+    }
+
+    @Test
+    public void testOffHeapCopyOnWrite() {
+        int size = 3 << (OffHeapBits.PAGE_SHIFT + 6);
+        OffHeapMemory mem = new OffHeapMemory();
+        Bits original = Bits.create(size, mem);
+        assertEquals("Empty pages should not be allocated", 0, mem.allocationCount());
+        original.set(5).set(size - 1);
+        assertEquals(2, mem.allocationCount());
+
+        Bits copy = original.clone();
+        assertEquals("A copy should share its pages", 2, mem.allocationCount());
+        original.set(6);
+        assertEquals("Writing a shared page should copy it", 3, mem.allocationCount());
+        original.set(7);
+        assertEquals(3, mem.allocationCount());
+        copy.clear(size - 1);
+        assertEquals(4, mem.allocationCount());
+
+        assertTrue(original.get(6));
+        assertFalse(copy.get(6));
+        assertFalse(copy.get(size - 1));
+        assertTrue(original.get(size - 1));
+        assertEquals(4, original.cardinality());
+        assertEquals(1, copy.cardinality());
+        assertEquals(size - 1, original.nextSetBit(8));
+        assertEquals(-1, copy.nextSetBit(6));
+
+        copy.clear();
+        assertTrue(copy.isEmpty());
+        assertTrue(original.get(5));
+        mem.close();
+        try {
+            original.get(5);
+            fail("Should not read freed memory");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    private static void assertMatches(final String msg, final BitSet expect, Bits bits) {
+        assertEquals(msg, expect.cardinality(), bits.cardinality());
+        final int[] next = new int[]{expect.nextSetBit(0)};
+        bits.forEach(new IntVisitor() {
+
+            @Override
+            public Visitor.Result visit(int value) {
+                assertEquals(msg, next[0], value);
+                next[0] = expect.nextSetBit(value + 1);
+                return Visitor.Result.NOT_DONE;
+            }
+        });
+        assertEquals(msg, -1, next[0]);
+    }
+}
@@ -0,0 +1,111 @@
+package com.timboudreau.jhtm.util;
+
+import java.util.BitSet;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tim
+ */
+public class CompressedBitsTest {
+
+    @Test
+    public void testAgainstBitSet() {
+        int size = 300000;
+        Random r = new Random(19);
+        CompressedBits bits = new CompressedBits(size);
+        BitSet expect = new BitSet(size);
+        for (int i = 0; i < 200000; i++) {
+            int bit = r.nextInt(size);
+            // Concentrate some of the bits in one chunk so that it becomes
+            // a bitmap container, and later an array again
+            if (i % 3 == 0) {
+                bit = 65536 + r.nextInt(10000);
+            }
+            switch (r.nextInt(4)) {
+                case 0:
+                case 1:
+                    bits.set(bit);
+                    expect.set(bit);
+                    break;
+                case 2:
+                    bits.clear(bit);
+                    expect.clear(bit);
+                    break;
+                default:
+                    bits.flip(bit);
+                    expect.flip(bit);
+            }
+            if (i % 10000 == 0) {
+                assertMatches(expect, bits);
+            }
+        }
+        assertMatches(expect, bits);
+        for (int i = expect.nextSetBit(0); i >= 0; i = expect.nextSetBit(i + 1)) {
+            bits.clear(i);
+        }
+        assertTrue(bits.isEmpty());
+        assertEquals(0, bits.cardinality());
+        assertEquals(-1, bits.nextSetBit(0));
+    }
+
+    @Test
+    public void testEqualityAndCopy() {
+        Bits a = Bits.create(100000, Bits.Storage.COMPRESSED);
+        Bits b = Bits.create(100000);
+        for (int i = 0; i < 100000; i += 37) {
+            a.set(i);
+            b.set(i);
+        }
+        assertEquals(a, b);
+        assertEquals(b, a);
+        assertEquals(b.hashCode(), a.hashCode());
+        Bits c = a.clone();
+        assertEquals(a, c);
+        c.clear(37);
+        assertFalse(c.get(37));
+        assertTrue(a.get(37));
+        assertNotEquals(a, c);
+        assertEquals(a.setBits(), b.setBits());
+        assertEquals(a.setBits(), a.toBitSetBits().setBits());
+        assertEquals(a.setBits(), a.toIntSetBits().setBits());
+    }
+
+    @Test
+    public void testMemory() {
+        int size = 1024 * 1024;
+        Bits compressed = Bits.create(size, Bits.Storage.COMPRESSED);
+        Bits ints = new Bits.IntSetBits(size);
+        BitSet bitSet = new BitSet(size);
+        Random r = new Random(7);
+        // 2% sparse
+        for (int i = 0; i < size / 50; i++) {
+            int bit = r.nextInt(size);
+            compressed.set(bit);
+            ints.set(bit);
+            bitSet.set(bit);
+        }
+        assertEquals(ints.cardinality(), compressed.cardinality());
+        System.out.println("2% of " + size + " bits: compressed " + compressed.sizeInBytes()
+                + " bytes, BitSet " + (bitSet.size() / 8) + " bytes, " + ints.cardinality()
+                + " boxed ints in a HashSet (roughly 48 bytes each) " + (ints.cardinality() * 48));
+        assertTrue(compressed.sizeInBytes() < bitSet.size() / 8);
+    }
+
+    private static void assertMatches(BitSet expect, CompressedBits bits) {
+        assertEquals(expect.cardinality(), bits.cardinality());
+        assertEquals(expect.isEmpty(), bits.isEmpty());
+        int a = expect.nextSetBit(0);
+        int b = bits.nextSetBit(0);
+        while (a >= 0) {
+            assertEquals(a, b);
+            assertTrue(bits.get(a));
+            assertFalse(bits.get(a + 1) != expect.get(a + 1));
+            a = expect.nextSetBit(a + 1);
+            b = bits.nextSetBit(b + 1);
+        }
+        assertEquals(-1, b);
+    }
+}
@@ -0,0 +1,81 @@
+package com.timboudreau.jhtm.util;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author tim
+ */
+public class ConcurrentBitsTest {
+
+    private static final int THREADS = 4;
+    private static final int SIZE = 1024 * 1024;
+
+    @Test
+    public void testConcurrentWrites() throws InterruptedException {
+        Bits bits = Bits.create(SIZE, Bits.Storage.CONCURRENT);
+        // Interleaved, so every thread hits every word
+        run(bits, THREADS);
+        assertEquals(SIZE / 2, bits.cardinality());
+        for (int i = 0; i < SIZE; i++) {
+            assertEquals(i % 2 == 0, bits.get(i));
+        }
+        ConcurrentBits cb = (ConcurrentBits) bits;
+        assertFalse(cb.testAndSet(0));
+        assertTrue(cb.testAndClear(0));
+        assertFalse(cb.testAndClear(0));
+        assertTrue(cb.testAndSet(0));
+        // Reads outside the range are clear, as for the other storages
+        assertFalse(bits.get(-1));
+        assertFalse(bits.get(SIZE));
+        assertFalse(bits.get(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testThroughput() throws InterruptedException {
+        // warm up
+        for (int i = 0; i < 3; i++) {
+            run(Bits.create(SIZE, Bits.Storage.CONCURRENT), THREADS);
+            run(new Bits.SynchronizedBits(new Bits.BitSetBits(SIZE)), THREADS);
+        }
+        long concurrent = run(Bits.create(SIZE, Bits.Storage.CONCURRENT), THREADS);
+        long synchronizedBits = run(new Bits.SynchronizedBits(new Bits.BitSetBits(SIZE)), THREADS);
+        System.out.println(THREADS + " threads setting " + (SIZE / 2)
+                + " bits: concurrent " + (concurrent / 1000000) + "ms, synchronized "
+                + (synchronizedBits / 1000000) + "ms");
+    }
+
+    private static long run(final Bits bits, int threads) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * 2;
+            final int stride = threads * 2;
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = offset; i < SIZE; i += stride) {
+                            bits.set(i);
+                            bits.flip(i + 1);
+                            bits.clear(i + 1);
+                        }
+                    } catch (InterruptedException ex) {
+                        throw new AssertionError(ex);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            thread.start();
+        }
+        long then = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - then;
+    }
+}